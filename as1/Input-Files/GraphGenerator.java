@@ -0,0 +1,168 @@
+import java.rmi.RemoteException;
+import java.util.Random;
+
+/**
+ * Seeded generator of synthetic directed graphs of several topologies.
+ *
+ * Edges are streamed into a sink so that graphs of any size can be built
+ * directly from nodes without keeping an edge list.
+ */
+class GraphGenerator {
+	/**
+	 * Supported graph topologies.
+	 */
+	enum Topology {
+		// Uniformly random directed edges, G(n, m).
+		ERDOS_RENYI,
+		// Preferential attachment yielding a power-law degree distribution.
+		BARABASI_ALBERT,
+		// Two dimensional lattice with edges to the four closest nodes.
+		GRID,
+		// Watts-Strogatz ring lattice with randomly rewired edges.
+		SMALL_WORLD;
+
+		static Topology parse(String name) {
+			return valueOf(name.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * Receives generated edges.
+	 */
+	interface EdgeSink {
+		void addEdge(int from, int to) throws RemoteException;
+	}
+
+	// Probability of rewiring an edge of the small-world ring lattice.
+	private static final double SMALL_WORLD_REWIRING = 0.1;
+
+	/**
+	 * Generates a graph of the given topology.
+	 *
+	 * The number of edges is exact for Erdos-Renyi graphs and approximate for the other
+	 * topologies which are built from undirected edges, grids ignore it altogether.
+	 *
+	 * @param nodes number of nodes
+	 * @param edges requested number of directed edges
+	 * @return the number of generated edges
+	 */
+	static long generate(Topology topology, int nodes, long edges, Random random, EdgeSink sink) throws RemoteException {
+		if (nodes <= 1)
+			throw new IllegalArgumentException("Argument nodes must be greater than one");
+
+		switch (topology) {
+			case ERDOS_RENYI:
+				return erdosRenyi(nodes, edges, random, sink);
+			case BARABASI_ALBERT:
+				return barabasiAlbert(nodes, edges, random, sink);
+			case GRID:
+				return grid(nodes, sink);
+			case SMALL_WORLD:
+				return smallWorld(nodes, edges, random, sink);
+			default:
+				throw new IllegalArgumentException("Unknown topology " + topology);
+		}
+	}
+
+	private static long erdosRenyi(int nodes, long edges, Random random, EdgeSink sink) throws RemoteException {
+		for (long i = 0; i < edges; i++) {
+			final int from = random.nextInt(nodes);
+			int to = random.nextInt(nodes - 1);
+			// Skip self loops without biasing the target.
+			if (to >= from)
+				to++;
+			sink.addEdge(from, to);
+		}
+		return edges;
+	}
+
+	private static long barabasiAlbert(int nodes, long edges, Random random, EdgeSink sink) throws RemoteException {
+		// Every new node attaches to this many existing nodes by an edge in each direction.
+		final int attachments = (int) Math.max(1, Math.min(nodes - 1, edges / (2L * nodes)));
+
+		// Each node appears here once per incident edge, so uniform picks are degree proportional.
+		int[] endpoints = new int[2 * attachments * nodes + attachments * (attachments + 1)];
+		int endpointCount = 0;
+		long generated = 0;
+
+		// Start from a fully connected seed of attachments + 1 nodes.
+		for (int from = 0; from <= attachments; from++) {
+			for (int to = from + 1; to <= attachments; to++) {
+				sink.addEdge(from, to);
+				sink.addEdge(to, from);
+				endpoints[endpointCount++] = from;
+				endpoints[endpointCount++] = to;
+				generated += 2;
+			}
+		}
+
+		int[] targets = new int[attachments];
+		for (int node = attachments + 1; node < nodes; node++) {
+			// Pick distinct targets proportionally to their degree.
+			for (int i = 0; i < attachments; i++) {
+				int target;
+				boolean duplicate;
+				do {
+					target = endpoints[random.nextInt(endpointCount)];
+					duplicate = false;
+					for (int j = 0; j < i; j++)
+						duplicate |= targets[j] == target;
+				} while (duplicate);
+				targets[i] = target;
+			}
+
+			for (int target : targets) {
+				sink.addEdge(node, target);
+				sink.addEdge(target, node);
+				endpoints[endpointCount++] = node;
+				endpoints[endpointCount++] = target;
+				generated += 2;
+			}
+		}
+		return generated;
+	}
+
+	private static long grid(int nodes, EdgeSink sink) throws RemoteException {
+		final int width = (int) Math.ceil(Math.sqrt(nodes));
+		long generated = 0;
+
+		for (int node = 0; node < nodes; node++) {
+			// Connect to the right and to the lower neighbor in both directions.
+			final int right = node + 1;
+			if (right % width != 0 && right < nodes) {
+				sink.addEdge(node, right);
+				sink.addEdge(right, node);
+				generated += 2;
+			}
+			final int down = node + width;
+			if (down < nodes) {
+				sink.addEdge(node, down);
+				sink.addEdge(down, node);
+				generated += 2;
+			}
+		}
+		return generated;
+	}
+
+	private static long smallWorld(int nodes, long edges, Random random, EdgeSink sink) throws RemoteException {
+		// Every node is connected to this many closest nodes on each side of the ring.
+		final int halfDegree = (int) Math.max(1, Math.min((nodes - 1) / 2, edges / (2L * nodes)));
+		long generated = 0;
+
+		for (int node = 0; node < nodes; node++) {
+			for (int j = 1; j <= halfDegree; j++) {
+				int neighbor = (node + j) % nodes;
+				// Rewire the edge to a uniformly chosen node other than itself.
+				if (random.nextDouble() < SMALL_WORLD_REWIRING) {
+					neighbor = random.nextInt(nodes - 1);
+					if (neighbor >= node)
+						neighbor++;
+				}
+				sink.addEdge(node, neighbor);
+				sink.addEdge(neighbor, node);
+				generated += 2;
+			}
+		}
+		return generated;
+	}
+}
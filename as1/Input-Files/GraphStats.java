@@ -0,0 +1,19 @@
+/**
+ * Graph statistics of this virtual machine as collected by Metrics.
+ */
+class GraphStats implements GraphStatsMBean {
+	@Override
+	public long getNodeCount() {
+		return Metrics.nodeCount();
+	}
+
+	@Override
+	public long getEdgeCount() {
+		return Metrics.edgeCount();
+	}
+
+	@Override
+	public int getActiveSearches() {
+		return Metrics.activeSearches();
+	}
+}
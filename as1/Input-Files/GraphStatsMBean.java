@@ -0,0 +1,11 @@
+/**
+ * Management interface exposing the state of the graph hosted by this virtual machine.
+ */
+public interface GraphStatsMBean {
+	/** Gets the number of nodes created in this virtual machine. */
+	long getNodeCount();
+	/** Gets the number of distinct edges added to nodes of this virtual machine. */
+	long getEdgeCount();
+	/** Gets the number of searches currently running in this virtual machine. */
+	int getActiveSearches();
+}
@@ -0,0 +1,170 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Concurrent throughput benchmark of the remote searcher.
+ *
+ * For every number of clients K, K threads share one graph of server nodes and issue
+ * a mix of getDistance and getDistanceTransitive queries to the remote searcher for
+ * a fixed time. Each level reports throughput and latency percentiles, so that the
+ * saturation point of the server can be found.
+ */
+public class LoadGenerator {
+	private static Node[] remoteNodes;
+
+	/**
+	 * Latencies measured by a single client thread.
+	 */
+	private static class Client extends Thread {
+		private final Searcher searcher;
+		private final Random random;
+		private final double transitiveRatio;
+		private final int transitiveN;
+		private final long deadlineNs;
+
+		private long[] latenciesNs = new long[1024];
+		private int requests = 0;
+		private int errors = 0;
+
+		Client(Searcher searcher, long seed, double transitiveRatio, int transitiveN, long deadlineNs) {
+			this.searcher = searcher;
+			this.random = new Random(seed);
+			this.transitiveRatio = transitiveRatio;
+			this.transitiveN = transitiveN;
+			this.deadlineNs = deadlineNs;
+		}
+
+		@Override
+		public void run() {
+			while (System.nanoTime() < deadlineNs) {
+				final Node from = remoteNodes[random.nextInt(remoteNodes.length)];
+				final Node to = remoteNodes[random.nextInt(remoteNodes.length)];
+				final boolean transitive = random.nextDouble() < transitiveRatio;
+
+				final long startTimeNs = System.nanoTime();
+				try {
+					if (transitive)
+						searcher.getDistanceTransitive(transitiveN, from, to);
+					else
+						searcher.getDistance(from, to);
+				} catch (RemoteException e) {
+					errors++;
+					continue;
+				}
+				final long durationNs = System.nanoTime() - startTimeNs;
+
+				if (requests == latenciesNs.length)
+					latenciesNs = Arrays.copyOf(latenciesNs, requests * 2);
+				latenciesNs[requests++] = durationNs;
+			}
+		}
+	}
+
+	/**
+	 * Runs K concurrent clients for the given time.
+	 *
+	 * @return the finished clients
+	 */
+	private static List<Client> runClients(Searcher searcher, int clients, long seed, double transitiveRatio, int transitiveN, long durationNs) throws InterruptedException {
+		final long deadlineNs = System.nanoTime() + durationNs;
+
+		List<Client> threads = new ArrayList<Client>();
+		for (int i = 0; i < clients; i++)
+			threads.add(new Client(searcher, seed + i, transitiveRatio, transitiveN, deadlineNs));
+		for (Client client : threads)
+			client.start();
+		for (Client client : threads)
+			client.join();
+
+		return threads;
+	}
+
+	/**
+	 * Gets the nearest-rank percentile of sorted values.
+	 */
+	private static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0)
+			return 0;
+		final int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	public static void main(String[] args) {
+		String host = (args.length < 1) ? null : args[0];
+		long seed = (args.length < 2) ? System.currentTimeMillis() : Long.parseLong(args[1]);
+		int graphNodes = (args.length < 3) ? 100 : Integer.parseInt(args[2]);
+		int graphEdges = (args.length < 4) ? 200 : Integer.parseInt(args[3]);
+		String clientCounts = (args.length < 5) ? "1,2,4,8,16,32" : args[4]; // comma separated
+		int durationSeconds = (args.length < 6) ? 10 : Integer.parseInt(args[5]); // per number of clients
+		double transitiveRatio = (args.length < 7) ? 0.5 : Double.parseDouble(args[6]);
+		int transitiveN = (args.length < 8) ? 4 : Integer.parseInt(args[7]);
+		boolean printHeader = (args.length < 9) ? true : Boolean.parseBoolean(args[8]);
+
+		Random random = new Random(seed);
+		try {
+			Registry registry = LocateRegistry.getRegistry(host);
+			NodeFactory remoteNodeFactory = (NodeFactory) registry.lookup("NodeFactory");
+			Searcher remoteSearcher = (Searcher) registry.lookup("Searcher");
+
+			// Create a randomly connected graph of server nodes shared by all clients.
+			remoteNodes = new Node[graphNodes];
+			for (int i = 0; i < graphNodes; i++)
+				remoteNodes[i] = remoteNodeFactory.createNode();
+			for (int i = 0; i < graphEdges; i++)
+				remoteNodes[random.nextInt(graphNodes)].addNeighbor(remoteNodes[random.nextInt(graphNodes)]);
+
+			// Warm up the server and the connections, the results are not reported.
+			runClients(remoteSearcher, 1, seed, transitiveRatio, transitiveN, 2000000000L);
+
+			if (printHeader) {
+				System.out.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s%n",
+					"clients", "nodes", "edges", "requests", "errors", "throughput",
+					"p50", "p99", "p999", "max", "cache_hit_ratio");
+			}
+
+			for (String clientCount : clientCounts.split(",")) {
+				final int clients = Integer.parseInt(clientCount.trim());
+				final long hitsBefore = remoteSearcher.getCacheHits();
+				final long missesBefore = remoteSearcher.getCacheMisses();
+
+				final long startTimeNs = System.nanoTime();
+				List<Client> threads = runClients(remoteSearcher, clients, random.nextLong(), transitiveRatio, transitiveN, durationSeconds * 1000000000L);
+				final long durationNs = System.nanoTime() - startTimeNs;
+
+				// Merge latencies of all clients.
+				int requests = 0;
+				int errors = 0;
+				for (Client client : threads) {
+					requests += client.requests;
+					errors += client.errors;
+				}
+				long[] latenciesNs = new long[requests];
+				int offset = 0;
+				for (Client client : threads) {
+					System.arraycopy(client.latenciesNs, 0, latenciesNs, offset, client.requests);
+					offset += client.requests;
+				}
+				Arrays.sort(latenciesNs);
+
+				final long hits = remoteSearcher.getCacheHits() - hitsBefore;
+				final long misses = remoteSearcher.getCacheMisses() - missesBefore;
+
+				// Throughput in requests per second, latencies in microseconds.
+				System.out.printf("%d,%d,%d,%d,%d,%.1f,%d,%d,%d,%d,%.3f%n",
+					clients, graphNodes, graphEdges, requests, errors, requests / (durationNs / 1e9),
+					percentile(latenciesNs, 50) / 1000, percentile(latenciesNs, 99) / 1000,
+					percentile(latenciesNs, 99.9) / 1000, requests > 0 ? latenciesNs[requests - 1] / 1000 : 0,
+					hits + misses > 0 ? (double) hits / (hits + misses) : 0
+				);
+			}
+		} catch (Exception e) {
+			System.out.println ("Client Exception: " + e.getMessage ());
+			e.printStackTrace ();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable compressed sparse row snapshot of the nodes reachable from a node.
+ *
+ * Stubs of nodes exported by this virtual machine are resolved to the node
+ * implementations, so the snapshot is taken without any remote calls.
+ *
+ * Nodes are numbered in the order of discovery, both forward and reverse
+ * adjacency are kept so that searches may expand the graph in either direction.
+ */
+class LocalGraph {
+	// Epoch of the graph the snapshot was taken at.
+	final long epoch;
+
+	// Node the snapshot was taken from, it has id 0.
+	final NodeImpl root;
+
+	private final Map<NodeImpl, Integer> ids;
+
+	// Targets of edges of node i are outTargets[outOffsets[i] .. outOffsets[i + 1]).
+	final int[] outOffsets;
+	final int[] outTargets;
+	// Sources of edges of node i are inSources[inOffsets[i] .. inOffsets[i + 1]).
+	final int[] inOffsets;
+	final int[] inSources;
+
+	private LocalGraph(long epoch, NodeImpl root, Map<NodeImpl, Integer> ids, int[] outOffsets, int[] outTargets) {
+		this.epoch = epoch;
+		this.root = root;
+		this.ids = ids;
+		this.outOffsets = outOffsets;
+		this.outTargets = outTargets;
+
+		// Build the reverse adjacency by counting sort of edges by their target.
+		final int nodes = outOffsets.length - 1;
+		inOffsets = new int[nodes + 1];
+		for (int target : outTargets)
+			inOffsets[target + 1]++;
+		for (int i = 0; i < nodes; i++)
+			inOffsets[i + 1] += inOffsets[i];
+
+		inSources = new int[outTargets.length];
+		int[] fill = Arrays.copyOf(inOffsets, nodes);
+		for (int source = 0; source < nodes; source++) {
+			for (int e = outOffsets[source]; e < outOffsets[source + 1]; e++)
+				inSources[fill[outTargets[e]]++] = source;
+		}
+	}
+
+	/**
+	 * Takes a snapshot of all nodes reachable from the given node.
+	 *
+	 * @return the snapshot or null if some reachable node lives in another virtual machine
+	 */
+	static LocalGraph snapshot(Node from) {
+		NodeImpl source = ServerNodeFactoryImpl.localNode(from);
+		if (source == null)
+			return null;
+
+		// Read the epoch first so that concurrent mutations make the snapshot stale.
+		final long epoch = source.getEpoch();
+
+		Map<NodeImpl, Integer> ids = new HashMap<NodeImpl, Integer>();
+		List<NodeImpl> nodes = new ArrayList<NodeImpl>();
+		int[] outOffsets = new int[16];
+		int[] outTargets = new int[16];
+		int edges = 0;
+
+		ids.put(source, 0);
+		nodes.add(source);
+
+		// Nodes are processed in the order of their ids, so their edges are appended in row order.
+		for (int current = 0; current < nodes.size(); current++) {
+			if (current + 1 >= outOffsets.length)
+				outOffsets = Arrays.copyOf(outOffsets, outOffsets.length * 2);
+
+			for (Node node : nodes.get(current).getNeighbors()) {
+				NodeImpl neighbor = ServerNodeFactoryImpl.localNode(node);
+				if (neighbor == null)
+					return null;
+
+				Integer id = ids.get(neighbor);
+				if (id == null) {
+					id = nodes.size();
+					ids.put(neighbor, id);
+					nodes.add(neighbor);
+				}
+
+				if (edges == outTargets.length)
+					outTargets = Arrays.copyOf(outTargets, edges * 2);
+				outTargets[edges++] = id;
+			}
+			outOffsets[current + 1] = edges;
+		}
+
+		return new LocalGraph(epoch, source, ids,
+			Arrays.copyOf(outOffsets, nodes.size() + 1), Arrays.copyOf(outTargets, edges));
+	}
+
+	/**
+	 * Gets the id of a node or -1 if the node is not part of the snapshot.
+	 */
+	int idOf(Node node) {
+		NodeImpl local = ServerNodeFactoryImpl.localNode(node);
+		if (local == null)
+			return -1;
+		Integer id = ids.get(local);
+		return id == null ? -1 : id;
+	}
+
+	int nodeCount() {
+		return outOffsets.length - 1;
+	}
+
+	int edgeCount() {
+		return outTargets.length;
+	}
+
+	int outDegree(int node) {
+		return outOffsets[node + 1] - outOffsets[node];
+	}
+}
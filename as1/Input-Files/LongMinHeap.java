@@ -0,0 +1,68 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of primitive longs.
+ *
+ * Avoids boxing when the priority and the payload can be packed into a single long.
+ */
+class LongMinHeap {
+	private long[] heap;
+	private int size = 0;
+
+	LongMinHeap() {
+		this(16);
+	}
+
+	LongMinHeap(int initialCapacity) {
+		heap = new long[Math.max(1, initialCapacity)];
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void push(long value) {
+		if (size == heap.length)
+			heap = Arrays.copyOf(heap, size * 2);
+
+		// Sift the new value up from the last position.
+		int i = size++;
+		while (i > 0) {
+			final int parent = (i - 1) >>> 1;
+			if (heap[parent] <= value)
+				break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = value;
+	}
+
+	long pop() {
+		if (size == 0)
+			throw new IllegalStateException("Heap is empty");
+
+		final long min = heap[0];
+		final long last = heap[--size];
+
+		// Sift the last value down from the root.
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && heap[child + 1] < heap[child])
+				child++;
+			if (last <= heap[child])
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = last;
+
+		return min;
+	}
+}
@@ -77,18 +77,21 @@ public class Main {
 
 		// Display measurement header.
 		if (printHeader) {
-			System.out.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s%n",
+			System.out.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s%n",
 				"attempt", "nodes", "edges", "n", "distance",
 				"local_searcher-local_nodes", "local_searcher-remote_nodes", "remote_searcher-local_nodes", "remote_searcher-remote_nodes",
-				"local_searcher-local_nodes-transitive", "local_searcher-remote_nodes-transitive", "remote_searcher-local_nodes-transitive", "remote_searcher-remote_nodes-transitive"
+				"local_searcher-local_nodes-transitive", "local_searcher-remote_nodes-transitive", "remote_searcher-local_nodes-transitive", "remote_searcher-remote_nodes-transitive",
+				"local_searcher-local_nodes-cached", "local_searcher-remote_nodes-cached", "remote_searcher-local_nodes-cached", "remote_searcher-remote_nodes-cached",
+				"local_searcher-local_nodes-transitive-cached", "local_searcher-remote_nodes-transitive-cached", "remote_searcher-local_nodes-transitive-cached", "remote_searcher-remote_nodes-transitive-cached",
+				"local_searcher-local_nodes-best_first", "local_searcher-remote_nodes-best_first", "remote_searcher-local_nodes-best_first", "remote_searcher-remote_nodes-best_first"
 			);
 		}
 
 		// Calculate distance using either localSearcher or RemoteSeacher in combination wiht either local or remote
 		// nodes. Variables are prefixed with l (local) or r (remote) where first stands for locality of searcher
 		// second for locality of nodes. E.g. prefix 'll' stands for local searcher, local nodes.
-		// Do the same for transitive variant of the algorithm.
-		// Measure execution time.
+		// Do the same for transitive and best-first transitive variants of the algorithm.
+		// Measure execution time, then repeat each query to measure the time of a cached result.
 		for (int i = 0; i < howMany; i++) {
 			// Select two random nodes.
 			final int idxFrom = random.nextInt(localNodes.length);
@@ -114,6 +117,23 @@ public class Main {
 			final int rrDistance = remoteSearcher.getDistance(remoteNodes[idxFrom], remoteNodes[idxTo]);
 			final long rrDurationNs = System.nanoTime() - rrStartTimeNs;
 
+			// Repeated queries are answered from the searcher result cache.
+			final long llCachedStartTimeNs = System.nanoTime();
+			localSearcher.getDistance(localNodes[idxFrom], localNodes[idxTo]);
+			final long llCachedDurationNs = System.nanoTime() - llCachedStartTimeNs;
+
+			final long lrCachedStartTimeNs = System.nanoTime();
+			localSearcher.getDistance(remoteNodes[idxFrom], remoteNodes[idxTo]);
+			final long lrCachedDurationNs = System.nanoTime() - lrCachedStartTimeNs;
+
+			final long rlCachedStartTimeNs = System.nanoTime();
+			remoteSearcher.getDistance(localNodes[idxFrom], localNodes[idxTo]);
+			final long rlCachedDurationNs = System.nanoTime() - rlCachedStartTimeNs;
+
+			final long rrCachedStartTimeNs = System.nanoTime();
+			remoteSearcher.getDistance(remoteNodes[idxFrom], remoteNodes[idxTo]);
+			final long rrCachedDurationNs = System.nanoTime() - rrCachedStartTimeNs;
+
 			// Calculate transitive distance, measure operation time, try different parameters of n based on number of
 			// wanted values.
 			for (int n = transitiveStep; n <= transitiveEnd && n < graphNodes; n += transitiveStep) {
@@ -137,23 +157,72 @@ public class Main {
 				final int rrDistanceTransitive = remoteSearcher.getDistanceTransitive(n, remoteNodes[idxFrom], remoteNodes[idxTo]);
 				final long rrDurationTransitiveNs = System.nanoTime() - rrStartTimeTransitiveNs;
 
+				// LocalSearcher + localNodes - ll best-first transitive
+				final long llStartTimeBestFirstNs = System.nanoTime();
+				final int llDistanceBestFirst = localSearcher.getDistanceTransitiveBestFirst(n, localNodes[idxFrom], localNodes[idxTo]);
+				final long llDurationBestFirstNs = System.nanoTime() - llStartTimeBestFirstNs;
+
+				// LocalSearcher + remoteNodes - lr best-first transitive
+				final long lrStartTimeBestFirstNs = System.nanoTime();
+				final int lrDistanceBestFirst = localSearcher.getDistanceTransitiveBestFirst(n, remoteNodes[idxFrom], remoteNodes[idxTo]);
+				final long lrDurationBestFirstNs = System.nanoTime() - lrStartTimeBestFirstNs;
+
+				// RemoteSearcher + localNodes - rl best-first transitive
+				final long rlStartTimeBestFirstNs = System.nanoTime();
+				final int rlDistanceBestFirst = remoteSearcher.getDistanceTransitiveBestFirst(n, localNodes[idxFrom], localNodes[idxTo]);
+				final long rlDurationBestFirstNs = System.nanoTime() - rlStartTimeBestFirstNs;
+
+				// RemoteSearcher + remoteNodes - rr best-first transitive
+				final long rrStartTimeBestFirstNs = System.nanoTime();
+				final int rrDistanceBestFirst = remoteSearcher.getDistanceTransitiveBestFirst(n, remoteNodes[idxFrom], remoteNodes[idxTo]);
+				final long rrDurationBestFirstNs = System.nanoTime() - rrStartTimeBestFirstNs;
+
+				// Repeated transitive queries are answered from the searcher result cache.
+				final long llCachedStartTimeTransitiveNs = System.nanoTime();
+				localSearcher.getDistanceTransitive(n, localNodes[idxFrom], localNodes[idxTo]);
+				final long llCachedDurationTransitiveNs = System.nanoTime() - llCachedStartTimeTransitiveNs;
+
+				final long lrCachedStartTimeTransitiveNs = System.nanoTime();
+				localSearcher.getDistanceTransitive(n, remoteNodes[idxFrom], remoteNodes[idxTo]);
+				final long lrCachedDurationTransitiveNs = System.nanoTime() - lrCachedStartTimeTransitiveNs;
+
+				final long rlCachedStartTimeTransitiveNs = System.nanoTime();
+				remoteSearcher.getDistanceTransitive(n, localNodes[idxFrom], localNodes[idxTo]);
+				final long rlCachedDurationTransitiveNs = System.nanoTime() - rlCachedStartTimeTransitiveNs;
+
+				final long rrCachedStartTimeTransitiveNs = System.nanoTime();
+				remoteSearcher.getDistanceTransitive(n, remoteNodes[idxFrom], remoteNodes[idxTo]);
+				final long rrCachedDurationTransitiveNs = System.nanoTime() - rrCachedStartTimeTransitiveNs;
+
 				if (llDistance != lrDistance ||
 					lrDistance != rlDistance ||
-					rlDistance != rrDistance) {
-					System.err.printf("Inconsistent distances ll(%d), lr(%d), rl(%d), rr(%d), llT(%d), lrT(%d), rlT(%d), rrT(%d)%n",
+					rlDistance != rrDistance ||
+					rrDistance != llDistanceBestFirst ||
+					llDistanceBestFirst != lrDistanceBestFirst ||
+					lrDistanceBestFirst != rlDistanceBestFirst ||
+					rlDistanceBestFirst != rrDistanceBestFirst) {
+					System.err.printf("Inconsistent distances ll(%d), lr(%d), rl(%d), rr(%d), llT(%d), lrT(%d), rlT(%d), rrT(%d), llB(%d), lrB(%d), rlB(%d), rrB(%d)%n",
 						llDistance, lrDistance, rlDistance, rrDistance,
-						llDistanceTransitive, lrDistanceTransitive, rlDistanceTransitive, rrDistanceTransitive
+						llDistanceTransitive, lrDistanceTransitive, rlDistanceTransitive, rrDistanceTransitive,
+						llDistanceBestFirst, lrDistanceBestFirst, rlDistanceBestFirst, rrDistanceBestFirst
 					);
 				} else {
 					// Print the measurement result.
-					System.out.printf("%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d%n",
+					System.out.printf("%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d%n",
 						i, graphNodes, graphEdges, n, llDistance,
 						llDurationNs / 1000, lrDurationNs / 1000, rlDurationNs / 1000, rrDurationNs / 1000,
-						llDurationTransitiveNs / 1000, lrDurationTransitiveNs / 1000, rlDurationTransitiveNs / 1000, rrDurationTransitiveNs / 1000
+						llDurationTransitiveNs / 1000, lrDurationTransitiveNs / 1000, rlDurationTransitiveNs / 1000, rrDurationTransitiveNs / 1000,
+						llCachedDurationNs / 1000, lrCachedDurationNs / 1000, rlCachedDurationNs / 1000, rrCachedDurationNs / 1000,
+						llCachedDurationTransitiveNs / 1000, lrCachedDurationTransitiveNs / 1000, rlCachedDurationTransitiveNs / 1000, rrCachedDurationTransitiveNs / 1000,
+						llDurationBestFirstNs / 1000, lrDurationBestFirstNs / 1000, rlDurationBestFirstNs / 1000, rrDurationBestFirstNs / 1000
 					);
 				}
 			}
 		}
+
+		// Report cache efficiency on stderr to keep the csv output intact.
+		System.err.printf("Local searcher cache: %d hits, %d misses%n", localSearcher.getCacheHits(), localSearcher.getCacheMisses());
+		System.err.printf("Remote searcher cache: %d hits, %d misses%n", remoteSearcher.getCacheHits(), remoteSearcher.getCacheMisses());
 	}
 
 	public static void main(String[] args) {
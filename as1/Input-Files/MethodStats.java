@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free call statistics of a single method with a power of two latency histogram.
+ */
+class MethodStats implements MethodStatsMBean {
+	// Bucket i holds latencies below 2^i microseconds, the last bucket holds the rest.
+	private static final int BUCKETS = 32;
+
+	private final String name;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong totalLatencyNs = new AtomicLong();
+	private final AtomicLong maxLatencyNs = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+	private volatile long resetTimeNs = System.nanoTime();
+
+	MethodStats(String name) {
+		this.name = name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Records a call that started at the time returned by Metrics.startTime().
+	 */
+	void record(long startTimeNs) {
+		if (startTimeNs == Metrics.NOT_TIMED)
+			return;
+
+		final long latencyNs = System.nanoTime() - startTimeNs;
+		final long latencyMicros = latencyNs / 1000;
+
+		calls.incrementAndGet();
+		totalLatencyNs.addAndGet(latencyNs);
+		maxLatencyNs.accumulateAndGet(latencyNs, Math::max);
+		histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latencyMicros)));
+	}
+
+	@Override
+	public long getCallCount() {
+		return calls.get();
+	}
+
+	@Override
+	public double getCallRate() {
+		final double seconds = (System.nanoTime() - resetTimeNs) / 1e9;
+		return seconds > 0 ? calls.get() / seconds : 0;
+	}
+
+	@Override
+	public double getMeanLatencyMicros() {
+		final long count = calls.get();
+		return count > 0 ? totalLatencyNs.get() / 1000.0 / count : 0;
+	}
+
+	@Override
+	public long getMaxLatencyMicros() {
+		return maxLatencyNs.get() / 1000;
+	}
+
+	@Override
+	public long[] getLatencyHistogram() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = histogram.get(i);
+		return counts;
+	}
+
+	@Override
+	public long[] getLatencyHistogramBoundsMicros() {
+		long[] bounds = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS - 1; i++)
+			bounds[i] = 1L << i;
+		bounds[BUCKETS - 1] = Long.MAX_VALUE;
+		return bounds;
+	}
+
+	@Override
+	public void resetStatistics() {
+		calls.set(0);
+		totalLatencyNs.set(0);
+		maxLatencyNs.set(0);
+		for (int i = 0; i < BUCKETS; i++)
+			histogram.set(i, 0);
+		resetTimeNs = System.nanoTime();
+	}
+}
@@ -0,0 +1,22 @@
+/**
+ * Management interface exposing call statistics of a single remote method.
+ */
+public interface MethodStatsMBean {
+	/** Gets the number of calls since the last reset. */
+	long getCallCount();
+	/** Gets the average number of calls per second since the last reset. */
+	double getCallRate();
+	/** Gets the mean call latency in microseconds. */
+	double getMeanLatencyMicros();
+	/** Gets the maximum call latency in microseconds. */
+	long getMaxLatencyMicros();
+	/**
+	 * Gets the latency histogram, bucket i counts calls that took less than
+	 * getLatencyHistogramBoundsMicros()[i] microseconds and were not counted in bucket i - 1.
+	 */
+	long[] getLatencyHistogram();
+	/** Gets the exclusive upper bounds of histogram buckets in microseconds. */
+	long[] getLatencyHistogramBoundsMicros();
+	/** Clears all collected statistics. */
+	void resetStatistics();
+}
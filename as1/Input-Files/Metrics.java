@@ -0,0 +1,93 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of the graph and searcher of this virtual machine.
+ *
+ * Call timing is off until register() publishes the statistics as MBeans,
+ * so client side measurements are not affected by the instrumentation.
+ */
+class Metrics {
+	// Start time of a call that is not measured.
+	static final long NOT_TIMED = Long.MIN_VALUE;
+
+	static final MethodStats GET_NEIGHBORS = new MethodStats("getNeighbors");
+	static final MethodStats GET_TRANSITIVE_NEIGHBORS = new MethodStats("getTransitiveNeighbors");
+	static final MethodStats NEIGHBORHOOD_CHUNK = new MethodStats("nextNeighborhoodChunk");
+	static final MethodStats GET_DISTANCE = new MethodStats("getDistance");
+	static final MethodStats GET_DISTANCE_TRANSITIVE = new MethodStats("getDistanceTransitive");
+	static final MethodStats GET_DISTANCE_TRANSITIVE_BEST_FIRST = new MethodStats("getDistanceTransitiveBestFirst");
+	static final MethodStats GET_DISTANCE_TRANSITIVE_STREAMING = new MethodStats("getDistanceTransitiveStreaming");
+
+	private static final AtomicLong nodes = new AtomicLong();
+	private static final AtomicLong edges = new AtomicLong();
+	private static final AtomicInteger activeSearches = new AtomicInteger();
+
+	private static volatile boolean enabled = false;
+
+	/**
+	 * Enables collection and registers all statistics in the platform MBean server.
+	 */
+	static void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		server.registerMBean(new GraphStats(), new ObjectName("nswi080.graph:type=Graph"));
+		MethodStats[] methods = {
+			GET_NEIGHBORS, GET_TRANSITIVE_NEIGHBORS, NEIGHBORHOOD_CHUNK,
+			GET_DISTANCE, GET_DISTANCE_TRANSITIVE, GET_DISTANCE_TRANSITIVE_BEST_FIRST, GET_DISTANCE_TRANSITIVE_STREAMING
+		};
+		for (MethodStats stats : methods)
+			server.registerMBean(stats, new ObjectName("nswi080.graph:type=Method,name=" + stats.getName()));
+
+		enabled = true;
+	}
+
+	/**
+	 * Gets the start time of a measured call, pass it to MethodStats.record() when the call ends.
+	 */
+	static long startTime() {
+		return enabled ? System.nanoTime() : NOT_TIMED;
+	}
+
+	static long nodeCount() {
+		return nodes.get();
+	}
+
+	static long edgeCount() {
+		return edges.get();
+	}
+
+	static int activeSearches() {
+		return activeSearches.get();
+	}
+
+	static void nodeCreated() {
+		nodes.incrementAndGet();
+	}
+
+	static void edgeAdded() {
+		edges.incrementAndGet();
+	}
+
+	static void edgeRemoved() {
+		edges.decrementAndGet();
+	}
+
+	static void nodeReleased(int outEdges) {
+		nodes.decrementAndGet();
+		edges.addAndGet(-outEdges);
+	}
+
+	static void searchStarted() {
+		activeSearches.incrementAndGet();
+	}
+
+	static void searchEnded() {
+		activeSearches.decrementAndGet();
+	}
+}
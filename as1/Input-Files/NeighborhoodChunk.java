@@ -0,0 +1,21 @@
+import java.io.Serializable;
+
+/**
+ * A chunk of a transitive neighborhood returned by NeighborhoodCursor.
+ */
+public class NeighborhoodChunk implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** Nodes of the chunk. */
+	public final Node[] nodes;
+	/** Distance of every node from the origin of the neighborhood. */
+	public final int[] distances;
+	/** Whether no further chunk follows. */
+	public final boolean last;
+
+	public NeighborhoodChunk(Node[] nodes, int[] distances, boolean last) {
+		this.nodes = nodes;
+		this.distances = distances;
+		this.last = last;
+	}
+}
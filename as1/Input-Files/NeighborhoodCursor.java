@@ -0,0 +1,15 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Streams the transitive neighborhood of a node in chunks ordered by distance.
+ *
+ * Nodes of a remote node's neighborhood are sent chunk by chunk, so neither side
+ * holds the whole neighborhood in a single message and the reader may stop early.
+ */
+public interface NeighborhoodCursor extends Remote {
+	/** Gets up to maxNodes further nodes with their distances, in nondecreasing order of distance. */
+	NeighborhoodChunk next(int maxNodes) throws RemoteException;
+	/** Releases the cursor before reaching the last chunk, exhausted cursors are released automatically. */
+	void close() throws RemoteException;
+}
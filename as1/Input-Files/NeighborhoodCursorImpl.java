@@ -0,0 +1,118 @@
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Breadth-first traversal of a neighborhood advanced chunk by chunk.
+ *
+ * Neighbors of a node are retrieved only when the node is emitted, so the traversal
+ * does no more work than the chunks read so far. Cursors handed out by exported nodes
+ * are exported as well and unexport themselves once exhausted, closed or unreferenced.
+ */
+class NeighborhoodCursorImpl implements NeighborhoodCursor, Unreferenced {
+	private final int maxDistance;
+	// Nodes already emitted or queued for emission.
+	private Set<Node> seen = new HashSet<Node>();
+	// Nodes of the current layer not yet emitted and nodes of the following layer.
+	private ArrayDeque<Node> layer = new ArrayDeque<Node>();
+	private List<Node> nextLayer = new ArrayList<Node>();
+	private int layerDistance = 0;
+	private boolean exported = false;
+
+	/**
+	 * @param origin node at zero distance
+	 * @param maxDistance largest distance of emitted nodes
+	 */
+	NeighborhoodCursorImpl(Node origin, int maxDistance) {
+		if (maxDistance <= 0)
+			throw new IllegalArgumentException("Argument maxDistance must be positive");
+
+		this.maxDistance = maxDistance;
+		seen.add(origin);
+		layer.add(origin);
+	}
+
+	/**
+	 * Exports the cursor so that it is passed to remote callers by reference.
+	 */
+	synchronized void export() throws RemoteException {
+		UnicastRemoteObject.exportObject(this, 0);
+		exported = true;
+	}
+
+	@Override
+	public synchronized NeighborhoodChunk next(int maxNodes) throws RemoteException {
+		if (maxNodes <= 0)
+			throw new IllegalArgumentException("Argument maxNodes must be positive");
+		if (seen == null)
+			throw new IllegalStateException("Cursor is closed");
+
+		final long startTimeNs = Metrics.startTime();
+
+		Node[] nodes = new Node[16];
+		int[] distances = new int[16];
+		int count = 0;
+		while (count < maxNodes) {
+			if (layer.isEmpty()) {
+				if (nextLayer.isEmpty())
+					break;
+				layer = new ArrayDeque<Node>(nextLayer);
+				nextLayer = new ArrayList<Node>();
+				layerDistance++;
+			}
+
+			final Node node = layer.poll();
+			if (count == nodes.length) {
+				nodes = Arrays.copyOf(nodes, count * 2);
+				distances = Arrays.copyOf(distances, count * 2);
+			}
+			nodes[count] = node;
+			distances[count] = layerDistance;
+			count++;
+
+			if (layerDistance < maxDistance) {
+				// Stubs of nodes exported by this machine may come back from remote nodes.
+				for (Node neighbor : node.getNeighbors()) {
+					final Node canonical = ExportedNodeFactoryImpl.canonical(neighbor);
+					if (seen.add(canonical))
+						nextLayer.add(canonical);
+				}
+			}
+		}
+
+		final boolean last = layer.isEmpty() && nextLayer.isEmpty();
+		if (last)
+			close();
+
+		Metrics.NEIGHBORHOOD_CHUNK.record(startTimeNs);
+		return new NeighborhoodChunk(Arrays.copyOf(nodes, count), Arrays.copyOf(distances, count), last);
+	}
+
+	@Override
+	public synchronized void close() {
+		seen = null;
+		layer = null;
+		nextLayer = null;
+		if (exported) {
+			exported = false;
+			try {
+				UnicastRemoteObject.unexportObject(this, true);
+			} catch (NoSuchObjectException e) {
+				// Already unexported, nothing to release.
+			}
+		}
+	}
+
+	@Override
+	public void unreferenced() {
+		// The client dropped the cursor without closing it.
+		close();
+	}
+}
@@ -8,6 +8,14 @@ public interface Node extends Remote {
 	Set<Node> getNeighbors() throws RemoteException;
 	/** Gets the set of nodes connected to this node by a path up to the specified distance. */
 	Map<Node, Integer> getTransitiveNeighbors(int distance) throws RemoteException;
+	/** Opens a cursor streaming the nodes connected to this node by a path up to the specified distance, nearest first. */
+	NeighborhoodCursor openTransitiveNeighbors(int distance) throws RemoteException;
 	/** Connects this node to another by an edge. */
 	void addNeighbor(Node neighbor) throws RemoteException;
+	/** Redirects the edge to a neighbor to another node, used when the neighbor migrates to another machine. */
+	void replaceNeighbor(Node neighbor, Node replacement) throws RemoteException;
+	/** Gets the mutation epoch of the graph hosting this node, it changes with every added edge. */
+	long getEpoch() throws RemoteException;
+	/** Gets the id of the graph hosting this node, nodes with the same id share their mutation epoch. */
+	String getEpochSource() throws RemoteException;
 }
@@ -6,4 +6,9 @@ public interface NodeFactory extends Remote {
 	 * Create a new node.
 	 */
 	public Node createNode() throws RemoteException;
+
+	/**
+	 * Release a node created by this factory, no edge may lead to it any more.
+	 */
+	public void releaseNode(Node node) throws RemoteException;
 }
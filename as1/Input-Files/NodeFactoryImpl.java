@@ -1,17 +1,96 @@
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exported nodes mapped by their stubs, without keeping the nodes alive.
+ *
+ * The RMI runtime keeps an exported node alive while any stub of it is live,
+ * stubs held by nodes of this virtual machine included. Once no stub is left
+ * the node can no longer be reached, it is collected and its entry dropped.
+ */
+class ExportedNodes {
+	private static class NodeReference extends WeakReference<NodeImpl> {
+		private final Node stub;
+
+		NodeReference(Node stub, NodeImpl node, ReferenceQueue<NodeImpl> queue) {
+			super(node, queue);
+			this.stub = stub;
+		}
+	}
+
+	private final Map<Node, NodeReference> nodes = new ConcurrentHashMap<Node, NodeReference>();
+	private final ReferenceQueue<NodeImpl> collected = new ReferenceQueue<NodeImpl>();
+
+	void put(Node stub, NodeImpl node) {
+		expungeCollected();
+		nodes.put(stub, new NodeReference(stub, node, collected));
+	}
+
+	/**
+	 * @return the node of the stub or null if the stub is not of a node exported here
+	 */
+	NodeImpl get(Node stub) {
+		NodeReference reference = nodes.get(stub);
+		return (reference != null) ? reference.get() : null;
+	}
+
+	NodeImpl remove(Node stub) {
+		NodeReference reference = nodes.remove(stub);
+		return (reference != null) ? reference.get() : null;
+	}
+
+	boolean isEmpty() {
+		return nodes.isEmpty();
+	}
+
+	private void expungeCollected() {
+		for (Reference<? extends NodeImpl> reference; (reference = collected.poll()) != null;)
+			nodes.remove(((NodeReference) reference).stub, reference);
+	}
+}
 
 class ServerNodeFactoryImpl extends UnicastRemoteObject implements NodeFactory {
+	// Nodes exported by this virtual machine, mapped by their stubs.
+	private static final ExportedNodes exportedNodes = new ExportedNodes();
+
 	public ServerNodeFactoryImpl() throws RemoteException {
 		super();
 	}
 
 	@Override
 	public Node createNode() throws RemoteException {
-		Node node = new NodeImpl();
-		UnicastRemoteObject.exportObject(node, 1234);
+		NodeImpl node = new NodeImpl();
+		Node stub = (Node) UnicastRemoteObject.exportObject(node, 1234);
+		exportedNodes.put(stub, node);
 		return node;
 	}
+
+	@Override
+	public void releaseNode(Node node) throws RemoteException {
+		NodeImpl local = exportedNodes.remove(node);
+		if (local != null) {
+			UnicastRemoteObject.unexportObject(local, true);
+			local.release();
+		}
+	}
+
+	/**
+	 * Gets the implementation of a node living in this virtual machine.
+	 *
+	 * Stubs of nodes exported by this virtual machine are resolved to the exported object.
+	 *
+	 * @return the node implementation or null if the node lives in another virtual machine
+	 */
+	static NodeImpl localNode(Node node) {
+		if (node instanceof NodeImpl)
+			return (NodeImpl) node;
+		return exportedNodes.get(node);
+	}
 }
 
 class ClientNodeFactoryImpl implements NodeFactory {
@@ -19,4 +98,52 @@ class ClientNodeFactoryImpl implements NodeFactory {
 	public Node createNode() throws RemoteException {
 		return new NodeImpl();
 	}
+
+	@Override
+	public void releaseNode(Node node) throws RemoteException {
+		if (node instanceof NodeImpl)
+			((NodeImpl) node).release();
+	}
+}
+
+/**
+ * Creates nodes living in the client virtual machine that nodes in other machines may refer to.
+ *
+ * Nodes are exported on an anonymous port, so an edge from a remote node leads back here.
+ * The client keeps using the node objects directly, stubs returned by remote calls
+ * are resolved to them by canonical so that every node has a single identity.
+ */
+class ExportedNodeFactoryImpl implements NodeFactory {
+	// Nodes exported by this factory, mapped by their stubs.
+	private static final ExportedNodes exportedNodes = new ExportedNodes();
+
+	@Override
+	public Node createNode() throws RemoteException {
+		NodeImpl node = new NodeImpl();
+		Node stub = (Node) UnicastRemoteObject.exportObject(node, 0);
+		exportedNodes.put(stub, node);
+		return node;
+	}
+
+	@Override
+	public void releaseNode(Node node) throws RemoteException {
+		NodeImpl local = (node instanceof NodeImpl) ? (NodeImpl) node : exportedNodes.get(node);
+		if (local == null)
+			return;
+		exportedNodes.remove((Node) UnicastRemoteObject.toStub(local));
+		UnicastRemoteObject.unexportObject(local, true);
+		local.release();
+	}
+
+	/**
+	 * Gets the single representation of a node used in this virtual machine.
+	 *
+	 * @return the exported node implementation for its stub, the node itself otherwise
+	 */
+	static Node canonical(Node node) {
+		if (node instanceof NodeImpl || exportedNodes.isEmpty())
+			return node;
+		NodeImpl local = exportedNodes.get(node);
+		return (local != null) ? local : node;
+	}
 }
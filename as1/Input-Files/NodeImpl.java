@@ -1,19 +1,30 @@
 import java.io.Serializable;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NodeImpl implements Node, Serializable {
+	// Identifies the epoch of this virtual machine to searchers in other ones.
+	private static final String EPOCH_SOURCE = UUID.randomUUID().toString();
+	// Mutation epoch shared by all nodes living in this virtual machine.
+	private static final AtomicLong epoch = new AtomicLong();
+
 	private final Set<Node> nodes = new HashSet<Node>();
 
 	public NodeImpl() throws RemoteException {
 		super();
+		Metrics.nodeCreated();
 	}
 
 	@Override
 	public Set<Node> getNeighbors() {
+		Metrics.GET_NEIGHBORS.record(Metrics.startTime());
 		return nodes;
 	}
 
@@ -22,6 +33,8 @@ public class NodeImpl implements Node, Serializable {
 		if (distance <= 0)
 			throw new IllegalArgumentException("Argument distance must be positive");
 
+		final long startTimeNs = Metrics.startTime();
+
 		Map<Node, Integer> nodeToDistance = new HashMap<Node, Integer>();
 		Set<Node> currentLayer = new HashSet<Node>();
 
@@ -36,7 +49,9 @@ public class NodeImpl implements Node, Serializable {
 			for (Node node : currentLayer) {
 				if (!nodeToDistance.containsKey(node)) {
 					nodeToDistance.put(node, i);
-					nextLayer.addAll(node.getNeighbors());
+					// Stubs of nodes exported by this machine may come back from remote nodes.
+					for (Node neighbor : node.getNeighbors())
+						nextLayer.add(ExportedNodeFactoryImpl.canonical(neighbor));
 				}
 			}
 
@@ -50,11 +65,61 @@ public class NodeImpl implements Node, Serializable {
 				nodeToDistance.put(node, distance);
 		}
 
+		Metrics.GET_TRANSITIVE_NEIGHBORS.record(startTimeNs);
 		return nodeToDistance;
 	}
 
+	@Override
+	public NeighborhoodCursor openTransitiveNeighbors(int distance) throws RemoteException {
+		NeighborhoodCursorImpl cursor = new NeighborhoodCursorImpl(this, distance);
+		// A cursor of an exported node is passed back to the remote caller by reference.
+		if (isExported())
+			cursor.export();
+		return cursor;
+	}
+
+	boolean isExported() {
+		try {
+			UnicastRemoteObject.toStub(this);
+			return true;
+		} catch (NoSuchObjectException e) {
+			return false;
+		}
+	}
+
 	@Override
 	public void addNeighbor(Node neighbor) {
-		nodes.add(neighbor);
+		if (nodes.add(neighbor))
+			Metrics.edgeAdded();
+		epoch.incrementAndGet();
+	}
+
+	@Override
+	public void replaceNeighbor(Node neighbor, Node replacement) {
+		if (!nodes.remove(neighbor))
+			return;
+		// The replacement may already be a neighbor, the two edges merge then.
+		if (!nodes.add(replacement))
+			Metrics.edgeRemoved();
+		epoch.incrementAndGet();
+	}
+
+	/**
+	 * Drops all edges of a node that is no longer part of the graph.
+	 */
+	void release() {
+		Metrics.nodeReleased(nodes.size());
+		nodes.clear();
+		epoch.incrementAndGet();
+	}
+
+	@Override
+	public long getEpoch() {
+		return epoch.get();
+	}
+
+	@Override
+	public String getEpochSource() {
+		return EPOCH_SOURCE;
 	}
 }
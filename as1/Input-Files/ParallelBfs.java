@@ -0,0 +1,274 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direction-optimizing parallel breadth-first search over a LocalGraph snapshot.
+ *
+ * Each level is expanded by fork-join workers either top-down, when the frontier
+ * claims its unvisited out-neighbors, or bottom-up, when unvisited nodes look for
+ * a parent in the frontier through the reverse adjacency. The direction is chosen
+ * per level by the heuristic of Beamer et al., bottom-up pays off once the frontier
+ * edges outnumber a fraction of the unexplored edges.
+ */
+class ParallelBfs {
+	// Switch to bottom-up when frontier edges exceed unexplored edges / ALPHA.
+	private static final int ALPHA = 14;
+	// Switch back to top-down when frontier nodes drop below all nodes / BETA.
+	private static final int BETA = 24;
+
+	// Frontier nodes expanded by a single top-down task.
+	private static final int TOP_DOWN_CHUNK = 256;
+	// Nodes checked by a single bottom-up task, a multiple of 64 so that tasks own whole bitset words.
+	private static final int BOTTOM_UP_CHUNK = 64 * 64;
+
+	/**
+	 * Frontier stored as a list of node ids, also counting the out-edges of its nodes.
+	 */
+	private static final class Frontier {
+		private int[] nodes = new int[64];
+		private int size = 0;
+		private long edges = 0;
+
+		void add(int node, int outDegree) {
+			if (size == nodes.length)
+				nodes = Arrays.copyOf(nodes, size * 2);
+			nodes[size++] = node;
+			edges += outDegree;
+		}
+	}
+
+	private final LocalGraph graph;
+	private final ForkJoinPool pool;
+
+	// Bitset of visited nodes, top-down workers claim nodes by compare-and-set.
+	private final AtomicLongArray visited;
+
+	private ParallelBfs(LocalGraph graph, ForkJoinPool pool) {
+		this.graph = graph;
+		this.pool = pool;
+		this.visited = new AtomicLongArray(words(graph.nodeCount()));
+	}
+
+	/**
+	 * Computes the distance between two nodes of the snapshot.
+	 * Returns DISTANCE_INFINITE if there is no path between them.
+	 */
+	static int distance(LocalGraph graph, int from, int to, ForkJoinPool pool, SearchEvent event) {
+		return new ParallelBfs(graph, pool).search(from, to, event);
+	}
+
+	private static int words(int bits) {
+		return (bits + 63) >>> 6;
+	}
+
+	private boolean isVisited(int node) {
+		return (visited.get(node >>> 6) & (1L << node)) != 0;
+	}
+
+	/**
+	 * Marks the node as visited, returns false when some other worker was faster.
+	 */
+	private boolean claim(int node) {
+		final int word = node >>> 6;
+		final long bit = 1L << node;
+		while (true) {
+			final long old = visited.get(word);
+			if ((old & bit) != 0)
+				return false;
+			if (visited.compareAndSet(word, old, old | bit))
+				return true;
+		}
+	}
+
+	private int search(int from, int to, SearchEvent event) {
+		if (from == to)
+			return 0;
+
+		final int nodes = graph.nodeCount();
+
+		// The frontier is kept either as a list (top-down) or as a bitset (bottom-up).
+		Frontier frontier = new Frontier();
+		long[] frontierBits = null;
+		boolean bottomUp = false;
+
+		claim(from);
+		frontier.add(from, graph.outDegree(from));
+		long frontierNodes = 1;
+		long frontierEdges = frontier.edges;
+		long unexploredEdges = graph.edgeCount() - frontierEdges;
+		long visitedNodes = 1;
+
+		int distance = 0;
+		while (frontierNodes > 0) {
+			distance++;
+			event.depth++;
+
+			// Pick the direction of this level.
+			if (!bottomUp && frontierEdges > unexploredEdges / ALPHA) {
+				bottomUp = true;
+				frontierBits = toBits(frontier, nodes);
+			} else if (bottomUp && frontierNodes < nodes / BETA) {
+				bottomUp = false;
+				frontier = toList(frontierBits, nodes);
+			}
+
+			if (bottomUp) {
+				long[] nextBits = new long[words(nodes)];
+				LongAdder nextNodes = new LongAdder();
+				LongAdder nextEdges = new LongAdder();
+				pool.invoke(new BottomUpTask(frontierBits, nextBits, nextNodes, nextEdges, 0, nodes));
+				frontierBits = nextBits;
+				frontierNodes = nextNodes.sum();
+				frontierEdges = nextEdges.sum();
+			} else {
+				ConcurrentLinkedQueue<Frontier> parts = new ConcurrentLinkedQueue<Frontier>();
+				pool.invoke(new TopDownTask(frontier.nodes, parts, 0, frontier.size));
+				frontier = merge(parts);
+				frontierNodes = frontier.size;
+				frontierEdges = frontier.edges;
+			}
+
+			unexploredEdges -= frontierEdges;
+			visitedNodes += frontierNodes;
+			event.visitedNodes = (int) visitedNodes;
+
+			if (isVisited(to))
+				return distance;
+		}
+
+		// Not having anything to visit means the target node cannot be reached.
+		return Searcher.DISTANCE_INFINITE;
+	}
+
+	private long[] toBits(Frontier frontier, int nodes) {
+		long[] bits = new long[words(nodes)];
+		for (int i = 0; i < frontier.size; i++)
+			bits[frontier.nodes[i] >>> 6] |= 1L << frontier.nodes[i];
+		return bits;
+	}
+
+	private Frontier toList(long[] bits, int nodes) {
+		Frontier frontier = new Frontier();
+		for (int word = 0; word < bits.length; word++) {
+			for (long w = bits[word]; w != 0; w &= w - 1) {
+				final int node = (word << 6) + Long.numberOfTrailingZeros(w);
+				frontier.add(node, graph.outDegree(node));
+			}
+		}
+		return frontier;
+	}
+
+	private static Frontier merge(ConcurrentLinkedQueue<Frontier> parts) {
+		int size = 0;
+		for (Frontier part : parts)
+			size += part.size;
+
+		Frontier merged = new Frontier();
+		merged.nodes = new int[Math.max(size, 1)];
+		for (Frontier part : parts) {
+			System.arraycopy(part.nodes, 0, merged.nodes, merged.size, part.size);
+			merged.size += part.size;
+			merged.edges += part.edges;
+		}
+		return merged;
+	}
+
+	/**
+	 * Expands frontier nodes [lo, hi) to their unvisited out-neighbors.
+	 */
+	private final class TopDownTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] frontier;
+		private final ConcurrentLinkedQueue<Frontier> parts;
+		private final int lo;
+		private final int hi;
+
+		TopDownTask(int[] frontier, ConcurrentLinkedQueue<Frontier> parts, int lo, int hi) {
+			this.frontier = frontier;
+			this.parts = parts;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > TOP_DOWN_CHUNK) {
+				final int mid = (lo + hi) >>> 1;
+				invokeAll(new TopDownTask(frontier, parts, lo, mid), new TopDownTask(frontier, parts, mid, hi));
+				return;
+			}
+
+			Frontier next = new Frontier();
+			for (int i = lo; i < hi; i++) {
+				final int node = frontier[i];
+				for (int e = graph.outOffsets[node]; e < graph.outOffsets[node + 1]; e++) {
+					final int neighbor = graph.outTargets[e];
+					if (claim(neighbor))
+						next.add(neighbor, graph.outDegree(neighbor));
+				}
+			}
+			if (next.size > 0)
+				parts.add(next);
+		}
+	}
+
+	/**
+	 * Checks unvisited nodes [lo, hi) for a parent in the frontier.
+	 */
+	private final class BottomUpTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final long[] frontierBits;
+		private final long[] nextBits;
+		private final LongAdder nextNodes;
+		private final LongAdder nextEdges;
+		private final int lo;
+		private final int hi;
+
+		BottomUpTask(long[] frontierBits, long[] nextBits, LongAdder nextNodes, LongAdder nextEdges, int lo, int hi) {
+			this.frontierBits = frontierBits;
+			this.nextBits = nextBits;
+			this.nextNodes = nextNodes;
+			this.nextEdges = nextEdges;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > BOTTOM_UP_CHUNK) {
+				// Split on a word boundary, so that each task owns its words of both bitsets.
+				final int mid = lo + (((hi - lo) >>> 1) & ~63);
+				invokeAll(new BottomUpTask(frontierBits, nextBits, nextNodes, nextEdges, lo, mid),
+					new BottomUpTask(frontierBits, nextBits, nextNodes, nextEdges, mid, hi));
+				return;
+			}
+
+			long count = 0;
+			long edges = 0;
+			for (int node = lo; node < hi; node++) {
+				if (isVisited(node))
+					continue;
+
+				for (int e = graph.inOffsets[node]; e < graph.inOffsets[node + 1]; e++) {
+					final int parent = graph.inSources[e];
+					if ((frontierBits[parent >>> 6] & (1L << parent)) != 0) {
+						// Nobody else writes this word during the level, a plain read-modify-write is enough.
+						visited.set(node >>> 6, visited.get(node >>> 6) | (1L << node));
+						nextBits[node >>> 6] |= 1L << node;
+						count++;
+						edges += graph.outDegree(node);
+						break;
+					}
+				}
+			}
+			nextNodes.add(count);
+			nextEdges.add(edges);
+		}
+	}
+}
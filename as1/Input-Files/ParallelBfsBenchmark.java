@@ -0,0 +1,87 @@
+import java.rmi.RemoteException;
+import java.util.Random;
+
+/**
+ * Compares the sequential and the parallel getDistance on large in-memory graphs.
+ *
+ * Prints csv with one line per search. The snapshot of the nodes reachable from
+ * the first node is taken before the measured searches and its cost is reported
+ * on stderr. The searcher keeps snapshots until the graph changes, but a parallel
+ * search from a node outside all kept snapshots still takes a snapshot of its own,
+ * which happens for sources outside the giant component of sparse graphs.
+ */
+public class ParallelBfsBenchmark {
+	// How many searches to perform on each graph
+	private static final int SEARCHES = 20;
+
+	public static void main(String[] args) {
+		long seed = (args.length < 1) ? System.currentTimeMillis() : Long.parseLong(args[0]);
+		int graphNodes = (args.length < 2) ? 100000 : Integer.parseInt(args[1]);
+		String degrees = (args.length < 3) ? "2,8,32" : args[2]; // average out-degrees, comma separated
+		boolean printHeader = (args.length < 4) ? true : Boolean.parseBoolean(args[3]);
+
+		Random random = new Random(seed);
+		try {
+			// Searchers without caching, forced to the sequential and the parallel algorithm respectively.
+			SearcherImpl sequentialSearcher = new SearcherImpl(0, Long.MAX_VALUE);
+			SearcherImpl parallelSearcher = new SearcherImpl(0, 0);
+
+			if (printHeader) {
+				System.out.printf("%s,%s,%s,%s,%s,%s,%s%n",
+					"attempt", "nodes", "edges", "distance", "sequential", "parallel", "threads");
+			}
+
+			for (String degree : degrees.split(",")) {
+				final int graphEdges = graphNodes * Integer.parseInt(degree.trim());
+				Node[] nodes = createGraph(graphNodes, graphEdges, random);
+
+				// Take the snapshot used by the following parallel searches from its nodes.
+				final long snapshotStartTimeNs = System.nanoTime();
+				parallelSearcher.getDistance(nodes[0], nodes[0]);
+				final long snapshotDurationNs = System.nanoTime() - snapshotStartTimeNs;
+				System.err.printf("Snapshot of %d nodes and %d edges taken in %d ms%n",
+					graphNodes, graphEdges, snapshotDurationNs / 1000000);
+
+				for (int i = 0; i < SEARCHES; i++) {
+					final int idxFrom = random.nextInt(graphNodes);
+					final int idxTo = random.nextInt(graphNodes);
+
+					final long sequentialStartTimeNs = System.nanoTime();
+					final int sequentialDistance = sequentialSearcher.getDistance(nodes[idxFrom], nodes[idxTo]);
+					final long sequentialDurationNs = System.nanoTime() - sequentialStartTimeNs;
+
+					final long parallelStartTimeNs = System.nanoTime();
+					final int parallelDistance = parallelSearcher.getDistance(nodes[idxFrom], nodes[idxTo]);
+					final long parallelDurationNs = System.nanoTime() - parallelStartTimeNs;
+
+					if (sequentialDistance != parallelDistance) {
+						System.err.printf("Inconsistent distances sequential(%d), parallel(%d)%n",
+							sequentialDistance, parallelDistance);
+					} else {
+						System.out.printf("%d,%d,%d,%d,%d,%d,%d%n",
+							i, graphNodes, graphEdges, sequentialDistance,
+							sequentialDurationNs / 1000, parallelDurationNs / 1000,
+							Runtime.getRuntime().availableProcessors());
+					}
+				}
+			}
+		} catch (Exception e) {
+			System.out.println("Benchmark Exception: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates a randomly connected graph of local nodes.
+	 */
+	private static Node[] createGraph(int howManyNodes, int howManyEdges, Random random) throws RemoteException {
+		Node[] nodes = new Node[howManyNodes];
+		for (int i = 0; i < howManyNodes; i++)
+			nodes[i] = new NodeImpl();
+
+		for (int i = 0; i < howManyEdges; i++)
+			nodes[random.nextInt(howManyNodes)].addNeighbor(nodes[random.nextInt(howManyNodes)]);
+
+		return nodes;
+	}
+}
@@ -0,0 +1,185 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Balanced partitioning of a graph minimizing the number of edges between parts.
+ *
+ * Nodes are first assigned by a linear deterministic greedy streaming pass in breadth-first
+ * order, every node joins the part holding most of its already assigned neighbors, penalized
+ * by how full the part is. Label propagation then repeatedly moves single nodes to the part
+ * holding most of their neighbors while the parts stay within capacity.
+ * Edge directions are ignored, an edge crosses the cut either way.
+ */
+class Partitioner {
+	private final int nodes;
+	// Undirected adjacency in compressed sparse row form, an edge is listed at both its ends.
+	private final int[] offsets;
+	private final int[] neighbors;
+
+	/**
+	 * @param nodes number of nodes
+	 * @param edgeFrom source node of every edge
+	 * @param edgeTo target node of every edge
+	 */
+	Partitioner(int nodes, int[] edgeFrom, int[] edgeTo) {
+		if (edgeFrom.length != edgeTo.length)
+			throw new IllegalArgumentException("Edge arrays must have the same length");
+
+		this.nodes = nodes;
+		this.offsets = new int[nodes + 1];
+		for (int i = 0; i < edgeFrom.length; i++) {
+			offsets[edgeFrom[i] + 1]++;
+			offsets[edgeTo[i] + 1]++;
+		}
+		for (int i = 0; i < nodes; i++)
+			offsets[i + 1] += offsets[i];
+
+		this.neighbors = new int[offsets[nodes]];
+		int[] next = Arrays.copyOf(offsets, nodes);
+		for (int i = 0; i < edgeFrom.length; i++) {
+			neighbors[next[edgeFrom[i]]++] = edgeTo[i];
+			neighbors[next[edgeTo[i]]++] = edgeFrom[i];
+		}
+	}
+
+	/**
+	 * Computes a balanced assignment of nodes to parts.
+	 *
+	 * @param parts number of parts
+	 * @param imbalance allowed relative excess of a part over the average part size
+	 * @param passes maximal number of label propagation passes
+	 * @return the part of every node
+	 */
+	int[] partition(int parts, double imbalance, int passes, Random random) {
+		if (parts <= 0)
+			throw new IllegalArgumentException("Argument parts must be positive");
+		if (imbalance < 0)
+			throw new IllegalArgumentException("Argument imbalance must not be negative");
+
+		final int capacity = (int) Math.ceil((double) nodes / parts * (1 + imbalance));
+		int[] assignment = new int[nodes];
+		int[] sizes = new int[parts];
+		int[] counts = new int[parts];
+		Arrays.fill(assignment, -1);
+
+		// Streaming pass, neighbors assigned before a node make its placement informed.
+		for (int node : breadthFirstOrder(random)) {
+			countNeighbors(node, assignment, counts);
+
+			int best = -1;
+			double bestScore = 0;
+			for (int part = 0; part < parts; part++) {
+				if (sizes[part] >= capacity)
+					continue;
+				final double score = counts[part] * (1 - (double) sizes[part] / capacity);
+				// Ties go to the smaller part, which also spreads nodes without assigned neighbors.
+				if (best < 0 || score > bestScore || (score == bestScore && sizes[part] < sizes[best])) {
+					best = part;
+					bestScore = score;
+				}
+			}
+			Arrays.fill(counts, 0);
+
+			assignment[node] = best;
+			sizes[best]++;
+		}
+
+		// Refinement, a node only moves when more of its neighbors live in the other part.
+		int[] order = new int[nodes];
+		for (int i = 0; i < nodes; i++)
+			order[i] = i;
+		for (int pass = 0; pass < passes; pass++) {
+			shuffle(order, random);
+
+			int moved = 0;
+			for (int node : order) {
+				countNeighbors(node, assignment, counts);
+
+				final int current = assignment[node];
+				int best = current;
+				for (int part = 0; part < parts; part++) {
+					if (sizes[part] < capacity && counts[part] > counts[best])
+						best = part;
+				}
+				Arrays.fill(counts, 0);
+
+				if (best != current) {
+					assignment[node] = best;
+					sizes[current]--;
+					sizes[best]++;
+					moved++;
+				}
+			}
+
+			if (moved == 0)
+				break;
+		}
+
+		return assignment;
+	}
+
+	/**
+	 * Counts the edges crossing between parts.
+	 */
+	static long cutSize(int[] edgeFrom, int[] edgeTo, int[] assignment) {
+		long cut = 0;
+		for (int i = 0; i < edgeFrom.length; i++) {
+			if (assignment[edgeFrom[i]] != assignment[edgeTo[i]])
+				cut++;
+		}
+		return cut;
+	}
+
+	/**
+	 * Counts the neighbors of a node in each part, unassigned neighbors are skipped.
+	 */
+	private void countNeighbors(int node, int[] assignment, int[] counts) {
+		for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+			final int part = assignment[neighbors[i]];
+			if (part >= 0)
+				counts[part]++;
+		}
+	}
+
+	/**
+	 * Orders nodes by breadth-first search from random roots, covering every component.
+	 */
+	private int[] breadthFirstOrder(Random random) {
+		int[] order = new int[nodes];
+		boolean[] seen = new boolean[nodes];
+		int[] roots = new int[nodes];
+		for (int i = 0; i < nodes; i++)
+			roots[i] = i;
+		shuffle(roots, random);
+
+		// The order array doubles as the queue of the search.
+		int tail = 0;
+		for (int root : roots) {
+			if (seen[root])
+				continue;
+			seen[root] = true;
+			int head = tail;
+			order[tail++] = root;
+			while (head < tail) {
+				final int node = order[head++];
+				for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+					final int neighbor = neighbors[i];
+					if (!seen[neighbor]) {
+						seen[neighbor] = true;
+						order[tail++] = neighbor;
+					}
+				}
+			}
+		}
+		return order;
+	}
+
+	private static void shuffle(int[] values, Random random) {
+		for (int i = values.length - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Placement of a graph whose nodes are spread over several virtual machines.
+ *
+ * The structure of the graph is read through the nodes themselves. Nodes move
+ * to another machine by migration: a replacement node is created by the factory
+ * of the target machine, it takes over the outgoing edges, every edge leading to
+ * the original node is redirected to it and the original node is released.
+ */
+class Placement {
+	// Current node objects, replaced by migration.
+	private final Node[] nodes;
+	// Index of the factory that created every node.
+	private final int[] parts;
+	// Factories creating nodes in each part.
+	private final NodeFactory[] factories;
+	// Edges between nodes of the array, neighbors outside it are ignored.
+	private final int[] edgeFrom;
+	private final int[] edgeTo;
+
+	/**
+	 * Reads the edges among the given nodes.
+	 *
+	 * @param nodes nodes of the graph
+	 * @param parts index of the factory that created every node
+	 * @param factories factories creating nodes in each part
+	 */
+	Placement(Node[] nodes, int[] parts, NodeFactory[] factories) throws RemoteException {
+		if (nodes.length != parts.length)
+			throw new IllegalArgumentException("Every node needs a part");
+
+		this.nodes = nodes.clone();
+		this.parts = parts.clone();
+		this.factories = factories.clone();
+
+		Map<Node, Integer> ids = new HashMap<Node, Integer>();
+		for (int i = 0; i < nodes.length; i++)
+			ids.put(ExportedNodeFactoryImpl.canonical(nodes[i]), i);
+
+		int[] from = new int[16];
+		int[] to = new int[16];
+		int edges = 0;
+		for (int i = 0; i < nodes.length; i++) {
+			for (Node neighbor : nodes[i].getNeighbors()) {
+				Integer id = ids.get(ExportedNodeFactoryImpl.canonical(neighbor));
+				if (id == null)
+					continue;
+				if (edges == from.length) {
+					from = Arrays.copyOf(from, edges * 2);
+					to = Arrays.copyOf(to, edges * 2);
+				}
+				from[edges] = i;
+				to[edges] = id;
+				edges++;
+			}
+		}
+		this.edgeFrom = Arrays.copyOf(from, edges);
+		this.edgeTo = Arrays.copyOf(to, edges);
+	}
+
+	Node node(int index) {
+		return nodes[index];
+	}
+
+	int nodeCount() {
+		return nodes.length;
+	}
+
+	int edgeCount() {
+		return edgeFrom.length;
+	}
+
+	/**
+	 * Counts the nodes placed in a part.
+	 */
+	int partSize(int part) {
+		int size = 0;
+		for (int nodePart : parts) {
+			if (nodePart == part)
+				size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Counts the edges between nodes in different parts, each of them costs a remote call to follow.
+	 */
+	long cutSize() {
+		return Partitioner.cutSize(edgeFrom, edgeTo, parts);
+	}
+
+	/**
+	 * Computes a placement with few edges between parts.
+	 *
+	 * @see Partitioner#partition
+	 */
+	int[] partition(double imbalance, int passes, Random random) {
+		return new Partitioner(nodes.length, edgeFrom, edgeTo).partition(factories.length, imbalance, passes, random);
+	}
+
+	/**
+	 * Migrates nodes to reach the target placement.
+	 *
+	 * @param target part of every node
+	 * @return the number of migrated nodes
+	 */
+	int migrate(int[] target) throws RemoteException {
+		if (target.length != nodes.length)
+			throw new IllegalArgumentException("Every node needs a target part");
+
+		// Create replacements first, so that edges between migrating nodes lead to replacements.
+		Node[] replacements = nodes.clone();
+		int migrated = 0;
+		for (int i = 0; i < nodes.length; i++) {
+			if (target[i] != parts[i]) {
+				replacements[i] = factories[target[i]].createNode();
+				migrated++;
+			}
+		}
+
+		for (int i = 0; i < edgeFrom.length; i++) {
+			final int from = edgeFrom[i];
+			final int to = edgeTo[i];
+			if (target[from] != parts[from])
+				replacements[from].addNeighbor(replacements[to]);
+			else if (target[to] != parts[to])
+				nodes[from].replaceNeighbor(nodes[to], replacements[to]);
+		}
+
+		// No edge leads to the original nodes any more.
+		for (int i = 0; i < nodes.length; i++) {
+			if (target[i] != parts[i]) {
+				factories[parts[i]].releaseNode(nodes[i]);
+				nodes[i] = replacements[i];
+				parts[i] = target[i];
+			}
+		}
+
+		return migrated;
+	}
+}
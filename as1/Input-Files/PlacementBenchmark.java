@@ -0,0 +1,148 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures searches over a graph spread between the client and the server, before and after
+ * a locality aware placement.
+ *
+ * Nodes of a synthetic graph are first placed in a random machine, so about half of the
+ * edges cross between machines. The graph is then partitioned to minimize the crossing
+ * edges and nodes placed in a wrong machine are migrated. Both placements report the number
+ * of crossing edges and the latency of the same searches by the local and remote searcher.
+ */
+public class PlacementBenchmark {
+	// Parts of the placement, indices into the factories.
+	private static final int CLIENT = 0;
+	private static final int SERVER = 1;
+
+	/**
+	 * Runs searches between the given pairs of nodes.
+	 *
+	 * @param latenciesNs receives the latency of every search, sorted
+	 * @return the distance of every pair
+	 */
+	private static int[] measure(Searcher searcher, Placement placement, int[] fromIdx, int[] toIdx, long[] latenciesNs) throws RemoteException {
+		int[] distances = new int[fromIdx.length];
+		for (int i = 0; i < fromIdx.length; i++) {
+			final long startTimeNs = System.nanoTime();
+			distances[i] = searcher.getDistance(placement.node(fromIdx[i]), placement.node(toIdx[i]));
+			latenciesNs[i] = System.nanoTime() - startTimeNs;
+		}
+		Arrays.sort(latenciesNs);
+		return distances;
+	}
+
+	/**
+	 * Gets the nearest-rank percentile of sorted values.
+	 */
+	private static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0)
+			return 0;
+		final int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	private static double mean(long[] values) {
+		double sum = 0;
+		for (long value : values)
+			sum += value;
+		return values.length > 0 ? sum / values.length : 0;
+	}
+
+	public static void main(String[] args) {
+		String host = (args.length < 1) ? "localhost" : args[0];
+		long seed = (args.length < 2) ? System.currentTimeMillis() : Long.parseLong(args[1]);
+		String topologyName = (args.length < 3) ? "grid" : args[2];
+		int graphNodes = (args.length < 4) ? 1000 : Integer.parseInt(args[3]);
+		int degree = (args.length < 5) ? 4 : Integer.parseInt(args[4]); // average out-degree
+		int searches = (args.length < 6) ? 50 : Integer.parseInt(args[5]);
+		int passes = (args.length < 7) ? 10 : Integer.parseInt(args[6]); // label propagation passes
+		double imbalance = (args.length < 8) ? 0.05 : Double.parseDouble(args[7]);
+		boolean printHeader = (args.length < 9) ? true : Boolean.parseBoolean(args[8]);
+
+		Random random = new Random(seed);
+		try {
+			Registry registry = LocateRegistry.getRegistry(host);
+			NodeFactory[] factories = new NodeFactory[2];
+			// Client nodes are exported, server nodes may keep edges to them.
+			factories[CLIENT] = new ExportedNodeFactoryImpl();
+			factories[SERVER] = (NodeFactory) registry.lookup("NodeFactory");
+			Searcher[] searchers = new Searcher[2];
+			// Searchers do not cache, both placements would share the results otherwise.
+			searchers[CLIENT] = new SearcherImpl(0);
+			searchers[SERVER] = (Searcher) registry.lookup("Searcher");
+			String[] searcherNames = { "local_searcher", "remote_searcher" };
+
+			// Random initial placement, as if every node was created wherever it was needed first.
+			final GraphGenerator.Topology topology = GraphGenerator.Topology.parse(topologyName);
+			final Node[] nodes = new Node[graphNodes];
+			int[] parts = new int[graphNodes];
+			for (int i = 0; i < graphNodes; i++) {
+				parts[i] = random.nextInt(2);
+				nodes[i] = factories[parts[i]].createNode();
+			}
+			GraphGenerator.generate(topology, graphNodes, (long) graphNodes * degree, random,
+				(from, to) -> nodes[from].addNeighbor(nodes[to]));
+
+			Placement placement = new Placement(nodes, parts, factories);
+
+			int[] fromIdx = new int[searches];
+			int[] toIdx = new int[searches];
+			for (int i = 0; i < searches; i++) {
+				fromIdx[i] = random.nextInt(graphNodes);
+				toIdx[i] = random.nextInt(graphNodes);
+			}
+			long[] latenciesNs = new long[searches];
+
+			if (printHeader) {
+				System.out.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s%n",
+					"placement", "topology", "nodes", "edges", "client_nodes", "server_nodes", "cut_edges",
+					"migrated", "migration_ms", "searcher", "mean", "p50", "p99", "speedup");
+			}
+
+			int[][] initialDistances = new int[searchers.length][];
+			double[] initialMeansUs = new double[searchers.length];
+			int migrated = 0;
+			double migrationMs = 0;
+			for (String phase : new String[] { "random", "partitioned" }) {
+				if ("partitioned".equals(phase)) {
+					final long migrationStartTimeNs = System.nanoTime();
+					int[] target = placement.partition(imbalance, passes, random);
+					migrated = placement.migrate(target);
+					migrationMs = (System.nanoTime() - migrationStartTimeNs) / 1e6;
+				}
+
+				for (int s = 0; s < searchers.length; s++) {
+					// Warm up on the same pairs, the first searches also pay for class loading and connections.
+					measure(searchers[s], placement, fromIdx, toIdx, latenciesNs);
+					int[] distances = measure(searchers[s], placement, fromIdx, toIdx, latenciesNs);
+					final double meanUs = mean(latenciesNs) / 1000;
+
+					// Migration must preserve the graph, distances are compared with the random placement.
+					if (initialDistances[s] == null) {
+						initialDistances[s] = distances;
+						initialMeansUs[s] = meanUs;
+					} else if (!Arrays.equals(initialDistances[s], distances)) {
+						System.err.printf("Inconsistent distances of %s after migration%n", searcherNames[s]);
+					}
+
+					System.out.printf("%s,%s,%d,%d,%d,%d,%d,%d,%.1f,%s,%.1f,%d,%d,%.2f%n",
+						phase, topologyName.trim().toLowerCase(), graphNodes, placement.edgeCount(),
+						placement.partSize(CLIENT), placement.partSize(SERVER), placement.cutSize(),
+						migrated, migrationMs, searcherNames[s], meanUs,
+						percentile(latenciesNs, 50) / 1000, percentile(latenciesNs, 99) / 1000,
+						initialMeansUs[s] / meanUs);
+				}
+			}
+		} catch (Exception e) {
+			System.out.println ("Client Exception: " + e.getMessage ());
+			e.printStackTrace ();
+		}
+
+		// Exported client nodes would keep the virtual machine running.
+		System.exit(0);
+	}
+}
@@ -0,0 +1,290 @@
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded LRU cache of computed distances.
+ *
+ * Entries are keyed by the identity of the two nodes and by the algorithm variant
+ * that computed them. Each entry remembers the mutation epochs of every machine
+ * whose nodes the search read; a lookup reads them again and treats the entry as
+ * stale if any changed, so any addNeighbor invalidates previous results without
+ * walking the cache. A hit costs one getEpoch call per remote machine of the entry,
+ * none for a graph living in the searcher's virtual machine.
+ *
+ * Nodes tell their machine by getEpochSource. The answers are remembered for a bounded
+ * number of nodes, so a search pays that call only for nodes the searcher has not met.
+ */
+class ResultCache {
+	/**
+	 * Algorithm variants whose results are cached separately.
+	 */
+	enum Variant {
+		BFS,
+		TRANSITIVE,
+		TRANSITIVE_BEST_FIRST,
+		TRANSITIVE_STREAMING
+	}
+
+	private static final class Key {
+		private final Node from;
+		private final Node to;
+		private final Variant variant;
+		// Only meaningful for transitive variants, zero otherwise.
+		private final int neighborDistance;
+
+		Key(Node from, Node to, Variant variant, int neighborDistance) {
+			this.from = from;
+			this.to = to;
+			this.variant = variant;
+			this.neighborDistance = neighborDistance;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return neighborDistance == other.neighborDistance
+				&& variant == other.variant
+				&& from.equals(other.from)
+				&& to.equals(other.to);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(from, to, variant, neighborDistance);
+		}
+	}
+
+	/**
+	 * Mutation epochs of the machines whose nodes a search read.
+	 *
+	 * The epoch of a machine is read when the search reaches its first node there,
+	 * before reading that node, so a mutation during the search makes the result stale.
+	 * Transitive neighborhoods are read by the remote node itself; when it read nodes
+	 * of a machine the search had not reached yet, the result is not cached at all,
+	 * which turns the cache off for such mixed graphs.
+	 */
+	static final class Epochs {
+		// Machine of the nodes living in this virtual machine.
+		private static final String LOCAL = "";
+
+		private final ResultCache cache;
+		private final boolean tracking;
+		// Machines mapped to one of their nodes, whose epoch is read again on lookup.
+		private final Map<String, Node> witnesses = new HashMap<String, Node>();
+		private final Map<String, Long> epochs = new HashMap<String, Long>();
+		private boolean complete = true;
+		private int remoteCalls = 0;
+
+		/**
+		 * @param cache remembers the machines of the nodes
+		 * @param tracking false for searches that are not cached, then nothing is read
+		 */
+		Epochs(ResultCache cache, boolean tracking) {
+			this.cache = cache;
+			this.tracking = tracking;
+		}
+
+		/**
+		 * Reads the epoch of the machine of a node the search is about to read, once per machine.
+		 */
+		void touch(Node node) throws RemoteException {
+			if (!tracking || !complete)
+				return;
+			final String machine = machineOf(node);
+			if (epochs.containsKey(machine))
+				return;
+			epochs.put(machine, epochOf(node));
+			witnesses.put(machine, node);
+			if (!LOCAL.equals(machine))
+				remoteCalls++;
+		}
+
+		/**
+		 * Records a node read by another node on behalf of the search, its machine must have been touched before.
+		 */
+		void readBy(Node node) throws RemoteException {
+			if (!tracking || !complete)
+				return;
+			if (!epochs.containsKey(machineOf(node)))
+				complete = false;
+		}
+
+		/**
+		 * Gets the number of getEpoch and getEpochSource calls made on remote nodes so far.
+		 */
+		int remoteCalls() {
+			return remoteCalls;
+		}
+
+		private boolean isCacheable() {
+			return tracking && complete;
+		}
+
+		/**
+		 * Reads the epochs again, returns false if any machine changed or is gone.
+		 */
+		private boolean validate() {
+			try {
+				for (Map.Entry<String, Node> witness : witnesses.entrySet()) {
+					if (epochOf(witness.getValue()) != epochs.get(witness.getKey()))
+						return false;
+				}
+				return true;
+			} catch (RemoteException e) {
+				return false;
+			}
+		}
+
+		private int remoteMachines() {
+			return witnesses.size() - (witnesses.containsKey(LOCAL) ? 1 : 0);
+		}
+
+		private static long epochOf(Node node) throws RemoteException {
+			NodeImpl local = ServerNodeFactoryImpl.localNode(node);
+			return (local != null) ? local.getEpoch() : node.getEpoch();
+		}
+
+		/**
+		 * Gets the machine a node lives in, asks the node only if the cache does not know it.
+		 *
+		 * @return LOCAL for nodes of this virtual machine, the node's epoch source otherwise
+		 */
+		private String machineOf(Node node) throws RemoteException {
+			if (ServerNodeFactoryImpl.localNode(node) != null)
+				return LOCAL;
+
+			String machine = cache.knownMachine(node);
+			if (machine == null) {
+				machine = node.getEpochSource();
+				remoteCalls++;
+				cache.rememberMachine(node, machine);
+			}
+			return machine;
+		}
+	}
+
+	private static final class Entry {
+		private final Epochs epochs;
+		private final int distance;
+
+		Entry(Epochs epochs, int distance) {
+			this.epochs = epochs;
+			this.distance = distance;
+		}
+	}
+
+	// Most nodes whose machines are remembered, their stubs keep the remote nodes alive.
+	private static final int MACHINES_CAPACITY = 1 << 16;
+
+	private final int capacity;
+	private final Map<Key, Entry> entries;
+	// Epoch sources of remote nodes, guarded by itself.
+	private final Map<Node, String> machines = new LinkedHashMap<Node, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Node, String> eldest) {
+			return size() > MACHINES_CAPACITY;
+		}
+	};
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param capacity maximum number of cached results, zero disables caching
+	 */
+	ResultCache(final int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Argument capacity must not be negative");
+
+		this.capacity = capacity;
+		// Access ordered map evicting the least recently used entry.
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return size() > ResultCache.this.capacity;
+			}
+		};
+	}
+
+	boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * Looks up a distance whose machines did not change since it was computed.
+	 *
+	 * The epochs are read outside the lock, the getEpoch calls of the entry are added to the event.
+	 *
+	 * @return the cached distance or null if there is no valid entry
+	 */
+	Integer get(Node from, Node to, Variant variant, int neighborDistance, SearchEvent event) {
+		final Key key = new Key(from, to, variant, neighborDistance);
+		final Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry != null) {
+			event.remoteCalls += entry.epochs.remoteMachines();
+			if (entry.epochs.validate()) {
+				synchronized (this) {
+					hits++;
+				}
+				return entry.distance;
+			}
+		}
+		synchronized (this) {
+			// Drop the stale entry right away so it does not occupy the capacity.
+			if (entry != null)
+				entries.remove(key, entry);
+			misses++;
+		}
+		return null;
+	}
+
+	/**
+	 * Counts a query answered without looking into the cache.
+	 */
+	synchronized void countMiss() {
+		misses++;
+	}
+
+	/**
+	 * Stores a distance computed by a search that read the machines of the epochs.
+	 */
+	synchronized void put(Node from, Node to, Variant variant, int neighborDistance, Epochs epochs, int distance) {
+		if (capacity == 0 || !epochs.isCacheable())
+			return;
+		entries.put(new Key(from, to, variant, neighborDistance), new Entry(epochs, distance));
+	}
+
+	private String knownMachine(Node node) {
+		synchronized (machines) {
+			return machines.get(node);
+		}
+	}
+
+	private void rememberMachine(Node node, String machine) {
+		synchronized (machines) {
+			machines.put(node, machine);
+		}
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,40 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event emitted for every distance search.
+ *
+ * The searcher fills in the counters while it traverses the graph.
+ */
+@Name("nswi080.Search")
+@Label("Distance Search")
+@Category("NSWI080")
+@Description("Distance search between two graph nodes")
+class SearchEvent extends Event {
+	@Label("Method")
+	String method;
+
+	@Label("Neighbor Distance")
+	@Description("Radius of transitive neighborhoods, zero for the plain search")
+	int neighborDistance;
+
+	@Label("Cached")
+	boolean cached;
+
+	@Label("Distance")
+	int distance;
+
+	@Label("Depth")
+	@Description("Number of expanded search layers")
+	int depth;
+
+	@Label("Visited Nodes")
+	int visitedNodes;
+
+	@Label("Remote Calls")
+	@Description("Number of calls on nodes living in another virtual machine")
+	int remoteCalls;
+}
@@ -16,4 +16,23 @@ public interface Searcher extends Remote {
 	 * Returns DISTANCE_INFINITE if there is no path between them.
 	 */
 	public int getDistanceTransitive(int neighborDistance, Node from, Node to) throws RemoteException;
+	/**
+	 * Computes the distance between nodes from and to, using a best-first algorithm that retrieves nodes transitively up to neighborDistance.
+	 * Returns DISTANCE_INFINITE if there is no path between them.
+	 */
+	public int getDistanceTransitiveBestFirst(int neighborDistance, Node from, Node to) throws RemoteException;
+	/**
+	 * Computes the distance between nodes from and to like getDistanceTransitiveBestFirst, but streams the transitive neighborhoods
+	 * in chunks and stops reading a neighborhood once its remaining nodes cannot shorten the path to the target.
+	 * Returns DISTANCE_INFINITE if there is no path between them.
+	 */
+	public int getDistanceTransitiveStreaming(int neighborDistance, Node from, Node to) throws RemoteException;
+	/**
+	 * Gets the number of distance queries answered from the result cache.
+	 */
+	public long getCacheHits() throws RemoteException;
+	/**
+	 * Gets the number of distance queries that had to be computed.
+	 */
+	public long getCacheMisses() throws RemoteException;
 }
@@ -1,16 +1,281 @@
 import java.rmi.RemoteException;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 class SearcherImpl implements Searcher {
+	// Number of nodes requested from a neighborhood cursor at once.
+	private static final int NEIGHBORHOOD_CHUNK_NODES = 256;
+
+	// Number of results kept in the result cache by default.
+	public static final int DEFAULT_CACHE_CAPACITY = 1024;
+
+	// Number of nodes of a local graph from which getDistance searches it in parallel by default.
+	public static final long DEFAULT_PARALLEL_THRESHOLD = 100000;
+
+	// Maximal number of snapshots of local graphs kept at once.
+	private static final int MAX_SNAPSHOTS = 8;
+
+	// Maximal number of local nodes remembered to reach nodes of other machines.
+	private static final int MAX_MIXED_SOURCES = 1024;
+
+	// Results of past searches, validated by the mutation epochs of the machines they read.
+	private final ResultCache cache;
+
+	// Minimal number of nodes of a local graph to use the parallel search.
+	private final long parallelThreshold;
+
+	// Snapshots of local graphs used by the parallel search, all taken at snapshotEpoch.
+	// Each holds all nodes reachable from its root, so it serves searches from any of its nodes.
+	private final List<LocalGraph> snapshots = new ArrayList<LocalGraph>();
+
+	// Local nodes reaching nodes of other machines at snapshotEpoch, they have no snapshot.
+	private final Set<NodeImpl> mixedSources = new HashSet<NodeImpl>();
+
+	// Epoch of the graph the snapshots are valid at, guarded by snapshots together with the above.
+	private long snapshotEpoch = -1;
+
+	// Number of nodes of the last large local graph searched, decides whether to take a snapshot.
+	private volatile long localGraphNodes = 0;
+
 	// Remotely accessible objects need a constructor.
 	public SearcherImpl () throws RemoteException
+	{
+		this (DEFAULT_CACHE_CAPACITY);
+	}
+
+	/**
+	 * @param cacheCapacity maximum number of cached results, zero disables caching
+	 */
+	public SearcherImpl (int cacheCapacity) throws RemoteException
+	{
+		this (cacheCapacity, DEFAULT_PARALLEL_THRESHOLD);
+	}
+
+	/**
+	 * @param cacheCapacity maximum number of cached results, zero disables caching
+	 * @param parallelThreshold minimal number of nodes of a local graph to search it in parallel
+	 */
+	public SearcherImpl (int cacheCapacity, long parallelThreshold) throws RemoteException
 	{
 		super ();
+		cache = new ResultCache(cacheCapacity);
+		this.parallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * A search algorithm filling in the statistics of the search event
+	 * and touching the machines of the nodes it reads in the epochs.
+	 */
+	private interface Search {
+		int compute(Node from, Node to, SearchEvent event, ResultCache.Epochs epochs) throws RemoteException;
+	}
+
+	/**
+	 * A transitive neighborhood read node by node.
+	 */
+	private interface Neighborhood {
+		/** Moves to the next node, returns false when there is none. */
+		boolean next() throws RemoteException;
+		Node node();
+		int distance();
+		/** Releases the neighborhood, also when not read to the end. */
+		void close() throws RemoteException;
+	}
+
+	/**
+	 * A neighborhood retrieved in a single call.
+	 */
+	private static class MapNeighborhood implements Neighborhood {
+		private final Iterator<Entry<Node, Integer>> entries;
+		private Entry<Node, Integer> current;
+
+		MapNeighborhood(Map<Node, Integer> neighborhood) {
+			entries = neighborhood.entrySet().iterator();
+		}
+
+		@Override
+		public boolean next() {
+			if (!entries.hasNext())
+				return false;
+			current = entries.next();
+			return true;
+		}
+
+		@Override
+		public Node node() {
+			return current.getKey();
+		}
+
+		@Override
+		public int distance() {
+			return current.getValue();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * A neighborhood streamed by a cursor in chunks ordered by distance.
+	 */
+	private static class StreamedNeighborhood implements Neighborhood {
+		private final NeighborhoodCursor cursor;
+		private final SearchEvent event;
+		private final int callsPerChunk;
+		private NeighborhoodChunk chunk = null;
+		private int index = 0;
+
+		StreamedNeighborhood(Node origin, int distance, SearchEvent event) throws RemoteException {
+			this.cursor = origin.openTransitiveNeighbors(distance);
+			this.event = event;
+			this.callsPerChunk = remoteCalls(origin);
+			event.remoteCalls += callsPerChunk;
+		}
+
+		@Override
+		public boolean next() throws RemoteException {
+			if (chunk == null || index + 1 >= chunk.nodes.length) {
+				if (chunk != null && chunk.last)
+					return false;
+				chunk = cursor.next(NEIGHBORHOOD_CHUNK_NODES);
+				event.remoteCalls += callsPerChunk;
+				index = -1;
+				return next();
+			}
+			index++;
+			return true;
+		}
+
+		@Override
+		public Node node() {
+			return chunk.nodes[index];
+		}
+
+		@Override
+		public int distance() {
+			return chunk.distances[index];
+		}
+
+		@Override
+		public void close() throws RemoteException {
+			// Exhausted cursors release themselves.
+			if (chunk == null || !chunk.last) {
+				cursor.close();
+				event.remoteCalls += callsPerChunk;
+			}
+		}
+	}
+
+	/**
+	 * Answers a query from the result cache or runs the search,
+	 * recording call statistics and a flight recorder event.
+	 */
+	private int search(MethodStats stats, ResultCache.Variant variant, int neighborDistance, Node fromNode, Node toNode, Search search) throws RemoteException {
+		// Stubs of nodes exported by this machine are searched as the nodes themselves.
+		final Node from = ExportedNodeFactoryImpl.canonical(fromNode);
+		final Node to = ExportedNodeFactoryImpl.canonical(toNode);
+		final long startTimeNs = Metrics.startTime();
+		SearchEvent event = new SearchEvent();
+		event.begin();
+		event.method = stats.getName();
+		event.neighborDistance = neighborDistance;
+		Metrics.searchStarted();
+		try {
+			final boolean cacheable = cache.isEnabled() && isShared(from) && isShared(to);
+			if (cacheable) {
+				Integer cached = cache.get(from, to, variant, neighborDistance, event);
+				if (cached != null) {
+					event.cached = true;
+					event.distance = cached;
+					return cached;
+				}
+			} else {
+				cache.countMiss();
+			}
+
+			// Epochs are read during the search, each before the first node of its machine.
+			ResultCache.Epochs epochs = new ResultCache.Epochs(cache, cacheable);
+			final int distance = search.compute(from, to, event, epochs);
+			event.remoteCalls += epochs.remoteCalls();
+			cache.put(from, to, variant, neighborDistance, epochs, distance);
+			event.distance = distance;
+			return distance;
+		} finally {
+			Metrics.searchEnded();
+			event.commit();
+			stats.record(startTimeNs);
+		}
+	}
+
+	/**
+	 * Tells whether a node is the same object in every query.
+	 *
+	 * Nodes passed by value to a remote call are fresh copies each time, caching
+	 * their results would only pin the copies until they are evicted.
+	 */
+	private static boolean isShared(Node node) {
+		if (!(node instanceof NodeImpl) || ((NodeImpl) node).isExported())
+			return true;
+		try {
+			RemoteServer.getClientHost();
+			return false;
+		} catch (ServerNotActiveException e) {
+			// A local call passes the node itself.
+			return true;
+		}
+	}
+
+	/**
+	 * Gets the number of remote calls caused by a call on the node, nodes are remote unless implemented in this machine.
+	 */
+	private static int remoteCalls(Node node) {
+		return (node instanceof NodeImpl) ? 0 : 1;
+	}
+
+	@Override
+	public int getDistance(Node from, Node to) throws RemoteException {
+		return search(Metrics.GET_DISTANCE, ResultCache.Variant.BFS, 0, from, to,
+			this::computeDistance);
+	}
+
+	@Override
+	public int getDistanceTransitive(int neighborDistance, Node from, Node to) throws RemoteException {
+		return search(Metrics.GET_DISTANCE_TRANSITIVE, ResultCache.Variant.TRANSITIVE, neighborDistance, from, to,
+			(source, target, event, epochs) -> computeDistanceTransitive(neighborDistance, source, target, event, epochs));
+	}
+
+	@Override
+	public int getDistanceTransitiveBestFirst(int neighborDistance, Node from, Node to) throws RemoteException {
+		return search(Metrics.GET_DISTANCE_TRANSITIVE_BEST_FIRST, ResultCache.Variant.TRANSITIVE_BEST_FIRST, neighborDistance, from, to,
+			(source, target, event, epochs) -> computeDistanceTransitiveBestFirst(neighborDistance, source, target, false, event, epochs));
+	}
+
+	@Override
+	public int getDistanceTransitiveStreaming(int neighborDistance, Node from, Node to) throws RemoteException {
+		return search(Metrics.GET_DISTANCE_TRANSITIVE_STREAMING, ResultCache.Variant.TRANSITIVE_STREAMING, neighborDistance, from, to,
+			(source, target, event, epochs) -> computeDistanceTransitiveBestFirst(neighborDistance, source, target, true, event, epochs));
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cache.getHits();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cache.getMisses();
 	}
 
 	/**
@@ -20,8 +285,18 @@ class SearcherImpl implements Searcher {
 	 * is always extended by immediate neighbors of all visited nodes,
 	 * until the target node is visited or no node is left.
 	 */
-	@Override
-	public int getDistance(Node from, Node to) throws RemoteException {
+	private int computeDistance(Node from, Node to, SearchEvent event, ResultCache.Epochs epochs) throws RemoteException {
+		// Large graphs living in this virtual machine are searched in parallel.
+		epochs.touch(from);
+		LocalGraph graph = localGraph(from);
+		if (graph != null && graph.nodeCount() >= parallelThreshold) {
+			final int toId = graph.idOf(to);
+			// Nodes missing in the snapshot are not reachable from the source node.
+			if (toId < 0)
+				return Searcher.DISTANCE_INFINITE;
+			return ParallelBfs.distance(graph, graph.idOf(from), toId, ForkJoinPool.commonPool(), event);
+		}
+
 		// visited keeps the nodes visited in past steps.
 		Set<Node> visited = new HashSet<Node>();
 		// boundary keeps the nodes visited in current step.
@@ -35,17 +310,25 @@ class SearcherImpl implements Searcher {
 		// Traverse the graph until finding the target node.
 		while (!boundary.contains(to)) {
 			// Not having anything to visit means the target node cannot be reached.
-			if (boundary.isEmpty())
-				return Searcher.DISTANCE_INFINITE;
+			if (boundary.isEmpty()) {
+				distance = Searcher.DISTANCE_INFINITE;
+				break;
+			}
 
 			Set<Node> traversing = new HashSet<Node>();
 
 			// Nodes visited in current step become nodes visited in past steps.
 			visited.addAll(boundary);
+			event.visitedNodes = visited.size();
+			event.depth++;
 
 			// Collect a set of immediate neighbors of nodes visited in current step.
-			for (Node node : boundary)
-				traversing.addAll(node.getNeighbors());
+			for (Node node : boundary) {
+				epochs.touch(node);
+				for (Node neighbor : node.getNeighbors())
+					traversing.add(ExportedNodeFactoryImpl.canonical(neighbor));
+				event.remoteCalls += remoteCalls(node);
+			}
 
 			// Out of immediate neighbors, consider only those not yet visited.
 			for (Iterator<Node> node = traversing.iterator(); node.hasNext();) {
@@ -59,9 +342,64 @@ class SearcherImpl implements Searcher {
 			distance++;
 		}
 
+		// A local graph this large is worth a snapshot for the following searches.
+		if (graph == null && visited.size() >= parallelThreshold && ServerNodeFactoryImpl.localNode(from) != null)
+			localGraphNodes = visited.size();
 		return distance;
 	}
 
+	/**
+	 * Gets an up to date snapshot of the local graph containing the given node.
+	 *
+	 * Snapshots are kept until the graph changes. A new one is taken only when no kept
+	 * snapshot contains the node and the last large local graph searched had at least
+	 * parallelThreshold nodes, so small graphs are never walked twice per search.
+	 *
+	 * @return the snapshot or null if there is none or the graph does not live in this virtual machine
+	 */
+	private LocalGraph localGraph(Node from) throws RemoteException {
+		NodeImpl source = ServerNodeFactoryImpl.localNode(from);
+		if (source == null)
+			return null;
+
+		final long epoch = source.getEpoch();
+		synchronized (snapshots) {
+			if (snapshotEpoch != epoch) {
+				snapshots.clear();
+				mixedSources.clear();
+				snapshotEpoch = epoch;
+			}
+			if (mixedSources.contains(source))
+				return null;
+			for (LocalGraph graph : snapshots) {
+				if (graph.idOf(source) >= 0)
+					return graph;
+			}
+		}
+		if (localGraphNodes < parallelThreshold)
+			return null;
+
+		final LocalGraph graph = LocalGraph.snapshot(source);
+		synchronized (snapshots) {
+			// A snapshot of a graph that changed meanwhile is used once, but not kept.
+			if (snapshotEpoch == epoch && (graph == null || graph.epoch == epoch)) {
+				if (graph == null) {
+					if (mixedSources.size() >= MAX_MIXED_SOURCES)
+						mixedSources.clear();
+					mixedSources.add(source);
+				} else {
+					// Snapshots of subgraphs of the new one are no longer needed.
+					snapshots.removeIf(kept -> graph.idOf(kept.root) >= 0);
+					if (snapshots.size() >= MAX_SNAPSHOTS)
+						snapshots.remove(0);
+					snapshots.add(graph);
+				}
+			}
+		}
+		localGraphNodes = (graph != null) ? graph.nodeCount() : 0;
+		return graph;
+	}
+
 	/**
 	 * A transitive distance measurement algorithm.
 	 *
@@ -69,8 +407,7 @@ class SearcherImpl implements Searcher {
 	 * is always extended by transitive neighbors of all visited
 	 * nodes, until the target node is visited or no node is left.
 	 */
-	@Override
-	public int getDistanceTransitive(int neighborDistance, Node from, Node to) throws RemoteException {
+	private int computeDistanceTransitive(int neighborDistance, Node from, Node to, SearchEvent event, ResultCache.Epochs epochs) throws RemoteException {
 		// visited keeps the nodes visited in past steps.
 		Set<Node> visited = new HashSet<Node>();
 		// boundary keeps the nodes visited in current step.
@@ -83,6 +420,7 @@ class SearcherImpl implements Searcher {
 		while (!boundary.isEmpty()) {
 
 			Map<Node, Integer> traversing = new HashMap<Node, Integer>();
+			event.depth++;
 
 			// Collect transitive neighbors of nodes visited in current step
 			for (Entry<Node, Integer> currentTuple : boundary.entrySet()) {
@@ -92,11 +430,16 @@ class SearcherImpl implements Searcher {
 					continue;
 				}
 
+				epochs.touch(currentNode);
 				Map<Node, Integer> partialGraph = currentNode.getTransitiveNeighbors(neighborDistance);
+				event.remoteCalls += remoteCalls(currentNode);
 
 				// Store the distance of each transitive neighbor
 				for (Entry<Node, Integer> searchedTuple : partialGraph.entrySet()) {
-					final Node searchedNode = searchedTuple.getKey();
+					final Node searchedNode = ExportedNodeFactoryImpl.canonical(searchedTuple.getKey());
+					// Neighbors of nodes closer than neighborDistance were read by currentNode.
+					if (searchedTuple.getValue() < neighborDistance)
+						epochs.readBy(searchedNode);
 					final int newDistance = currentDistance + searchedTuple.getValue();
 
 					Integer oldDistance = traversing.get(searchedNode);
@@ -107,6 +450,7 @@ class SearcherImpl implements Searcher {
 				// Nodes visited in current step become nodes visited in past steps
 				visited.add(currentNode);
 			}
+			event.visitedNodes = visited.size();
 
 			// Check if the distance to the destination has been computed
 			Integer distance = traversing.get(to);
@@ -118,4 +462,124 @@ class SearcherImpl implements Searcher {
 		// Not having anything to visit means the target node cannot be reached.
 		return Searcher.DISTANCE_INFINITE;
 	}
+
+	/**
+	 * A best-first transitive distance measurement algorithm.
+	 *
+	 * Dijkstra's algorithm over super-edges given by transitive neighborhoods,
+	 * the search stops as soon as no queued node can improve the distance of the target node.
+	 *
+	 * Only nodes lying exactly neighborDistance away from an expanded node
+	 * on some shortest path are expanded. Any shortest path longer than
+	 * neighborDistance passes through such a node, while neighbors of nodes
+	 * closer to the expanded node are already part of its neighborhood.
+	 * Every node is expanded at most once.
+	 *
+	 * Streamed neighborhoods arrive nearest first, so reading one stops as soon as
+	 * its remaining nodes are at least as far as the best known path to the target.
+	 */
+	private int computeDistanceTransitiveBestFirst(int neighborDistance, Node from, Node to, boolean streaming, SearchEvent event, ResultCache.Epochs epochs) throws RemoteException {
+		if (neighborDistance <= 0)
+			throw new IllegalArgumentException("Argument neighborDistance must be positive");
+
+		// Nodes are numbered in the order of discovery, per node state is kept in primitive arrays.
+		Map<Node, Integer> ids = new HashMap<Node, Integer>();
+		List<Node> nodes = new ArrayList<Node>();
+		int[] distances = new int[16];
+		int[] hops = new int[16];
+		// settled keeps the nodes with final distance, expand the nodes to retrieve neighborhoods of.
+		BitSet settled = new BitSet();
+		BitSet expand = new BitSet();
+		// Queue entries pack the tentative distance in upper and the node id in lower half.
+		LongMinHeap queue = new LongMinHeap();
+		// Id of the target node once discovered.
+		int toId = from.equals(to) ? 0 : -1;
+
+		// We start from the source node.
+		ids.put(from, 0);
+		nodes.add(from);
+		distances[0] = 0;
+		hops[0] = 0;
+		expand.set(0);
+		queue.push(0);
+
+		while (!queue.isEmpty()) {
+			final long entry = queue.pop();
+			final int currentId = (int) entry;
+			final int currentDistance = (int) (entry >>> 32);
+
+			// Skip outdated queue entries of already settled nodes.
+			if (settled.get(currentId))
+				continue;
+			settled.set(currentId);
+
+			// No remaining node can shorten the path to the target node by a super-edge
+			// of length at least one, the target node is effectively settled.
+			if (toId >= 0 && currentDistance + 1 >= distances[toId]) {
+				event.depth = hops[toId];
+				return distances[toId];
+			}
+
+			final Node currentNode = nodes.get(currentId);
+			event.visitedNodes++;
+
+			if (!expand.get(currentId))
+				continue;
+
+			epochs.touch(currentNode);
+			Neighborhood neighborhood;
+			if (streaming) {
+				neighborhood = new StreamedNeighborhood(currentNode, neighborDistance, event);
+			} else {
+				neighborhood = new MapNeighborhood(currentNode.getTransitiveNeighbors(neighborDistance));
+				event.remoteCalls += remoteCalls(currentNode);
+			}
+
+			// Relax the super-edges to all transitive neighbors.
+			try {
+				while (neighborhood.next()) {
+					final Node searchedNode = ExportedNodeFactoryImpl.canonical(neighborhood.node());
+					final int edgeDistance = neighborhood.distance();
+					final int newDistance = currentDistance + edgeDistance;
+					// Neighbors of nodes closer than neighborDistance were read by currentNode.
+					if (edgeDistance < neighborDistance)
+						epochs.readBy(searchedNode);
+
+					// The rest of a streamed neighborhood is not closer than the target.
+					if (streaming && toId >= 0 && newDistance >= distances[toId])
+						break;
+
+					Integer searchedId = ids.get(searchedNode);
+					if (searchedId == null) {
+						searchedId = nodes.size();
+						ids.put(searchedNode, searchedId);
+						nodes.add(searchedNode);
+						if (searchedNode.equals(to))
+							toId = searchedId;
+						if (searchedId == distances.length) {
+							distances = Arrays.copyOf(distances, searchedId * 2);
+							hops = Arrays.copyOf(hops, searchedId * 2);
+						}
+					} else if (settled.get(searchedId) || newDistance > distances[searchedId]) {
+						continue;
+					} else if (newDistance == distances[searchedId]) {
+						// An equally short path may still make the node worth expanding.
+						if (edgeDistance == neighborDistance)
+							expand.set(searchedId);
+						continue;
+					}
+
+					distances[searchedId] = newDistance;
+					hops[searchedId] = hops[currentId] + 1;
+					expand.set(searchedId, edgeDistance == neighborDistance);
+					queue.push(((long) newDistance << 32) | searchedId);
+				}
+			} finally {
+				neighborhood.close();
+			}
+		}
+
+		// Not having anything to visit means the target node cannot be reached.
+		return Searcher.DISTANCE_INFINITE;
+	}
 }
@@ -4,12 +4,17 @@ import java.rmi.registry.Registry;
 
 public class Server {
 	public static void main(String args[]) {
+		int cacheCapacity = (args.length < 1) ? SearcherImpl.DEFAULT_CACHE_CAPACITY : Integer.parseInt(args[0]);
+
 		try {
 			Registry registry = LocateRegistry.getRegistry();
 
+			// Publish graph and searcher statistics as MBeans, this also enables their collection.
+			Metrics.register();
+
 			// Instantiate the remotely accessible object. The constructor
 			// of the object automatically exports it for remote invocation.
-			SearcherImpl searcherStub = new SearcherImpl();
+			SearcherImpl searcherStub = new SearcherImpl(cacheCapacity);
 			UnicastRemoteObject.exportObject(searcherStub, 0);
 			registry.rebind("Searcher", searcherStub);
 
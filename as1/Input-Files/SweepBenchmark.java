@@ -0,0 +1,242 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Parameter sweep of the searchers over synthetic graphs in a single virtual machine.
+ *
+ * For every topology, number of nodes and average out-degree a graph is generated,
+ * then every searcher variant is measured in repeated trials. Each trial measures
+ * the mean latency of a batch of searches, lines with the mean over trials and its
+ * 95% confidence interval are streamed as csv right after each graph is measured.
+ * The remote searcher keeps its result cache, so every line also reports the share
+ * of its searches answered from the cache.
+ */
+public class SweepBenchmark {
+	// Quantiles of the t-distribution for a two-sided 95% interval, indexed by degrees of freedom.
+	private static final double[] T_QUANTILES = {
+		Double.NaN, 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+		2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+		2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+	};
+
+	/**
+	 * A distance query issued by one variant.
+	 */
+	private interface Query {
+		int run(Node from, Node to) throws RemoteException;
+	}
+
+	/**
+	 * Combination of a searcher, node locality and algorithm.
+	 */
+	private static class Variant {
+		private final String name;
+		private final Searcher searcher;
+		private final Node[] nodes;
+		private final Query query;
+		private final double[] trialMeansUs;
+		private long cacheHits = 0;
+		private long cacheMisses = 0;
+
+		Variant(String name, Searcher searcher, Node[] nodes, Query query, int trials) {
+			this.name = name;
+			this.searcher = searcher;
+			this.nodes = nodes;
+			this.query = query;
+			this.trialMeansUs = new double[trials];
+		}
+	}
+
+	private static Node[] createNodes(int howMany, NodeFactory nodeFactory) throws RemoteException {
+		Node[] nodes = new Node[howMany];
+		for (int i = 0; i < howMany; i++)
+			nodes[i] = nodeFactory.createNode();
+		return nodes;
+	}
+
+	/**
+	 * Creates the variants measured on one graph, remote ones only when connected to a server.
+	 */
+	private static List<Variant> createVariants(Searcher localSearcher, Searcher remoteSearcher,
+	                                            Node[] localNodes, Node[] remoteNodes, int[] transitiveNs, int trials) {
+		List<Variant> variants = new ArrayList<Variant>();
+		List<String> prefixes = new ArrayList<String>();
+		List<Searcher> searchers = new ArrayList<Searcher>();
+		List<Node[]> nodeSets = new ArrayList<Node[]>();
+
+		prefixes.add("local_searcher-local_nodes");
+		searchers.add(localSearcher);
+		nodeSets.add(localNodes);
+		if (remoteSearcher != null) {
+			prefixes.add("local_searcher-remote_nodes");
+			searchers.add(localSearcher);
+			nodeSets.add(remoteNodes);
+			prefixes.add("remote_searcher-local_nodes");
+			searchers.add(remoteSearcher);
+			nodeSets.add(localNodes);
+			prefixes.add("remote_searcher-remote_nodes");
+			searchers.add(remoteSearcher);
+			nodeSets.add(remoteNodes);
+		}
+
+		for (int i = 0; i < prefixes.size(); i++) {
+			final Searcher searcher = searchers.get(i);
+			variants.add(new Variant(prefixes.get(i), searcher, nodeSets.get(i),
+				(from, to) -> searcher.getDistance(from, to), trials));
+			for (final int n : transitiveNs) {
+				variants.add(new Variant(prefixes.get(i) + "-transitive-" + n, searcher, nodeSets.get(i),
+					(from, to) -> searcher.getDistanceTransitive(n, from, to), trials));
+				variants.add(new Variant(prefixes.get(i) + "-best_first-" + n, searcher, nodeSets.get(i),
+					(from, to) -> searcher.getDistanceTransitiveBestFirst(n, from, to), trials));
+				variants.add(new Variant(prefixes.get(i) + "-streaming-" + n, searcher, nodeSets.get(i),
+					(from, to) -> searcher.getDistanceTransitiveStreaming(n, from, to), trials));
+			}
+		}
+		return variants;
+	}
+
+	/**
+	 * Measures all variants on the same pairs of nodes in repeated trials.
+	 */
+	private static void measure(List<Variant> variants, int nodes, int trials, int searches, Random random) throws RemoteException {
+		int[] fromIdx = new int[searches];
+		int[] toIdx = new int[searches];
+		int[] distances = new int[searches];
+
+		for (int trial = 0; trial < trials; trial++) {
+			for (int i = 0; i < searches; i++) {
+				fromIdx[i] = random.nextInt(nodes);
+				toIdx[i] = random.nextInt(nodes);
+			}
+
+			for (int v = 0; v < variants.size(); v++) {
+				Variant variant = variants.get(v);
+				// Counters are read outside of the timed searches.
+				final long hitsBefore = variant.searcher.getCacheHits();
+				final long missesBefore = variant.searcher.getCacheMisses();
+
+				long totalNs = 0;
+				for (int i = 0; i < searches; i++) {
+					final long startTimeNs = System.nanoTime();
+					final int distance = variant.query.run(variant.nodes[fromIdx[i]], variant.nodes[toIdx[i]]);
+					totalNs += System.nanoTime() - startTimeNs;
+
+					// The first variant is the plain search giving the reference distances.
+					if (v == 0)
+						distances[i] = distance;
+					else if (distance != distances[i] && !variant.name.contains("-transitive-"))
+						System.err.printf("Inconsistent distance %s(%d), expected %d%n", variant.name, distance, distances[i]);
+				}
+				variant.trialMeansUs[trial] = totalNs / 1000.0 / searches;
+				variant.cacheHits += variant.searcher.getCacheHits() - hitsBefore;
+				variant.cacheMisses += variant.searcher.getCacheMisses() - missesBefore;
+			}
+		}
+	}
+
+	private static void printResults(String topology, int nodes, long edges, List<Variant> variants, int trials, int searches) {
+		for (Variant variant : variants) {
+			double sum = 0;
+			double min = Double.MAX_VALUE;
+			double max = 0;
+			for (double value : variant.trialMeansUs) {
+				sum += value;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			final double mean = sum / trials;
+
+			double squares = 0;
+			for (double value : variant.trialMeansUs)
+				squares += (value - mean) * (value - mean);
+			final double ci = trials > 1
+				? tQuantile(trials - 1) * Math.sqrt(squares / (trials - 1)) / Math.sqrt(trials)
+				: Double.NaN;
+
+			final long lookups = variant.cacheHits + variant.cacheMisses;
+			final double hitRatio = lookups > 0 ? (double) variant.cacheHits / lookups : 0;
+
+			System.out.printf("%s,%d,%d,%s,%d,%d,%.1f,%.1f,%.1f,%.1f,%.3f%n",
+				topology, nodes, edges, variant.name, trials, searches, mean, ci, min, max, hitRatio);
+		}
+		System.out.flush();
+	}
+
+	private static double tQuantile(int degreesOfFreedom) {
+		return degreesOfFreedom < T_QUANTILES.length ? T_QUANTILES[degreesOfFreedom] : 1.960;
+	}
+
+	private static int[] parseInts(String values) {
+		String[] parts = values.split(",");
+		int[] result = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			result[i] = Integer.parseInt(parts[i].trim());
+		return result;
+	}
+
+	public static void main(String[] args) {
+		String host = (args.length < 1) ? "none" : args[0]; // "none" measures only local searcher and nodes
+		long seed = (args.length < 2) ? System.currentTimeMillis() : Long.parseLong(args[1]);
+		String topologies = (args.length < 3) ? "erdos_renyi,barabasi_albert,grid,small_world" : args[2];
+		int[] nodeCounts = (args.length < 4) ? new int[] { 100, 1000 } : parseInts(args[3]);
+		int[] degrees = (args.length < 5) ? new int[] { 2, 4 } : parseInts(args[4]); // average out-degrees
+		int[] transitiveNs = (args.length < 6) ? new int[] { 4, 8 } : parseInts(args[5]);
+		int trials = (args.length < 7) ? 10 : Integer.parseInt(args[6]);
+		int searches = (args.length < 8) ? 20 : Integer.parseInt(args[7]); // per trial
+		boolean printHeader = (args.length < 9) ? true : Boolean.parseBoolean(args[8]);
+
+		Random random = new Random(seed);
+		try {
+			NodeFactory localNodeFactory = new ClientNodeFactoryImpl();
+			// The local searcher does not cache, repeated pairs would measure the cache instead of the search.
+			Searcher localSearcher = new SearcherImpl(0);
+			NodeFactory remoteNodeFactory = null;
+			Searcher remoteSearcher = null;
+			if (!"none".equals(host)) {
+				Registry registry = LocateRegistry.getRegistry(host);
+				remoteNodeFactory = (NodeFactory) registry.lookup("NodeFactory");
+				remoteSearcher = (Searcher) registry.lookup("Searcher");
+			}
+
+			// Warm up on a small graph, the results are not reported.
+			{
+				Node[] localNodes = createNodes(100, localNodeFactory);
+				GraphGenerator.generate(GraphGenerator.Topology.ERDOS_RENYI, 100, 300, new Random(seed),
+					(from, to) -> localNodes[from].addNeighbor(localNodes[to]));
+				measure(createVariants(localSearcher, null, localNodes, null, transitiveNs, 5), 100, 5, searches, new Random(seed));
+			}
+
+			if (printHeader) {
+				System.out.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s%n",
+					"topology", "nodes", "edges", "variant", "trials", "searches", "mean", "ci95", "min", "max", "cache_hit_ratio");
+			}
+
+			for (String topologyName : topologies.split(",")) {
+				final GraphGenerator.Topology topology = GraphGenerator.Topology.parse(topologyName);
+				for (int nodes : nodeCounts) {
+					for (int degree : degrees) {
+						// Both graphs get the same edges, the remote one only when connected to a server.
+						final Node[] localNodes = createNodes(nodes, localNodeFactory);
+						final Node[] remoteNodes = (remoteNodeFactory != null) ? createNodes(nodes, remoteNodeFactory) : null;
+						final long edges = GraphGenerator.generate(topology, nodes, (long) nodes * degree, random, (from, to) -> {
+							localNodes[from].addNeighbor(localNodes[to]);
+							if (remoteNodes != null)
+								remoteNodes[from].addNeighbor(remoteNodes[to]);
+						});
+
+						List<Variant> variants = createVariants(localSearcher, remoteSearcher, localNodes, remoteNodes, transitiveNs, trials);
+						measure(variants, nodes, trials, searches, random);
+						printResults(topologyName.trim().toLowerCase(), nodes, edges, variants, trials, searches);
+					}
+				}
+			}
+		} catch (Exception e) {
+			System.out.println ("Client Exception: " + e.getMessage ());
+			e.printStackTrace ();
+		}
+	}
+}
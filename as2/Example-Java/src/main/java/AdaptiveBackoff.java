@@ -0,0 +1,37 @@
+/**
+ * Delay between polls of a pending search that adapts to the server.
+ *
+ * Every poll that finds the search pending doubles the delay, every poll
+ * that returns items halves it, so the delay settles around the rate at
+ * which the server produces items instead of a fixed sleep.
+ */
+public class AdaptiveBackoff {
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private long delayMs;
+
+    public AdaptiveBackoff(long minDelayMs, long maxDelayMs) {
+        if (minDelayMs <= 0 || maxDelayMs < minDelayMs) {
+            throw new IllegalArgumentException("Delays must be positive and ordered");
+        }
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.delayMs = minDelayMs;
+    }
+
+    /** Waits after a poll that found the search pending. */
+    public void pending() throws InterruptedException {
+        Thread.sleep(delayMs);
+        delayMs = Math.min(maxDelayMs, delayMs * 2);
+    }
+
+    /** Records a poll that returned items. */
+    public void progress() {
+        delayMs = Math.max(minDelayMs, delayMs / 2);
+    }
+
+    /** Delay of the next wait. */
+    public long getDelayMs() {
+        return delayMs;
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.thrift.TAsyncProcessor;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolDecorator;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.AbstractNonblockingServer.AsyncFrameBuffer;
+
+/**
+ * Multiplexes asynchronous processors of several services, like TMultiplexedProcessor does for synchronous ones.
+ *
+ * The service name is read from the message, the rest of the message is passed to the processor
+ * of that service. The server has to read its input by protocols of inputProtocolFactory(),
+ * which let the processor read the message again without the service name.
+ */
+public class AsyncMultiplexedProcessor implements TAsyncProcessor, TProcessor {
+    private final Map<String, TAsyncProcessor> processors = new HashMap<>();
+
+    /**
+     * An input protocol that returns a message put back by the multiplexer once more.
+     */
+    private static class MessageProtocol extends TProtocolDecorator {
+        private TMessage storedMessage = null;
+
+        MessageProtocol(TProtocol protocol) {
+            super(protocol);
+        }
+
+        @Override
+        public TMessage readMessageBegin() throws TException {
+            if (storedMessage != null) {
+                TMessage message = storedMessage;
+                storedMessage = null;
+                return message;
+            }
+            return super.readMessageBegin();
+        }
+    }
+
+    /**
+     * Wraps a protocol factory so that the multiplexer can read the input of its protocols.
+     */
+    public static TProtocolFactory inputProtocolFactory(TProtocolFactory factory) {
+        return transport -> new MessageProtocol(factory.getProtocol(transport));
+    }
+
+    public void registerProcessor(String serviceName, TAsyncProcessor processor) {
+        processors.put(serviceName, processor);
+    }
+
+    @Override
+    public void process(AsyncFrameBuffer frameBuffer) throws TException {
+        TProtocol input = frameBuffer.getInputProtocol();
+        if (!(input instanceof MessageProtocol)) {
+            throw new TException("Input protocol was not created by AsyncMultiplexedProcessor.inputProtocolFactory()");
+        }
+
+        TMessage message = input.readMessageBegin();
+        int separator = message.name.indexOf(TMultiplexedProtocol.SEPARATOR);
+        if (separator < 0) {
+            throw new TProtocolException("Service name not found in message name: " + message.name
+                + ". Did you forget to use a TMultiplexProtocol in your client?");
+        }
+
+        String serviceName = message.name.substring(0, separator);
+        TAsyncProcessor processor = processors.get(serviceName);
+        if (processor == null) {
+            throw new TProtocolException("Service name not found: " + serviceName
+                + ". Did you forget to call registerProcessor()?");
+        }
+
+        // Let the service processor read the message without the service name
+        ((MessageProtocol) input).storedMessage = new TMessage(
+            message.name.substring(separator + TMultiplexedProtocol.SEPARATOR.length()), message.type, message.seqid);
+        processor.process(frameBuffer);
+    }
+
+    @Override
+    public void process(TProtocol in, TProtocol out) throws TException {
+        throw new TException("AsyncMultiplexedProcessor only serves asynchronous frame buffers");
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Search of a session served from a shared SearchResult.
+ *
+ * The cursor into the result is the number of items fetched so far passed in the search
+ * state, so sessions reading the same result do not affect each other. The report of
+ * the fetched items is kept per session to verify the client's report.
+ */
+public class CachedSearch implements SessionSearch {
+    private final SearchResult result;
+    private final int countEstimate;
+    private final ReportBuilder report = new ReportBuilder();
+
+    // Cursor of the last fetch, a waiting fetch waits for items beyond it
+    private int cursor = 0;
+    private boolean closed = false;
+    private Runnable readyListener = null;
+
+    public CachedSearch(SearchResult result, int countEstimate) {
+        this.result = result;
+        this.countEstimate = countEstimate;
+    }
+
+    @Override
+    public int getCountEstimate() {
+        return countEstimate;
+    }
+
+    @Override
+    public boolean whenReady(Runnable listener) {
+        int readyCursor;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            readyCursor = cursor;
+            readyListener = listener;
+        }
+        // The result calls listeners outside its lock, so this one is not locked here either
+        if (!result.whenReady(readyCursor, listener)) {
+            synchronized (this) {
+                readyListener = null;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized FetchResult fetchNext(SearchState prevState) throws ProtocolException {
+        int fetchedItems = prevState.getFetchedItems();
+        if (fetchedItems < 0 || fetchedItems > result.getAvailable()) {
+            throw new ProtocolException("Error fetch: " + fetchedItems + " items cannot have been fetched.");
+        }
+
+        boolean multiple = prevState.isSupportMultipleItems();
+        int maxItems = 1;
+        if (multiple) {
+            maxItems = (prevState.isSetMaxItems() && prevState.getMaxItems() > 0) ? prevState.getMaxItems() : Integer.MAX_VALUE;
+        }
+        List<Item> items = result.read(fetchedItems, maxItems);
+        if (items == null) {
+            return new FetchResult().setState(FetchState.ENDED);
+        }
+        cursor = fetchedItems + items.size();
+        if (items.isEmpty()) {
+            return new FetchResult().setState(FetchState.PENDING).setNextSearchState(prevState);
+        }
+
+        report.addAll(items);
+        FetchResult next = new FetchResult();
+        if (multiple) {
+            next.setState(FetchState.MULTIPLE_ITEMS).setMultipleItems(items);
+        } else {
+            next.setState(FetchState.ITEMS).setItem(items.get(0));
+        }
+        next.setNextSearchState(new SearchState(prevState).setFetchedItems(cursor));
+        return next;
+    }
+
+    @Override
+    public synchronized boolean matchesReport(Map<String, Set<String>> otherReport) {
+        return report.getReport().equals(otherReport);
+    }
+
+    @Override
+    public synchronized boolean matchesDigest(ReportDigest digest) {
+        return report.matchesDigest(digest);
+    }
+
+    @Override
+    public void close() {
+        Runnable listener;
+        synchronized (this) {
+            closed = true;
+            listener = readyListener;
+            readyListener = null;
+        }
+        if (listener != null) {
+            // The result may outlive the session in the cache
+            result.removeListener(listener);
+            listener.run();
+        }
+    }
+}
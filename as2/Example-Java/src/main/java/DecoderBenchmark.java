@@ -0,0 +1,67 @@
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of building the report from a FetchResult in the binary protocol,
+ * from generated structs and by FetchResultDecoder. Run with -prof gc to compare allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+    @Param({ "buffered", "framed" })
+    public String transport;
+
+    @Param({ "16", "256" })
+    public int items;
+
+    private byte[] encodedPayload;
+    private TMemoryInputTransport input;
+    private TTransport decodeTransport;
+    private TProtocol decodeProtocol;
+
+    private final FetchResultDecoder decoder = new FetchResultDecoder();
+    private final ReportBuilder report = new ReportBuilder();
+
+    @Setup
+    public void setUp() throws TException {
+        encodedPayload = ProtocolBenchmark.encode(ProtocolBenchmark.createPayload(items), "binary", transport);
+        input = new TMemoryInputTransport(encodedPayload);
+        decodeTransport = ProtocolBenchmark.createTransport(transport, input);
+        decodeProtocol = ProtocolBenchmark.createProtocol("binary", decodeTransport);
+    }
+
+    @Benchmark
+    public int generated() throws TException {
+        input.reset(encodedPayload);
+        FetchResult result = new FetchResult();
+        result.read(decodeProtocol);
+        report.addAll(result.getMultipleItems());
+        return report.getItems();
+    }
+
+    @Benchmark
+    public int streaming() throws TException {
+        input.reset(encodedPayload);
+        decoder.read(decodeTransport, report);
+        return report.getItems();
+    }
+}
@@ -0,0 +1,557 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Decodes FetchResult in the binary protocol without creating the generated structs.
+ *
+ * Items are passed to a visitor as they are read, lists are read into buffers reused
+ * by all items and strings seen before are looked up instead of created again, so a
+ * result with many items is decoded without allocation in the steady state. Bytes are
+ * read directly from the buffer of the transport when it has one (framed and memory
+ * transports), otherwise they are copied to a reusable buffer.
+ *
+ * The fields of the next search state are kept by the decoder until the next result.
+ */
+public class FetchResultDecoder {
+    // Header of strict binary protocol messages, see TBinaryProtocol
+    private static final int VERSION_MASK = 0xffff0000;
+    private static final int VERSION_1 = 0x80010000;
+
+    // Field of fetch_result holding the thrown ProtocolException
+    private static final short PROTOCOL_EXCEPTION_FIELD = 1;
+
+    private final StringTable strings = new StringTable();
+
+    private TTransport transport;
+    // Buffer holding the bytes read last and their position in it
+    private byte[] bytes;
+    private int pos;
+    private byte[] scratch = new byte[256];
+
+    // Buffers of list and set fields
+    private short[] shorts = new short[16];
+    private String[] fieldB = new String[16];
+    private String[] fieldC = new String[16];
+    // Number of strings read by the last readStrings
+    private int readSize;
+
+    // Next search state of the last result
+    private boolean nextSearchStateSet;
+    private int countEstimate;
+    private int fetchedItems;
+    private boolean supportMultipleItems;
+    private boolean waitTimeoutMsSet;
+    private int waitTimeoutMs;
+    private boolean maxItemsSet;
+    private int maxItems;
+
+    /**
+     * Reads the reply to a fetch call.
+     *
+     * @param protocol binary protocol the call was sent with
+     * @return state of the result
+     * @throws ProtocolException when the server threw it
+     */
+    public FetchState readFetchReply(TProtocol protocol, ItemVisitor visitor) throws TException {
+        if (!(protocol instanceof TBinaryProtocol)) {
+            throw new IllegalArgumentException("FetchResultDecoder only decodes the binary protocol");
+        }
+        begin(protocol.getTransport());
+
+        byte type;
+        int size = readI32();
+        if (size < 0) {
+            if ((size & VERSION_MASK) != VERSION_1) {
+                throw new TProtocolException(TProtocolException.BAD_VERSION, "Bad version in readMessageBegin");
+            }
+            type = (byte) size;
+            skipBytes(readI32());
+        } else {
+            // Old message without version, the size is the length of the name
+            skipBytes(size);
+            type = readByte();
+        }
+        // The sequence number is not checked, calls are not pipelined
+        readI32();
+
+        if (type == TMessageType.EXCEPTION) {
+            throw TApplicationException.readFrom(protocol);
+        }
+        if (type != TMessageType.REPLY) {
+            throw new TApplicationException(TApplicationException.INVALID_MESSAGE_TYPE, "Unexpected message type " + type);
+        }
+
+        // Struct fetch_result, the result is field 0
+        FetchState state = null;
+        ProtocolException exception = null;
+        while (true) {
+            byte fieldType = readByte();
+            if (fieldType == TType.STOP) {
+                break;
+            }
+            short id = readI16();
+            if (id == 0 && fieldType == TType.STRUCT) {
+                state = readFetchResultStruct(visitor);
+            } else if (id == PROTOCOL_EXCEPTION_FIELD && fieldType == TType.STRUCT) {
+                exception = readProtocolException();
+            } else {
+                skip(fieldType);
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+        if (state == null) {
+            throw new TApplicationException(TApplicationException.MISSING_RESULT, "fetch failed: unknown result");
+        }
+        return state;
+    }
+
+    /**
+     * Reads a FetchResult struct.
+     *
+     * @return state of the result
+     */
+    public FetchState read(TTransport transport, ItemVisitor visitor) throws TException {
+        begin(transport);
+        return readFetchResultStruct(visitor);
+    }
+
+    private void begin(TTransport transport) {
+        this.transport = transport;
+        nextSearchStateSet = false;
+    }
+
+    private FetchState readFetchResultStruct(ItemVisitor visitor) throws TException {
+        FetchState state = null;
+        while (true) {
+            byte type = readByte();
+            if (type == TType.STOP) {
+                break;
+            }
+            short id = readI16();
+            if (id == 1 && type == TType.I32) {
+                int value = readI32();
+                state = FetchState.findByValue(value);
+                if (state == null) {
+                    throw new TProtocolException(TProtocolException.INVALID_DATA, "Unknown fetch state " + value);
+                }
+            } else if (id == 2 && type == TType.STRUCT) {
+                readItem(visitor);
+            } else if (id == 3 && type == TType.STRUCT) {
+                readSearchState();
+            } else if (id == 4 && type == TType.LIST) {
+                byte elementType = readByte();
+                int size = readI32();
+                for (int i = 0; i < size; i++) {
+                    if (elementType == TType.STRUCT) {
+                        readItem(visitor);
+                    } else {
+                        skip(elementType);
+                    }
+                }
+            } else {
+                skip(type);
+            }
+        }
+        return state;
+    }
+
+    private void readSearchState() throws TException {
+        nextSearchStateSet = true;
+        countEstimate = 0;
+        fetchedItems = 0;
+        supportMultipleItems = false;
+        waitTimeoutMsSet = false;
+        waitTimeoutMs = 0;
+        maxItemsSet = false;
+        maxItems = 0;
+        while (true) {
+            byte type = readByte();
+            if (type == TType.STOP) {
+                break;
+            }
+            short id = readI16();
+            if (id == 1 && type == TType.I32) {
+                countEstimate = readI32();
+            } else if (id == 2 && type == TType.I32) {
+                fetchedItems = readI32();
+            } else if (id == 3 && type == TType.BOOL) {
+                supportMultipleItems = readByte() != 0;
+            } else if (id == 4 && type == TType.I32) {
+                waitTimeoutMsSet = true;
+                waitTimeoutMs = readI32();
+            } else if (id == 5 && type == TType.I32) {
+                maxItemsSet = true;
+                maxItems = readI32();
+            } else {
+                skip(type);
+            }
+        }
+    }
+
+    /** Reads an Item union and passes the item it holds to the visitor. */
+    private void readItem(ItemVisitor visitor) throws TException {
+        while (true) {
+            byte type = readByte();
+            if (type == TType.STOP) {
+                break;
+            }
+            short id = readI16();
+            if (type != TType.STRUCT || id < 1 || id > 4) {
+                skip(type);
+                continue;
+            }
+            switch (id) {
+                case 1:
+                    readItemA(visitor);
+                    break;
+                case 2:
+                    readItemB(visitor);
+                    break;
+                case 3:
+                    readItemC(visitor);
+                    break;
+                default:
+                    readItemD(visitor);
+                    break;
+            }
+        }
+    }
+
+    private void readItemA(ItemVisitor visitor) throws TException {
+        short fieldA = 0;
+        int fieldBSize = 0;
+        int fieldC = 0;
+        while (true) {
+            byte type = readByte();
+            if (type == TType.STOP) {
+                break;
+            }
+            short id = readI16();
+            if (id == 1 && type == TType.I16) {
+                fieldA = readI16();
+            } else if (id == 2 && type == TType.LIST) {
+                byte elementType = readByte();
+                int size = readI32();
+                if (elementType != TType.I16) {
+                    for (int i = 0; i < size; i++) {
+                        skip(elementType);
+                    }
+                    continue;
+                }
+                if (shorts.length < size) {
+                    shorts = new short[Math.max(size, shorts.length * 2)];
+                }
+                for (int i = 0; i < size; i++) {
+                    shorts[i] = readI16();
+                }
+                fieldBSize = size;
+            } else if (id == 3 && type == TType.I32) {
+                fieldC = readI32();
+            } else {
+                skip(type);
+            }
+        }
+        visitor.itemA(fieldA, shorts, fieldBSize, fieldC);
+    }
+
+    private void readItemB(ItemVisitor visitor) throws TException {
+        String fieldA = null;
+        int fieldBSize = -1;
+        int fieldCSize = -1;
+        while (true) {
+            byte type = readByte();
+            if (type == TType.STOP) {
+                break;
+            }
+            short id = readI16();
+            if (id == 1 && type == TType.STRING) {
+                fieldA = readString();
+            } else if (id == 2 && type == TType.SET) {
+                fieldB = readStrings(fieldB);
+                fieldBSize = readSize;
+            } else if (id == 3 && type == TType.LIST) {
+                fieldC = readStrings(fieldC);
+                fieldCSize = readSize;
+            } else {
+                skip(type);
+            }
+        }
+        visitor.itemB(fieldA, fieldB, fieldBSize, fieldC, fieldCSize);
+    }
+
+    /**
+     * Reads a list or set of strings into the buffer, growing it when needed.
+     *
+     * @return the buffer holding the strings
+     */
+    private String[] readStrings(String[] buffer) throws TException {
+        byte elementType = readByte();
+        int size = readI32();
+        if (elementType != TType.STRING) {
+            for (int i = 0; i < size; i++) {
+                skip(elementType);
+            }
+            readSize = 0;
+            return buffer;
+        }
+        if (buffer.length < size) {
+            buffer = new String[Math.max(size, buffer.length * 2)];
+        }
+        for (int i = 0; i < size; i++) {
+            buffer[i] = readString();
+        }
+        readSize = size;
+        return buffer;
+    }
+
+    private void readItemC(ItemVisitor visitor) throws TException {
+        boolean fieldA = false;
+        while (true) {
+            byte type = readByte();
+            if (type == TType.STOP) {
+                break;
+            }
+            short id = readI16();
+            if (id == 1 && type == TType.BOOL) {
+                fieldA = readByte() != 0;
+            } else {
+                skip(type);
+            }
+        }
+        visitor.itemC(fieldA);
+    }
+
+    private void readItemD(ItemVisitor visitor) throws TException {
+        String fieldA = null;
+        while (true) {
+            byte type = readByte();
+            if (type == TType.STOP) {
+                break;
+            }
+            short id = readI16();
+            if (id == 1 && type == TType.STRING) {
+                fieldA = readString();
+            } else {
+                skip(type);
+            }
+        }
+        visitor.itemD(fieldA);
+    }
+
+    private ProtocolException readProtocolException() throws TException {
+        String message = null;
+        while (true) {
+            byte type = readByte();
+            if (type == TType.STOP) {
+                break;
+            }
+            short id = readI16();
+            if (id == 1 && type == TType.STRING) {
+                message = readString();
+            } else {
+                skip(type);
+            }
+        }
+        return new ProtocolException(message);
+    }
+
+    /** Skips a value of the given type. */
+    private void skip(byte type) throws TException {
+        switch (type) {
+            case TType.BOOL:
+            case TType.BYTE:
+                skipBytes(1);
+                break;
+            case TType.I16:
+                skipBytes(2);
+                break;
+            case TType.I32:
+                skipBytes(4);
+                break;
+            case TType.I64:
+            case TType.DOUBLE:
+                skipBytes(8);
+                break;
+            case TType.STRING:
+                skipBytes(readI32());
+                break;
+            case TType.STRUCT:
+                while (true) {
+                    byte fieldType = readByte();
+                    if (fieldType == TType.STOP) {
+                        break;
+                    }
+                    readI16();
+                    skip(fieldType);
+                }
+                break;
+            case TType.MAP: {
+                byte keyType = readByte();
+                byte valueType = readByte();
+                int size = readI32();
+                for (int i = 0; i < size; i++) {
+                    skip(keyType);
+                    skip(valueType);
+                }
+                break;
+            }
+            case TType.SET:
+            case TType.LIST: {
+                byte elementType = readByte();
+                int size = readI32();
+                for (int i = 0; i < size; i++) {
+                    skip(elementType);
+                }
+                break;
+            }
+            default:
+                throw new TProtocolException(TProtocolException.INVALID_DATA, "Unrecognized type " + type);
+        }
+    }
+
+    /**
+     * Reads the given number of bytes into bytes starting at pos.
+     */
+    private void fill(int length) throws TException {
+        if (transport.getBytesRemainingInBuffer() >= length) {
+            bytes = transport.getBuffer();
+            pos = transport.getBufferPosition();
+            transport.consumeBuffer(length);
+            return;
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        transport.readAll(scratch, 0, length);
+        bytes = scratch;
+        pos = 0;
+    }
+
+    private void skipBytes(int length) throws TException {
+        if (length < 0) {
+            throw new TProtocolException(TProtocolException.NEGATIVE_SIZE, "Negative length: " + length);
+        }
+        fill(length);
+    }
+
+    private byte readByte() throws TException {
+        fill(1);
+        return bytes[pos];
+    }
+
+    private short readI16() throws TException {
+        fill(2);
+        return (short) (((bytes[pos] & 0xff) << 8) | (bytes[pos + 1] & 0xff));
+    }
+
+    private int readI32() throws TException {
+        fill(4);
+        return ((bytes[pos] & 0xff) << 24) | ((bytes[pos + 1] & 0xff) << 16)
+            | ((bytes[pos + 2] & 0xff) << 8) | (bytes[pos + 3] & 0xff);
+    }
+
+    private String readString() throws TException {
+        int length = readI32();
+        if (length < 0) {
+            throw new TProtocolException(TProtocolException.NEGATIVE_SIZE, "Negative length: " + length);
+        }
+        fill(length);
+        return strings.get(bytes, pos, length);
+    }
+
+    /** Whether the last result had the next search state. */
+    public boolean isSetNextSearchState() {
+        return nextSearchStateSet;
+    }
+
+    /**
+     * Copies the next search state of the last result.
+     *
+     * @return the given state
+     */
+    public SearchState copyNextSearchState(SearchState state) {
+        state.setCountEstimate(countEstimate)
+            .setFetchedItems(fetchedItems)
+            .setSupportMultipleItems(supportMultipleItems);
+        if (waitTimeoutMsSet) {
+            state.setWaitTimeoutMs(waitTimeoutMs);
+        } else {
+            state.unsetWaitTimeoutMs();
+        }
+        if (maxItemsSet) {
+            state.setMaxItems(maxItems);
+        } else {
+            state.unsetMaxItems();
+        }
+        return state;
+    }
+
+    /**
+     * Strings of recently decoded UTF-8 byte sequences.
+     *
+     * An open addressing table of bounded size, it is cleared when it fills up,
+     * so values that keep changing cannot make it grow.
+     */
+    private static class StringTable {
+        private static final int CAPACITY = 1024;
+        private static final int MAX_ENTRIES = CAPACITY / 2;
+        // Longer strings are rarely repeated and are not kept
+        private static final int MAX_LENGTH = 64;
+
+        private final byte[][] keys = new byte[CAPACITY][];
+        private final String[] values = new String[CAPACITY];
+        private int entries = 0;
+
+        String get(byte[] buffer, int offset, int length) {
+            if (length > MAX_LENGTH) {
+                return new String(buffer, offset, length, StandardCharsets.UTF_8);
+            }
+
+            int hash = 1;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + buffer[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (CAPACITY - 1);
+            while (keys[slot] != null) {
+                byte[] key = keys[slot];
+                if (key.length == length && equals(key, buffer, offset)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+
+            String value = new String(buffer, offset, length, StandardCharsets.UTF_8);
+            if (entries == MAX_ENTRIES) {
+                Arrays.fill(keys, null);
+                Arrays.fill(values, null);
+                entries = 0;
+                return value;
+            }
+            keys[slot] = Arrays.copyOfRange(buffer, offset, offset + length);
+            values[slot] = value;
+            entries++;
+            return value;
+        }
+
+        private static boolean equals(byte[] key, byte[] buffer, int offset) {
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buffer[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Produces the items of one search, one item per query token.
+ *
+ * Items are produced in the background by tasks of a shared executor, one item per item
+ * interval to emulate a slow search, into a bounded ring buffer that fetches drain.
+ * When the buffer is full, production stops until a fetch makes room, so a slow client
+ * holds at most a buffer of items. A fetch finds the search pending while the buffer is
+ * empty. The generator keeps the report of fetched items to verify the client's report.
+ */
+public class ItemGenerator implements SessionSearch {
+    private final String query;
+    private final int countEstimate;
+    private final long itemIntervalNs;
+    private final ScheduledExecutorService producers;
+    private final ReportBuilder report = new ReportBuilder();
+
+    // Ring buffer of produced items that were not fetched yet
+    private Item[] buffer;
+    private int head = 0;
+    private int buffered = 0;
+
+    private int nextTokenPos = 0;
+    // Number of items produced so far
+    private int produced = 0;
+    // Number of items the search ends with
+    private int total;
+    // Whether production waits for room in the buffer
+    private boolean stalled = false;
+    private boolean closed = false;
+    // Called when items become ready or the search ends
+    private Runnable readyListener = null;
+    // Error of the query found by the producer, reported by the next fetch
+    private ProtocolException error = null;
+
+    /**
+     * @param itemIntervalNs time it takes to find one item
+     * @param bufferCapacity maximum number of items produced ahead of fetches
+     * @param producers executor running the production
+     */
+    public ItemGenerator(String query, int limit, long itemIntervalNs, int bufferCapacity, ScheduledExecutorService producers) {
+        this.query = query;
+        this.countEstimate = countTokens(query);
+        this.itemIntervalNs = itemIntervalNs;
+        this.producers = producers;
+        this.total = Math.min(countEstimate, limit);
+        this.buffer = new Item[Math.max(1, Math.min(bufferCapacity, total))];
+    }
+
+    /** Estimated number of items, one per query token. */
+    public static int countTokens(String query) {
+        int count = 1;
+        for (int i = 0; i < query.length(); i++) {
+            if (query.charAt(i) == ',') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int getCountEstimate() {
+        return countEstimate;
+    }
+
+    /** Starts producing items in the background. */
+    public void start() {
+        scheduleProduction();
+    }
+
+    private void scheduleProduction() {
+        producers.schedule(this::produce, itemIntervalNs, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Produces the next item into the buffer and schedules the next one.
+     */
+    private void produce() {
+        Runnable listener;
+        synchronized (this) {
+            if (closed || produced >= total) {
+                return;
+            }
+            if (buffered == buffer.length) {
+                // Resumed by the fetch that makes room
+                stalled = true;
+                return;
+            }
+
+            try {
+                Item item = nextItem();
+                if (item == null) {
+                    // The query has fewer tokens than estimated
+                    total = produced;
+                } else {
+                    buffer[(head + buffered) % buffer.length] = item;
+                    buffered++;
+                    produced++;
+                }
+            } catch (ProtocolException e) {
+                error = e;
+                total = produced;
+            }
+
+            if (produced < total) {
+                scheduleProduction();
+            }
+            listener = readyListener;
+            readyListener = null;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private boolean isEnded() {
+        return produced >= total && buffered == 0;
+    }
+
+    /**
+     * Registers a listener called once when a fetch would not find the search pending.
+     *
+     * @return false if a fetch would not find it pending already, the listener is not registered then
+     */
+    @Override
+    public synchronized boolean whenReady(Runnable listener) {
+        if (buffered > 0 || isEnded() || error != null || closed) {
+            return false;
+        }
+        readyListener = listener;
+        return true;
+    }
+
+    /**
+     * Takes items from the buffer, either all ready items up to the batch size or a single one.
+     *
+     * @param prevState state returned by the previous fetch or by the search
+     */
+    @Override
+    public synchronized FetchResult fetchNext(SearchState prevState) throws ProtocolException {
+        if (error != null) {
+            throw error;
+        }
+        if (isEnded()) {
+            return new FetchResult().setState(FetchState.ENDED);
+        }
+        if (buffered == 0) {
+            return new FetchResult().setState(FetchState.PENDING).setNextSearchState(prevState);
+        }
+
+        boolean multiple = prevState.isSupportMultipleItems();
+        int batch = multiple ? buffered : 1;
+        if (multiple && prevState.isSetMaxItems() && prevState.getMaxItems() > 0) {
+            batch = Math.min(batch, prevState.getMaxItems());
+        }
+        List<Item> items = new ArrayList<>(batch);
+        for (int i = 0; i < batch; i++) {
+            Item item = buffer[head];
+            buffer[head] = null;
+            head = (head + 1) % buffer.length;
+            buffered--;
+            report.add(item);
+            items.add(item);
+        }
+        if (stalled) {
+            stalled = false;
+            scheduleProduction();
+        }
+
+        FetchResult next = new FetchResult();
+        if (multiple) {
+            next.setState(FetchState.MULTIPLE_ITEMS).setMultipleItems(items);
+        } else {
+            next.setState(FetchState.ITEMS).setItem(items.get(0));
+        }
+        next.setNextSearchState(new SearchState(prevState).setFetchedItems(prevState.getFetchedItems() + batch));
+        return next;
+    }
+
+    /**
+     * Stops production and releases the buffer, when the session logs out, searches
+     * again or disconnects.
+     */
+    @Override
+    public void close() {
+        Runnable listener;
+        synchronized (this) {
+            closed = true;
+            buffer = new Item[1];
+            head = 0;
+            buffered = 0;
+            listener = readyListener;
+            readyListener = null;
+        }
+        // Let a waiting fetch find out
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Creates the item of the next query token.
+     *
+     * @return the item or null when there is no token left
+     */
+    private Item nextItem() throws ProtocolException {
+        if (nextTokenPos >= query.length()) {
+            return null;
+        }
+        int commaPos = query.indexOf(',', nextTokenPos);
+        if (commaPos < 0) {
+            commaPos = query.length();
+        }
+        String token = query.substring(nextTokenPos, commaPos);
+        nextTokenPos = commaPos + 1;
+        if (token.isEmpty()) {
+            // An empty token ends the query like its end does
+            nextTokenPos = query.length();
+            return null;
+        }
+        return createItem(token);
+    }
+
+    /**
+     * Creates an item of the type named by a query token.
+     */
+    public static Item createItem(String token) throws ProtocolException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (token) {
+            case "ItemA":
+                return Item.itemA(new ItemA((short) random.nextInt(16),
+                    Arrays.asList((short) random.nextInt(16), (short) random.nextInt(16)), random.nextInt(32)));
+            case "ItemB":
+                return Item.itemB(new ItemB()
+                    .setFieldA("hello")
+                    .setFieldB(new HashSet<>(Arrays.asList("s1", "s2")))
+                    .setFieldC(Arrays.asList("v1", "v1")));
+            case "ItemC":
+                return Item.itemC(new ItemC(random.nextBoolean()));
+            case "ItemD":
+                return Item.itemD(new ItemD("D"));
+            default:
+                throw new ProtocolException("Incorrect query token " + token);
+        }
+    }
+
+    /** Whether the report matches the items fetched so far. */
+    @Override
+    public synchronized boolean matchesReport(Map<String, Set<String>> otherReport) {
+        return report.getReport().equals(otherReport);
+    }
+
+    /** Whether the digest matches the report of the items fetched so far. */
+    @Override
+    public synchronized boolean matchesDigest(ReportDigest digest) {
+        return report.matchesDigest(digest);
+    }
+}
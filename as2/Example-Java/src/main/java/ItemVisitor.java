@@ -0,0 +1,20 @@
+/**
+ * Receives items decoded by FetchResultDecoder without materializing them.
+ *
+ * Arrays are buffers of the decoder, only the first size elements belong to the item
+ * and they are valid only during the call. Strings may be shared by several items.
+ */
+public interface ItemVisitor {
+    void itemA(short fieldA, short[] fieldB, int fieldBSize, int fieldC);
+
+    /**
+     * @param fieldA null when not set
+     * @param fieldBSize -1 when fieldB is not set
+     * @param fieldCSize -1 when fieldC is not set
+     */
+    void itemB(String fieldA, String[] fieldB, int fieldBSize, String[] fieldC, int fieldCSize);
+
+    void itemC(boolean fieldA);
+
+    void itemD(String fieldA);
+}
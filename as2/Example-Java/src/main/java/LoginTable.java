@@ -0,0 +1,43 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keys of logged in users shared by all sessions.
+ *
+ * The table locks only the bin of the user being updated,
+ * so logins of different users do not contend on a global lock.
+ */
+public class LoginTable {
+    private final ConcurrentHashMap<String, Integer> keys;
+
+    /**
+     * @param expectedUsers number of users the table is sized for
+     */
+    public LoginTable(int expectedUsers) {
+        this.keys = new ConcurrentHashMap<>(expectedUsers);
+    }
+
+    /**
+     * Checks the key of a user, a user seen for the first time is assigned a new key.
+     *
+     * @throws InvalidKeyException with the expected key if the key does not match or the user is new
+     */
+    public void checkKey(String userName, int key) throws InvalidKeyException {
+        int newKey = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+        Integer expectedKey = keys.putIfAbsent(userName, newKey);
+        if (expectedKey == null) {
+            throw new InvalidKeyException(key, newKey);
+        } else if (expectedKey != key) {
+            throw new InvalidKeyException(key, expectedKey);
+        }
+    }
+
+    /** Forgets the key of a user who logged out. */
+    public void remove(String userName) {
+        keys.remove(userName);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.Arrays;
+
+/**
+ * Compares polling a pending search with long polling.
+ *
+ * Runs the same searches once per mode and prints a CSV row per mode with the mean
+ * number of fetches and pending fetches per search and the time until the last item
+ * arrived (mean, median and 99th percentile in milliseconds).
+ */
+public class LongPollBenchmark {
+    private static void run(TaskClient client, String mode, int searches, String query, int waitTimeoutMs) throws Exception {
+        int limit = ItemGenerator.countTokens(query);
+        long fetches = 0;
+        long pendingFetches = 0;
+        long[] timesNs = new long[searches];
+
+        for (int i = 0; i < searches; i++) {
+            ReportBuilder report = client.search(query, limit, waitTimeoutMs);
+            if (!client.saveReport(report.getReport())) {
+                throw new IllegalStateException("Report of search " + i + " does not match");
+            }
+            fetches += client.getFetches();
+            pendingFetches += client.getPendingFetches();
+            timesNs[i] = client.getTimeToLastItemNs();
+        }
+
+        Arrays.sort(timesNs);
+        long sumNs = 0;
+        for (long timeNs : timesNs) {
+            sumNs += timeNs;
+        }
+        System.out.printf("%s,%d,%d,%.2f,%.2f,%.3f,%.3f,%.3f%n", mode, waitTimeoutMs, searches,
+            (double) fetches / searches, (double) pendingFetches / searches,
+            sumNs / 1e6 / searches, timesNs[searches / 2] / 1e6, timesNs[(int) (searches * 0.99)] / 1e6);
+    }
+
+    public static void main(String args[]) {
+        String host = (args.length < 1) ? "localhost" : args[0];
+        int port = (args.length < 2) ? 5000 : Integer.parseInt(args[1]);
+        boolean framed = (args.length < 3) ? true : "framed".equals(args[2]);
+        int searches = (args.length < 4) ? 100 : Integer.parseInt(args[3]);
+        String query = (args.length < 5) ? "ItemA,ItemB,ItemC,ItemD,ItemA,ItemB,ItemC,ItemD" : args[4];
+        int waitTimeoutMs = (args.length < 6) ? 1000 : Integer.parseInt(args[5]);
+        boolean header = (args.length < 7) ? true : Boolean.parseBoolean(args[6]);
+
+        try (TaskClient client = TaskClient.connect(host, port, framed)) {
+            client.logIn("benchmark");
+            if (header) {
+                System.out.println("mode,waitTimeoutMs,searches,fetches,pendingFetches,lastItemMeanMs,lastItemP50Ms,lastItemP99Ms");
+            }
+            run(client, "poll", searches, query, 0);
+            run(client, "long_poll", searches, query, waitTimeoutMs);
+            client.logOut();
+        } catch (Exception e) {
+            System.out.println("Client Exception: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
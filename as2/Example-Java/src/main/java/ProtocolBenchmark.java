@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TJSONProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.layered.TFramedTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of protocols and transports on FetchResult payloads with multiple items.
+ *
+ * Payloads are encoded and decoded in memory, and sent to an echo thread and read back
+ * over loopback. Run with the gc profiler (-prof gc) to see the allocation rate.
+ * The main method prints the encoded size of the payloads per item as CSV.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final String[] PROTOCOLS = { "binary", "compact", "json" };
+    private static final String[] TRANSPORTS = { "buffered", "framed" };
+    private static final int[] ITEM_COUNTS = { 16, 256 };
+
+    @Param({ "binary", "compact", "json" })
+    public String protocol;
+
+    @Param({ "buffered", "framed" })
+    public String transport;
+
+    @Param({ "16", "256" })
+    public int items;
+
+    private FetchResult payload;
+
+    // Encoding into memory
+    private TByteArrayOutputStream encoded;
+    private TTransport encodeTransport;
+    private TProtocol encodeProtocol;
+
+    // Decoding from memory
+    private byte[] encodedPayload;
+    private TMemoryInputTransport decodeInput;
+    private TTransport decodeTransport;
+    private TProtocol decodeProtocol;
+
+    // Round trips over loopback
+    private ServerSocket echoServer;
+    private TTransport loopbackTransport;
+    private TProtocol loopbackProtocol;
+
+    /**
+     * Creates a result with the given number of items, cycling through the item types.
+     *
+     * Items have the shape ItemGenerator produces with longer collections, values are
+     * random but the same for every call.
+     */
+    public static FetchResult createPayload(int items) {
+        Random random = new Random(items);
+        List<Item> multipleItems = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            switch (i % 4) {
+                case 0: {
+                    List<Short> fieldB = new ArrayList<>();
+                    for (int j = 0; j < 8; j++) {
+                        fieldB.add((short) random.nextInt(1 << 16));
+                    }
+                    multipleItems.add(Item.itemA(new ItemA((short) random.nextInt(16), fieldB, random.nextInt())));
+                    break;
+                }
+                case 1:
+                    multipleItems.add(Item.itemB(new ItemB()
+                        .setFieldA("hello" + random.nextInt(100))
+                        .setFieldB(new HashSet<>(Arrays.asList("s1", "s2", "s3", "s" + random.nextInt(100))))
+                        .setFieldC(Arrays.asList("v1", "v2"))));
+                    break;
+                case 2:
+                    multipleItems.add(Item.itemC(new ItemC(random.nextBoolean())));
+                    break;
+                default:
+                    multipleItems.add(Item.itemD(new ItemD("D" + random.nextInt(100))));
+                    break;
+            }
+        }
+        return new FetchResult()
+            .setState(FetchState.MULTIPLE_ITEMS)
+            .setMultipleItems(multipleItems)
+            .setNextSearchState(new SearchState(items, items, true));
+    }
+
+    static TProtocol createProtocol(String protocol, TTransport transport) {
+        switch (protocol) {
+            case "binary":
+                return new TBinaryProtocol(transport);
+            case "compact":
+                return new TCompactProtocol(transport);
+            case "json":
+                return new TJSONProtocol(transport);
+            default:
+                throw new IllegalArgumentException("Unknown protocol " + protocol);
+        }
+    }
+
+    /**
+     * Layers the transport on an endpoint transport, which buffers data by itself.
+     */
+    static TTransport createTransport(String transport, TTransport endpoint) throws TException {
+        switch (transport) {
+            case "buffered":
+                return endpoint;
+            case "framed":
+                return new TFramedTransport(endpoint);
+            default:
+                throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+    }
+
+    /**
+     * Encodes the payload as it is sent, including the frame header of the framed transport.
+     */
+    static byte[] encode(FetchResult payload, String protocol, String transport) throws TException {
+        TByteArrayOutputStream output = new TByteArrayOutputStream();
+        TTransport encodeTransport = createTransport(transport, new TIOStreamTransport(output));
+        payload.write(createProtocol(protocol, encodeTransport));
+        encodeTransport.flush();
+        return Arrays.copyOf(output.get(), output.len());
+    }
+
+    /**
+     * Copies everything received on one connection back to the sender.
+     */
+    private static void echo(ServerSocket server) {
+        try (Socket socket = server.accept()) {
+            socket.setTcpNoDelay(true);
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            while ((length = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            // The benchmark closed the server
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        payload = createPayload(items);
+
+        encoded = new TByteArrayOutputStream();
+        encodeTransport = createTransport(transport, new TIOStreamTransport(encoded));
+        encodeProtocol = createProtocol(protocol, encodeTransport);
+
+        encodedPayload = encode(payload, protocol, transport);
+        decodeInput = new TMemoryInputTransport(encodedPayload);
+        decodeTransport = createTransport(transport, decodeInput);
+        decodeProtocol = createProtocol(protocol, decodeTransport);
+
+        echoServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread echoThread = new Thread(() -> echo(echoServer), "echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+        TSocket socket = new TSocket(InetAddress.getLoopbackAddress().getHostAddress(), echoServer.getLocalPort());
+        socket.open();
+        loopbackTransport = createTransport(transport, socket);
+        loopbackProtocol = createProtocol(protocol, loopbackTransport);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        loopbackTransport.close();
+        echoServer.close();
+    }
+
+    @Benchmark
+    public int encode() throws TException {
+        encoded.reset();
+        payload.write(encodeProtocol);
+        encodeTransport.flush();
+        return encoded.len();
+    }
+
+    @Benchmark
+    public FetchResult decode() throws TException {
+        decodeInput.reset(encodedPayload);
+        decodeProtocol.reset();
+        FetchResult result = new FetchResult();
+        result.read(decodeProtocol);
+        return result;
+    }
+
+    @Benchmark
+    public FetchResult loopbackRoundTrip() throws TException {
+        payload.write(loopbackProtocol);
+        loopbackTransport.flush();
+        FetchResult result = new FetchResult();
+        result.read(loopbackProtocol);
+        return result;
+    }
+
+    /**
+     * Prints the encoded size of the payloads of all benchmark parameters.
+     */
+    public static void main(String args[]) throws TException {
+        System.out.println("protocol,transport,items,bytes,bytesPerItem");
+        for (int items : ITEM_COUNTS) {
+            FetchResult payload = createPayload(items);
+            for (String protocol : PROTOCOLS) {
+                for (String transport : TRANSPORTS) {
+                    int bytes = encode(payload, protocol, transport).length;
+                    System.out.printf("%s,%s,%d,%d,%.2f%n", protocol, transport, items, bytes, (double) bytes / items);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a Report from items as they arrive.
+ *
+ * Field values are formatted the same way the server formats them,
+ * so the finished report matches the one the server keeps for the search.
+ * Items are added either as generated structs or from FetchResultDecoder.
+ * The digest of the report is updated whenever a field gets a new value,
+ * so it is ready at any time without going through the report.
+ */
+public class ReportBuilder implements ItemVisitor {
+    private final Map<String, Set<String>> report = new HashMap<>();
+    private int items = 0;
+
+    // Digest of the report, see ReportDigest in Task.thrift
+    private final Map<String, Integer> valueCounts = new HashMap<>();
+    private final Map<String, Long> valueHashes = new HashMap<>();
+
+    // Buffers for converting generated structs
+    private short[] shorts = new short[16];
+    private String[] fieldB = new String[16];
+    private String[] fieldC = new String[16];
+    private final StringBuilder value = new StringBuilder();
+
+    public void add(Item item) {
+        switch (item.getSetField()) {
+            case ITEM_A: {
+                ItemA itemA = item.getItemA();
+                List<Short> list = itemA.getFieldB();
+                if (shorts.length < list.size()) {
+                    shorts = new short[list.size()];
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    shorts[i] = list.get(i);
+                }
+                itemA(itemA.getFieldA(), shorts, list.size(), itemA.getFieldC());
+                break;
+            }
+            case ITEM_B: {
+                ItemB itemB = item.getItemB();
+                int fieldBSize = -1;
+                if (itemB.isSetFieldB()) {
+                    fieldB = itemB.getFieldB().toArray(fieldB);
+                    fieldBSize = itemB.getFieldB().size();
+                }
+                int fieldCSize = -1;
+                if (itemB.isSetFieldC()) {
+                    fieldC = itemB.getFieldC().toArray(fieldC);
+                    fieldCSize = itemB.getFieldC().size();
+                }
+                itemB(itemB.getFieldA(), fieldB, fieldBSize, fieldC, fieldCSize);
+                break;
+            }
+            case ITEM_C:
+                itemC(item.getItemC().isFieldA());
+                break;
+            case ITEM_D:
+                itemD(item.getItemD().getFieldA());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown item type " + item.getSetField());
+        }
+    }
+
+    public void addAll(List<Item> items) {
+        for (Item item : items) {
+            add(item);
+        }
+    }
+
+    @Override
+    public void itemA(short fieldA, short[] fieldB, int fieldBSize, int fieldC) {
+        put("fieldA", Short.toString(fieldA));
+        // The server formats list elements as unsigned numbers
+        value.setLength(0);
+        for (int i = 0; i < fieldBSize; i++) {
+            if (i > 0) {
+                value.append(',');
+            }
+            value.append(fieldB[i] & 0xFFFF);
+        }
+        put("fieldB", value.toString());
+        put("fieldC", Integer.toString(fieldC));
+        items++;
+    }
+
+    @Override
+    public void itemB(String fieldA, String[] fieldB, int fieldBSize, String[] fieldC, int fieldCSize) {
+        if (fieldA != null) {
+            put("fieldA", fieldA);
+        }
+        if (fieldBSize >= 0) {
+            // Set elements are joined in their natural order
+            Arrays.sort(fieldB, 0, fieldBSize);
+            put("fieldB", join(fieldB, fieldBSize));
+        }
+        if (fieldCSize >= 0) {
+            put("fieldC", join(fieldC, fieldCSize));
+        }
+        items++;
+    }
+
+    @Override
+    public void itemC(boolean fieldA) {
+        put("fieldA", Boolean.toString(fieldA));
+        items++;
+    }
+
+    @Override
+    public void itemD(String fieldA) {
+        put("fieldA", fieldA);
+        items++;
+    }
+
+    private String join(String[] values, int size) {
+        if (size == 1) {
+            return values[0];
+        }
+        value.setLength(0);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                value.append(',');
+            }
+            value.append(values[i]);
+        }
+        return value.toString();
+    }
+
+    private void put(String field, String value) {
+        if (report.computeIfAbsent(field, key -> new HashSet<>()).add(value)) {
+            valueCounts.merge(field, 1, Integer::sum);
+            valueHashes.merge(field, valueHash(value), Long::sum);
+        }
+    }
+
+    /**
+     * Hash of a report value: 64-bit FNV-1a of its UTF-8 bytes followed by the splitmix64 finalizer.
+     */
+    public static long valueHash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /** Number of items added so far. */
+    public int getItems() {
+        return items;
+    }
+
+    /** The report of all items added so far. */
+    public Map<String, Set<String>> getReport() {
+        return report;
+    }
+
+    /** The digest of the report of all items added so far. */
+    public ReportDigest getDigest() {
+        return new ReportDigest(new HashMap<>(valueCounts), new HashMap<>(valueHashes));
+    }
+
+    /** Whether the digest of the report equals the given one. */
+    public boolean matchesDigest(ReportDigest digest) {
+        return valueCounts.equals(digest.getValueCounts()) && valueHashes.equals(digest.getValueHashes());
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.server.TServer;
+
+/**
+ * Load test of the search result cache with a mix of repeated queries.
+ *
+ * Runs an in-process server without and with the cache and the same users of
+ * TaskLoadGenerator against each, then prints session throughput and latency
+ * together with the hit rate of the cache. Reports that do not match are counted,
+ * so a cache serving wrong items shows up as errors.
+ */
+public class SearchCacheBenchmark {
+    // Threads of each server
+    private static final int SELECTOR_THREADS = 2;
+    private static final int WORKER_THREADS = 4;
+    private static final int PRODUCER_THREADS = 4;
+    private static final int BUFFER_CAPACITY = 64;
+    private static final long CACHE_TIME_TO_LIVE_MS = 60000;
+
+    public static void main(String args[]) {
+        int port = (args.length < 1) ? 5100 : Integer.parseInt(args[0]);
+        String userCounts = (args.length < 2) ? "1,16,64" : args[1]; // comma separated
+        int durationSeconds = (args.length < 3) ? 10 : Integer.parseInt(args[2]); // per number of users
+        String queryMix = (args.length < 4) ? "ItemA,ItemB,ItemC,ItemD;ItemD,ItemC;ItemB,ItemA,ItemC,ItemD,ItemA,ItemB" : args[3]; // semicolon separated
+        long itemIntervalMs = (args.length < 5) ? 10 : Long.parseLong(args[4]);
+        int cacheCapacity = (args.length < 6) ? 10000 : Integer.parseInt(args[5]); // items
+        int waitTimeoutMs = (args.length < 7) ? 1000 : Integer.parseInt(args[6]);
+        boolean printHeader = (args.length < 8) ? true : Boolean.parseBoolean(args[7]);
+
+        String[] queries = queryMix.split(";");
+        try {
+            if (printHeader) {
+                System.out.println("cache,users,sessions,report_errors,sessions_per_s,session_mean_ms,session_p50_ms,session_p99_ms,hit_rate");
+            }
+
+            // A server of its own for each mode, so the cached results start empty
+            for (int cache : new int[] {0, cacheCapacity}) {
+                TaskServer taskServer = new TaskServer(TimeUnit.MILLISECONDS.toNanos(itemIntervalMs), BUFFER_CAPACITY,
+                    PRODUCER_THREADS, cache, CACHE_TIME_TO_LIVE_MS);
+                TServer server = taskServer.createServer(port, SELECTOR_THREADS, WORKER_THREADS);
+                Thread serverThread = new Thread(server::serve, "server");
+                serverThread.setDaemon(true);
+                serverThread.start();
+                while (!server.isServing()) {
+                    Thread.sleep(10);
+                }
+
+                try {
+                    // Warm up the server and the client, the results are not reported
+                    TaskLoadGenerator.runUsers("localhost", port, true, 1, queries, 0, waitTimeoutMs, 0,
+                        TimeUnit.SECONDS.toNanos(2));
+
+                    for (String userCount : userCounts.split(",")) {
+                        int users = Integer.parseInt(userCount.trim());
+                        long hits = (taskServer.getCache() != null) ? taskServer.getCache().getHits() : 0;
+                        long misses = (taskServer.getCache() != null) ? taskServer.getCache().getMisses() : 0;
+
+                        long startTimeNs = System.nanoTime();
+                        List<TaskLoadGenerator.User> threads = TaskLoadGenerator.runUsers("localhost", port, true, users,
+                            queries, 0, waitTimeoutMs, users, TimeUnit.SECONDS.toNanos(durationSeconds));
+                        double seconds = (System.nanoTime() - startTimeNs) / 1e9;
+
+                        long[] sessionsNs = TaskLoadGenerator.mergeLatencies(threads, TaskLoadGenerator.Operation.SESSION);
+                        long totalNs = 0;
+                        for (long sessionNs : sessionsNs) {
+                            totalNs += sessionNs;
+                        }
+                        double hitRate = 0.0;
+                        if (taskServer.getCache() != null) {
+                            hits = taskServer.getCache().getHits() - hits;
+                            misses = taskServer.getCache().getMisses() - misses;
+                            hitRate = (hits + misses > 0) ? (double) hits / (hits + misses) : 0.0;
+                        }
+
+                        System.out.printf("%s,%d,%d,%d,%.1f,%.2f,%.2f,%.2f,%.3f%n",
+                            cache > 0 ? "on" : "off", users, sessionsNs.length,
+                            TaskLoadGenerator.countErrors(threads, TaskLoadGenerator.Operation.SAVE_REPORT),
+                            sessionsNs.length / seconds,
+                            sessionsNs.length > 0 ? totalNs / 1e6 / sessionsNs.length : 0.0,
+                            TaskLoadGenerator.percentile(sessionsNs, 50) / 1e6,
+                            TaskLoadGenerator.percentile(sessionsNs, 99) / 1e6, hitRate);
+                    }
+                } finally {
+                    server.stop();
+                    serverThread.join();
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Client Exception: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
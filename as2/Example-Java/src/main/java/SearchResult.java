@@ -0,0 +1,132 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Materialized result of a search, shared by all sessions searching for the same query and limit.
+ *
+ * Items are produced in the background one per item interval like by ItemGenerator, but
+ * are kept in a list that only grows, so that sessions read them through their own cursor
+ * while the result is still being produced and after it is complete.
+ */
+public class SearchResult {
+    private final String[] tokens;
+    private final long itemIntervalNs;
+    private final ScheduledExecutorService producers;
+
+    private final int capacity;
+    private final List<Item> items;
+    // Number of items the search ends with
+    private int total;
+    // Error of the query found by the producer, reported by fetches after the last item
+    private ProtocolException error = null;
+    // Called when items are added or the result is complete
+    private List<Runnable> readyListeners = new ArrayList<>();
+
+    /**
+     * @param itemIntervalNs time it takes to find one item
+     * @param producers executor running the production
+     */
+    public SearchResult(String query, int limit, long itemIntervalNs, ScheduledExecutorService producers) {
+        // An empty token ends the query like its end does
+        this.tokens = query.split(",", -1);
+        this.itemIntervalNs = itemIntervalNs;
+        this.producers = producers;
+        this.capacity = Math.max(0, Math.min(tokens.length, limit));
+        this.total = capacity;
+        this.items = new ArrayList<>(capacity);
+    }
+
+    /** Starts producing items in the background. */
+    public void start() {
+        scheduleProduction();
+    }
+
+    private void scheduleProduction() {
+        producers.schedule(this::produce, itemIntervalNs, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Produces the next item and schedules the next one.
+     */
+    private void produce() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (items.size() >= total) {
+                return;
+            }
+
+            String token = tokens[items.size()];
+            if (token.isEmpty()) {
+                // The query has fewer tokens than estimated
+                total = items.size();
+            } else {
+                try {
+                    items.add(ItemGenerator.createItem(token));
+                } catch (ProtocolException e) {
+                    error = e;
+                    total = items.size();
+                }
+            }
+
+            if (items.size() < total) {
+                scheduleProduction();
+            }
+            listeners = readyListeners;
+            readyListeners = new ArrayList<>();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /** Maximum number of items of the result, the number it is accounted for in the cache. */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Number of items produced so far. */
+    public synchronized int getAvailable() {
+        return items.size();
+    }
+
+    /**
+     * Registers a listener called once when items beyond the cursor are ready or the result is complete.
+     *
+     * @return false if they are already, the listener is not registered then
+     */
+    public synchronized boolean whenReady(int cursor, Runnable listener) {
+        if (cursor < items.size() || items.size() >= total) {
+            return false;
+        }
+        readyListeners.add(listener);
+        return true;
+    }
+
+    /**
+     * Forgets a listener of a session that no longer waits.
+     */
+    public synchronized void removeListener(Runnable listener) {
+        readyListeners.remove(listener);
+    }
+
+    /**
+     * Copies up to maxItems items starting at the cursor.
+     *
+     * @return the items, empty while the result is pending, null when the result ended before the cursor
+     * @throws ProtocolException if the query is invalid and no items are left before the invalid token
+     */
+    public synchronized List<Item> read(int cursor, int maxItems) throws ProtocolException {
+        if (cursor < items.size()) {
+            return new ArrayList<>(items.subList(cursor, cursor + Math.min(items.size() - cursor, maxItems)));
+        }
+        if (items.size() < total) {
+            return new ArrayList<>(0);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return null;
+    }
+}
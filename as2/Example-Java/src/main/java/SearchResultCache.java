@@ -0,0 +1,170 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of searches shared by all sessions, keyed by query and limit.
+ *
+ * The first search for a query starts producing its result, later searches read the
+ * same result, even while it is still being produced. The cache holds at most a given
+ * number of items, the least recently searched results are removed first. Results
+ * expire a while after they were created, so a popular query is produced again now
+ * and then.
+ */
+public class SearchResultCache implements SearchResultCacheMBean {
+    /**
+     * A query and a limit.
+     */
+    private static final class Key {
+        final String query;
+        final int limit;
+
+        Key(String query, int limit) {
+            this.query = query;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return limit == key.limit && query.equals(key.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, limit);
+        }
+    }
+
+    /**
+     * A cached result and the time it was created.
+     */
+    private static final class Entry {
+        final SearchResult result;
+        final long createTimeNs;
+
+        Entry(SearchResult result, long createTimeNs) {
+            this.result = result;
+            this.createTimeNs = createTimeNs;
+        }
+    }
+
+    private final int capacityItems;
+    private final long timeToLiveNs;
+    private final long itemIntervalNs;
+    private final ScheduledExecutorService producers;
+
+    // Least recently searched first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedItems = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param capacityItems maximum number of items of all cached results
+     * @param timeToLiveMs time after which a result is produced again
+     * @param itemIntervalNs time it takes a search to find one item
+     * @param producers executor producing the results
+     */
+    public SearchResultCache(int capacityItems, long timeToLiveMs, long itemIntervalNs, ScheduledExecutorService producers) {
+        this.capacityItems = capacityItems;
+        this.timeToLiveNs = TimeUnit.MILLISECONDS.toNanos(timeToLiveMs);
+        this.itemIntervalNs = itemIntervalNs;
+        this.producers = producers;
+    }
+
+    /**
+     * Gets the result of a search, starting to produce it when it is not cached.
+     *
+     * A result larger than the whole cache is produced for the caller only.
+     */
+    public SearchResult search(String query, int limit) {
+        Key key = new Key(query, limit);
+        long nowNs = System.nanoTime();
+        SearchResult result;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && nowNs - entry.createTimeNs < timeToLiveNs) {
+                hits.incrementAndGet();
+                return entry.result;
+            }
+            if (entry != null) {
+                remove(key, entry);
+            }
+            misses.incrementAndGet();
+
+            result = new SearchResult(query, limit, itemIntervalNs, producers);
+            if (result.getCapacity() <= capacityItems) {
+                entries.put(key, new Entry(result, nowNs));
+                cachedItems += result.getCapacity();
+                evict(nowNs);
+            }
+        }
+        result.start();
+        return result;
+    }
+
+    /**
+     * Removes expired results, then the least recently searched ones until the items fit.
+     */
+    private void evict(long nowNs) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (cachedItems <= capacityItems && nowNs - entry.createTimeNs < timeToLiveNs) {
+                // Expired results among the recently searched ones are replaced when searched
+                break;
+            }
+            iterator.remove();
+            cachedItems -= entry.result.getCapacity();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        cachedItems -= entry.result.getCapacity();
+        evictions.incrementAndGet();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total > 0 ? (double) hitCount / total : 0.0;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized int getCachedItems() {
+        return cachedItems;
+    }
+}
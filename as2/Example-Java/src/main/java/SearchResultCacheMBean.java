@@ -0,0 +1,17 @@
+/**
+ * Management interface exposing the state of the search result cache of the server.
+ */
+public interface SearchResultCacheMBean {
+    /** Gets the number of searches served by a cached result. */
+    long getHits();
+    /** Gets the number of searches that had to produce their result. */
+    long getMisses();
+    /** Gets the fraction of searches served by a cached result. */
+    double getHitRate();
+    /** Gets the number of results removed because the cache was full or they expired. */
+    long getEvictions();
+    /** Gets the number of cached results. */
+    int getEntries();
+    /** Gets the number of items the cached results hold when complete. */
+    int getCachedItems();
+}
@@ -0,0 +1,74 @@
+import org.apache.thrift.server.ServerContext;
+
+/**
+ * State of one client connection.
+ *
+ * The server creates a session for every accepted connection and makes it
+ * current for the worker thread processing each call of that connection.
+ */
+public class Session implements ServerContext {
+    private static final ThreadLocal<Session> CURRENT = new ThreadLocal<>();
+
+    private boolean loggedIn = false;
+    private String userName = null;
+    private SessionSearch search = null;
+
+    /** The session of the connection whose call the current thread processes. */
+    public static Session current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(Session session) {
+        CURRENT.set(session);
+    }
+
+    public boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public void logIn(String userName) {
+        this.loggedIn = true;
+        this.userName = userName;
+    }
+
+    /** Logs out and releases the items of the search. */
+    public void logOut() {
+        this.loggedIn = false;
+        this.userName = null;
+        setSearch(null);
+    }
+
+    public SessionSearch getSearch() {
+        return search;
+    }
+
+    /** Replaces the search, the previous one is closed. */
+    public void setSearch(SessionSearch search) {
+        if (this.search != null) {
+            this.search.close();
+        }
+        this.search = search;
+    }
+
+    /** Releases the state of a closed connection. */
+    public void close() {
+        logOut();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) {
+        if (!isWrapperFor(iface)) {
+            throw new IllegalArgumentException("Session is not a " + iface.getName());
+        }
+        return iface.cast(this);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
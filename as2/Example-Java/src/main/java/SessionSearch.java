@@ -0,0 +1,39 @@
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The search of a session: the items its fetches return and the report of the fetched items.
+ *
+ * Implementations are thread-safe, fetches are called with the session locked, listeners
+ * may be called from producer threads.
+ */
+public interface SessionSearch {
+    /** Estimated number of items, one per query token. */
+    int getCountEstimate();
+
+    /**
+     * Registers a listener called once when a fetch would not find the search pending.
+     *
+     * @return false if a fetch would not find it pending already, the listener is not registered then
+     */
+    boolean whenReady(Runnable listener);
+
+    /**
+     * Fetches the next items, either all ready items up to the batch size or a single one.
+     *
+     * @param prevState state returned by the previous fetch or by the search
+     */
+    FetchResult fetchNext(SearchState prevState) throws ProtocolException;
+
+    /** Whether the report matches the items fetched so far. */
+    boolean matchesReport(Map<String, Set<String>> report);
+
+    /** Whether the digest matches the report of the items fetched so far. */
+    boolean matchesDigest(ReportDigest digest);
+
+    /**
+     * Releases the search when the session logs out, searches again or disconnects,
+     * a waiting fetch is answered.
+     */
+    void close();
+}
@@ -0,0 +1,321 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.layered.TFramedTransport;
+
+/**
+ * Client of the Task services.
+ *
+ * Searches ask the server for multiple items per fetch and poll a pending
+ * search with an adaptive delay, the report is built while items arrive.
+ * With a wait timeout the server holds a pending fetch until items are ready
+ * (long polling), servers without long polling are still polled with a delay.
+ * With the binary protocol, fetched items are decoded directly into the report
+ * without creating the generated structs.
+ */
+public class TaskClient implements AutoCloseable {
+    // Number of login attempts, the first one only learns the expected key
+    private static final int LOGIN_ATTEMPTS = 3;
+    // Bounds of the delay between polls of a pending search
+    private static final long MIN_POLL_DELAY_MS = 1;
+    private static final long MAX_POLL_DELAY_MS = 1000;
+
+    private final TTransport transport;
+    private final Login.Client login;
+    private final Search.Client search;
+    private final Reports.Client reports;
+    // Protocol of fetch replies and their decoder, which is null when the protocol is not binary
+    private final TProtocol fetchProtocol;
+    private final FetchResultDecoder decoder;
+
+    // User logged in and the key that was accepted
+    private String userName = null;
+    private int key = -1;
+
+    // Statistics of the last search
+    private int fetches = 0;
+    private int pendingFetches = 0;
+    private long timeToLastItemNs = 0;
+    // State for the next fetch of the current search
+    private SearchState nextState;
+    // Maximum number of items per fetch, zero for all ready items
+    private int maxItems = 0;
+
+    /**
+     * Creates proxies of all services multiplexed over one protocol.
+     */
+    public TaskClient(TTransport transport, TProtocol protocol) {
+        this.transport = transport;
+        this.login = new Login.Client(new TMultiplexedProtocol(protocol, "Login"));
+        this.search = new Search.Client(new TMultiplexedProtocol(protocol, "Search"));
+        this.reports = new Reports.Client(new TMultiplexedProtocol(protocol, "Reports"));
+        this.fetchProtocol = protocol;
+        this.decoder = (protocol instanceof TBinaryProtocol) ? new FetchResultDecoder() : null;
+    }
+
+    /**
+     * Connects to the server by TCP socket using a binary protocol.
+     *
+     * @param framed whether to use the framed transport required by non-blocking servers
+     */
+    public static TaskClient connect(String host, int port, boolean framed) throws TTransportException {
+        // The socket transport is already buffered
+        TTransport transport = new TSocket(host, port);
+        if (framed) {
+            transport = new TFramedTransport(transport);
+        }
+        transport.open();
+        return new TaskClient(transport, new TBinaryProtocol(transport));
+    }
+
+    /**
+     * Logs in, learning the expected key from the server when needed.
+     */
+    public void logIn(String userName) throws TException {
+        logIn(userName, -1);
+    }
+
+    /**
+     * Logs in trying a known key first, learning the expected key from the server when it is wrong.
+     */
+    public void logIn(String userName, int key) throws TException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                login.logIn(userName, key);
+                this.userName = userName;
+                this.key = key;
+                return;
+            } catch (InvalidKeyException e) {
+                if (attempt == LOGIN_ATTEMPTS) {
+                    throw e;
+                }
+                key = e.getExpectedKey();
+            }
+        }
+    }
+
+    public void logOut() throws TException {
+        login.logOut();
+        userName = null;
+    }
+
+    /**
+     * Checks the connection by a round trip that changes nothing: logging in again
+     * while logged in, which the server refuses with ProtocolException.
+     */
+    public void ping() throws TException {
+        if (userName == null) {
+            throw new IllegalStateException("Not logged in");
+        }
+        try {
+            login.logIn(userName, key);
+        } catch (ProtocolException e) {
+            // Expected, the session is still logged in
+        }
+    }
+
+    /**
+     * Limits the number of items a fetch asks for, zero for all ready items.
+     */
+    public void setMaxItems(int maxItems) {
+        this.maxItems = maxItems;
+    }
+
+    /** Key accepted by the last login. */
+    public int getKey() {
+        return key;
+    }
+
+    /** Cached client of the Login service multiplexed over the connection. */
+    public Login.Client getLogin() {
+        return login;
+    }
+
+    /** Cached client of the Search service multiplexed over the connection. */
+    public Search.Client getSearch() {
+        return search;
+    }
+
+    /** Cached client of the Reports service multiplexed over the connection. */
+    public Reports.Client getReports() {
+        return reports;
+    }
+
+    /**
+     * Searches for items and fetches all of them, polling a pending search.
+     *
+     * @return the report of the fetched items
+     */
+    public ReportBuilder search(String query, int limit) throws TException, InterruptedException {
+        return search(query, limit, 0);
+    }
+
+    /**
+     * Searches for items and fetches all of them.
+     *
+     * @param waitTimeoutMs how long the server may hold a pending fetch, zero to poll
+     * @return the report of the fetched items
+     */
+    public ReportBuilder search(String query, int limit, int waitTimeoutMs) throws TException, InterruptedException {
+        ReportBuilder report = new ReportBuilder();
+        AdaptiveBackoff backoff = new AdaptiveBackoff(MIN_POLL_DELAY_MS, MAX_POLL_DELAY_MS);
+        long waitTimeoutNs = TimeUnit.MILLISECONDS.toNanos(waitTimeoutMs);
+        fetches = 0;
+        pendingFetches = 0;
+        timeToLastItemNs = 0;
+
+        long startTimeNs = System.nanoTime();
+        SearchState state = search.search(query, limit);
+        while (true) {
+            // The server echoes the state, but do not rely on it keeping the options
+            state.setSupportMultipleItems(true);
+            if (waitTimeoutMs > 0) {
+                state.setWaitTimeoutMs(waitTimeoutMs);
+            }
+            if (maxItems > 0) {
+                state.setMaxItems(maxItems);
+            }
+
+            long fetchStartNs = System.nanoTime();
+            int itemsBefore = report.getItems();
+            FetchState fetchState = fetch(state, report);
+            fetches++;
+            switch (fetchState) {
+                case PENDING:
+                    pendingFetches++;
+                    // A server that held the fetch for the whole timeout can be asked again right away
+                    if (waitTimeoutNs == 0 || System.nanoTime() - fetchStartNs < waitTimeoutNs) {
+                        backoff.pending();
+                    }
+                    break;
+                case ITEMS:
+                case MULTIPLE_ITEMS:
+                    if (report.getItems() > itemsBefore) {
+                        timeToLastItemNs = System.nanoTime() - startTimeNs;
+                    }
+                    backoff.progress();
+                    break;
+                case ENDED:
+                    return report;
+                default:
+                    throw new IllegalStateException("Unknown fetch state " + fetchState);
+            }
+            state = nextState;
+        }
+    }
+
+    /**
+     * Fetches the next part of the search result into the report and sets nextState.
+     *
+     * @return state of the fetch result
+     */
+    private FetchState fetch(SearchState state, ReportBuilder report) throws TException {
+        if (decoder != null) {
+            search.send_fetch(state);
+            FetchState fetchState = decoder.readFetchReply(fetchProtocol, report);
+            if (fetchState != FetchState.ENDED && !decoder.isSetNextSearchState()) {
+                throw new TProtocolException(TProtocolException.INVALID_DATA, "Fetch result has no next search state");
+            }
+            // The state was sent already and can be reused
+            nextState = decoder.copyNextSearchState(state);
+            return fetchState;
+        }
+
+        FetchResult result = search.fetch(state);
+        switch (result.getState()) {
+            case ITEMS:
+                report.add(result.getItem());
+                break;
+            case MULTIPLE_ITEMS:
+                if (result.isSetMultipleItems()) {
+                    report.addAll(result.getMultipleItems());
+                }
+                break;
+            default:
+                break;
+        }
+        nextState = result.getNextSearchState();
+        return result.getState();
+    }
+
+    /**
+     * Sends the report to the server.
+     *
+     * @return whether the report matches the last search
+     */
+    public boolean saveReport(Map<String, Set<String>> report) throws TException {
+        return reports.saveReport(report);
+    }
+
+    /**
+     * Sends the digest of the report to the server, its size does not depend on the number of items.
+     *
+     * @return whether the report matches the last search
+     */
+    public boolean saveReportDigest(ReportBuilder report) throws TException {
+        return reports.saveReportDigest(report.getDigest());
+    }
+
+    /** Number of fetch calls of the last search. */
+    public int getFetches() {
+        return fetches;
+    }
+
+    /** Number of fetch calls of the last search that found it pending. */
+    public int getPendingFetches() {
+        return pendingFetches;
+    }
+
+    /** Time from the start of the last search until its last item arrived. */
+    public long getTimeToLastItemNs() {
+        return timeToLastItemNs;
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    public static void main(String args[]) {
+        if (args.length < 4) {
+            System.err.println("usage: TaskClient <host> <port> <userName> <query> [limit] [buffered|framed] [waitTimeoutMs] [full|digest]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String userName = args[2];
+        String query = args[3];
+        // By default the limit allows one item per query token
+        int limit = (args.length < 5) ? query.split(",").length : Integer.parseInt(args[4]);
+        boolean framed = (args.length < 6) ? false : "framed".equals(args[5]);
+        int waitTimeoutMs = (args.length < 7) ? 0 : Integer.parseInt(args[6]);
+        boolean digest = (args.length < 8) ? false : "digest".equals(args[7]);
+
+        try (TaskClient client = TaskClient.connect(host, port, framed)) {
+            client.logIn(userName);
+            System.out.printf("Logged in as %s%n", userName);
+
+            long startTimeNs = System.nanoTime();
+            ReportBuilder report = client.search(query, limit, waitTimeoutMs);
+            long durationNs = System.nanoTime() - startTimeNs;
+            System.out.printf("Fetched %d items in %d fetches (%d pending) and %.1f ms%n",
+                report.getItems(), client.getFetches(), client.getPendingFetches(), durationNs / 1e6);
+
+            boolean matches = digest ? client.saveReportDigest(report) : client.saveReport(report.getReport());
+            System.out.printf("Report: %s%n", matches ? "SUCCESS" : "FAIL");
+
+            client.logOut();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
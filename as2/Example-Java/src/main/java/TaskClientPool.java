@@ -0,0 +1,377 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Thread-safe pool of connections to the Task services, each logged in as the same user.
+ *
+ * A borrowed client is used by one thread only until it is given back, its multiplexed
+ * clients are created once per connection. Connections idle for longer than the health
+ * check interval are pinged before they are lent again, connections idle for longer than
+ * the idle timeout are logged out and closed by a background thread. The most recently
+ * returned connection is lent first, so rarely needed connections become idle and
+ * the pool shrinks after a burst.
+ */
+public class TaskClientPool implements AutoCloseable {
+    /**
+     * Work done with a borrowed client.
+     */
+    public interface ClientCall<R> {
+        R run(TaskClient client) throws TException, InterruptedException;
+    }
+
+    /**
+     * An idle connection and the time it was given back.
+     */
+    private static class Idle {
+        final TaskClient client;
+        final long returnTimeNs;
+
+        Idle(TaskClient client, long returnTimeNs) {
+            this.client = client;
+            this.returnTimeNs = returnTimeNs;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final boolean framed;
+    private final String userName;
+    private final int maxConnections;
+    private final long healthCheckNs;
+    private final long idleTimeoutNs;
+
+    // Most recently returned first
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+    private final Set<TaskClient> borrowed = new HashSet<>();
+    // Connections idle, borrowed or being opened
+    private int connections = 0;
+    private boolean closed = false;
+
+    // Key learned by the last login, saves a round trip for later connections
+    private volatile int knownKey = -1;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param maxConnections maximum number of open connections
+     * @param healthCheckMs idle time after which a connection is pinged before it is lent
+     * @param idleTimeoutMs idle time after which a connection is closed
+     */
+    public TaskClientPool(String host, int port, boolean framed, String userName, int maxConnections, long healthCheckMs, long idleTimeoutMs) {
+        this.host = host;
+        this.port = port;
+        this.framed = framed;
+        this.userName = userName;
+        this.maxConnections = maxConnections;
+        this.healthCheckNs = TimeUnit.MILLISECONDS.toNanos(healthCheckMs);
+        this.idleTimeoutNs = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+
+        long evictionPeriodMs = Math.max(1, idleTimeoutMs / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, evictionPeriodMs, evictionPeriodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a logged in client, opening a new connection when none is idle.
+     *
+     * @param timeoutMs how long to wait for a connection when all are borrowed
+     * @throws TTransportException with type TIMED_OUT when no connection was available in time
+     */
+    public TaskClient borrow(long timeoutMs) throws TException, InterruptedException {
+        long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (true) {
+            Idle candidate;
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new IllegalStateException("Pool is closed");
+                    }
+                    candidate = idle.pollFirst();
+                    if (candidate != null || connections < maxConnections) {
+                        break;
+                    }
+                    long remainingNs = deadlineNs - System.nanoTime();
+                    if (remainingNs <= 0) {
+                        throw new TTransportException(TTransportException.TIMED_OUT,
+                            "No connection available in " + timeoutMs + " ms");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+                }
+                if (candidate == null) {
+                    // Reserve the connection before opening it outside the lock
+                    connections++;
+                } else {
+                    borrowed.add(candidate.client);
+                }
+            }
+
+            if (candidate == null) {
+                TaskClient client = open();
+                synchronized (this) {
+                    borrowed.add(client);
+                }
+                return client;
+            }
+
+            if (System.nanoTime() - candidate.returnTimeNs < healthCheckNs) {
+                return candidate.client;
+            }
+            try {
+                candidate.client.ping();
+                return candidate.client;
+            } catch (TException e) {
+                // The connection broke while idle, try another one
+                invalidate(candidate.client);
+            }
+        }
+    }
+
+    /**
+     * Opens and logs in a connection whose slot is already reserved.
+     */
+    private TaskClient open() throws TException {
+        TaskClient client = null;
+        try {
+            client = TaskClient.connect(host, port, framed);
+            client.logIn(userName, knownKey);
+            knownKey = client.getKey();
+            opened.incrementAndGet();
+            return client;
+        } catch (TException | RuntimeException e) {
+            if (client != null) {
+                client.close();
+            }
+            synchronized (this) {
+                connections--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a borrowed client back to the pool.
+     */
+    public void giveBack(TaskClient client) {
+        synchronized (this) {
+            if (!borrowed.remove(client)) {
+                throw new IllegalArgumentException("Client was not borrowed from this pool");
+            }
+            if (!closed) {
+                idle.addFirst(new Idle(client, System.nanoTime()));
+                notifyAll();
+                return;
+            }
+            connections--;
+        }
+        logOutAndClose(client);
+    }
+
+    /**
+     * Closes a borrowed client whose connection is broken instead of giving it back.
+     */
+    public void invalidate(TaskClient client) {
+        synchronized (this) {
+            if (!borrowed.remove(client)) {
+                throw new IllegalArgumentException("Client was not borrowed from this pool");
+            }
+            connections--;
+            notifyAll();
+        }
+        discarded.incrementAndGet();
+        client.close();
+    }
+
+    /**
+     * Runs work with a borrowed client and gives it back.
+     *
+     * The connection is closed when the work fails in the transport or protocol,
+     * as its stream may be left in the middle of a message. Exceptions declared
+     * by the services leave the connection usable.
+     */
+    public <R> R call(long timeoutMs, ClientCall<R> call) throws TException, InterruptedException {
+        TaskClient client = borrow(timeoutMs);
+        boolean broken = true;
+        try {
+            R result = call.run(client);
+            broken = false;
+            return result;
+        } catch (TException e) {
+            broken = e instanceof TTransportException || e instanceof TProtocolException;
+            throw e;
+        } finally {
+            if (broken) {
+                invalidate(client);
+            } else {
+                giveBack(client);
+            }
+        }
+    }
+
+    /**
+     * Closes connections idle for longer than the idle timeout.
+     */
+    private void evictIdle() {
+        List<TaskClient> evicted = new ArrayList<>();
+        synchronized (this) {
+            long nowNs = System.nanoTime();
+            // The oldest connections are at the end
+            Iterator<Idle> iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                Idle candidate = iterator.next();
+                if (nowNs - candidate.returnTimeNs < idleTimeoutNs) {
+                    break;
+                }
+                iterator.remove();
+                evicted.add(candidate.client);
+                connections--;
+            }
+        }
+        for (TaskClient client : evicted) {
+            logOutAndClose(client);
+        }
+    }
+
+    private void logOutAndClose(TaskClient client) {
+        try {
+            client.logOut();
+        } catch (TException e) {
+            // The connection is closed anyway
+        }
+        client.close();
+    }
+
+    /** Number of open connections, idle or borrowed. */
+    public synchronized int getConnections() {
+        return connections;
+    }
+
+    public synchronized int getIdleConnections() {
+        return idle.size();
+    }
+
+    /** Number of connections opened since the pool was created. */
+    public long getOpenedConnections() {
+        return opened.get();
+    }
+
+    /** Number of connections closed because they were broken. */
+    public long getDiscardedConnections() {
+        return discarded.get();
+    }
+
+    /**
+     * Closes idle connections, borrowed connections are closed when they are given back.
+     */
+    @Override
+    public void close() {
+        List<TaskClient> clients = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Idle candidate : idle) {
+                clients.add(candidate.client);
+            }
+            connections -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        evictor.shutdown();
+        for (TaskClient client : clients) {
+            logOutAndClose(client);
+        }
+    }
+
+    /**
+     * A search of the benchmark in main.
+     */
+    private interface Workload {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs the given number of searches in each of the threads.
+     */
+    private static void runThreads(int threads, int searches, Workload search) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    for (int j = 0; j < searches; j++) {
+                        search.run();
+                    }
+                } catch (Exception e) {
+                    System.out.println("Client Exception: " + e.getMessage());
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+    }
+
+    public static void main(String args[]) {
+        String host = (args.length < 1) ? "localhost" : args[0];
+        int port = (args.length < 2) ? 5000 : Integer.parseInt(args[1]);
+        boolean framed = (args.length < 3) ? true : "framed".equals(args[2]);
+        int threads = (args.length < 4) ? 16 : Integer.parseInt(args[3]);
+        int searches = (args.length < 5) ? 100 : Integer.parseInt(args[4]); // per thread
+        int maxConnections = (args.length < 6) ? 8 : Integer.parseInt(args[5]);
+        String query = (args.length < 7) ? "ItemA,ItemB,ItemC,ItemD" : args[6];
+        boolean printHeader = (args.length < 8) ? true : Boolean.parseBoolean(args[7]);
+
+        int limit = ItemGenerator.countTokens(query);
+        try {
+            if (printHeader) {
+                System.out.println("mode,threads,searches,connections,seconds,searches_per_s");
+            }
+
+            AtomicLong connects = new AtomicLong();
+            long startTimeNs = System.nanoTime();
+            runThreads(threads, searches, () -> {
+                try (TaskClient client = TaskClient.connect(host, port, framed)) {
+                    connects.incrementAndGet();
+                    client.logIn("pool-" + Thread.currentThread().getId());
+                    client.saveReport(client.search(query, limit).getReport());
+                    client.logOut();
+                }
+            });
+            double seconds = (System.nanoTime() - startTimeNs) / 1e9;
+            System.out.printf("connect,%d,%d,%d,%.3f,%.1f%n", threads, threads * searches, connects.get(),
+                seconds, threads * searches / seconds);
+
+            try (TaskClientPool pool = new TaskClientPool(host, port, framed, "pool", maxConnections, 1000, 60000)) {
+                startTimeNs = System.nanoTime();
+                runThreads(threads, searches, () -> pool.call(60000, client -> {
+                    client.saveReport(client.search(query, limit).getReport());
+                    return null;
+                }));
+                seconds = (System.nanoTime() - startTimeNs) / 1e9;
+                System.out.printf("pool,%d,%d,%d,%.3f,%.1f%n", threads, threads * searches, pool.getOpenedConnections(),
+                    seconds, threads * searches / seconds);
+            }
+        } catch (Exception e) {
+            System.out.println("Client Exception: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
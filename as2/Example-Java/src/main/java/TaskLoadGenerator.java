@@ -0,0 +1,344 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.layered.TFramedTransport;
+
+/**
+ * Load generator of the Task services with many concurrent users.
+ *
+ * For every number of users N, N threads with a connection each repeat sessions of
+ * logIn, search, fetches until the search ends, saveReport and logOut for a fixed time.
+ * Queries are picked at random from a mix. Each level reports throughput and latency
+ * percentiles per operation and of whole sessions, so that servers and protocol
+ * settings can be compared under load.
+ */
+public class TaskLoadGenerator {
+    // Number of login attempts, the first one only learns the expected key
+    private static final int LOGIN_ATTEMPTS = 3;
+    // Bounds of the delay between polls of a pending search
+    private static final long MIN_POLL_DELAY_MS = 1;
+    private static final long MAX_POLL_DELAY_MS = 1000;
+
+    enum Operation {
+        LOG_IN("logIn"),
+        SEARCH("search"),
+        FETCH("fetch"),
+        SAVE_REPORT("saveReport"),
+        LOG_OUT("logOut"),
+        SESSION("session");
+
+        private final String name;
+
+        Operation(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * A call of a Task service.
+     */
+    private interface Call<R> {
+        R run() throws TException;
+    }
+
+    /**
+     * Latencies of one operation measured by a single user.
+     */
+    private static class Latencies {
+        private long[] latenciesNs = new long[1024];
+        private int count = 0;
+        private int errors = 0;
+
+        void add(long latencyNs) {
+            if (count == latenciesNs.length) {
+                latenciesNs = Arrays.copyOf(latenciesNs, count * 2);
+            }
+            latenciesNs[count++] = latencyNs;
+        }
+    }
+
+    /**
+     * A simulated user with its own connection.
+     */
+    static class User extends Thread {
+        private final String host;
+        private final int port;
+        private final boolean framed;
+        private final String userName;
+        private final String[] queries;
+        private final int limit;
+        private final int waitTimeoutMs;
+        private final long deadlineNs;
+        private final Random random;
+
+        private final Latencies[] latencies = new Latencies[Operation.values().length];
+
+        private TTransport transport;
+        private Login.Client login;
+        private Search.Client search;
+        private Reports.Client reports;
+
+        // Operation in progress, its error is counted when the session fails
+        private Operation operation;
+        private long lastLatencyNs;
+
+        User(String host, int port, boolean framed, String userName, String[] queries, int limit, int waitTimeoutMs, long seed, long deadlineNs) {
+            this.host = host;
+            this.port = port;
+            this.framed = framed;
+            this.userName = userName;
+            this.queries = queries;
+            this.limit = limit;
+            this.waitTimeoutMs = waitTimeoutMs;
+            this.deadlineNs = deadlineNs;
+            this.random = new Random(seed);
+            for (Operation operation : Operation.values()) {
+                latencies[operation.ordinal()] = new Latencies();
+            }
+        }
+
+        private void connect() throws TException {
+            transport = new TSocket(host, port);
+            if (framed) {
+                transport = new TFramedTransport(transport);
+            }
+            transport.open();
+            TProtocol protocol = new TBinaryProtocol(transport);
+            login = new Login.Client(new TMultiplexedProtocol(protocol, "Login"));
+            search = new Search.Client(new TMultiplexedProtocol(protocol, "Search"));
+            reports = new Reports.Client(new TMultiplexedProtocol(protocol, "Reports"));
+        }
+
+        private <R> R call(Operation operation, Call<R> call) throws TException {
+            this.operation = operation;
+            long startTimeNs = System.nanoTime();
+            R result = call.run();
+            lastLatencyNs = System.nanoTime() - startTimeNs;
+            latencies[operation.ordinal()].add(lastLatencyNs);
+            return result;
+        }
+
+        private Void logIn() throws TException {
+            int key = -1;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    login.logIn(userName, key);
+                    return null;
+                } catch (InvalidKeyException e) {
+                    if (attempt == LOGIN_ATTEMPTS) {
+                        throw e;
+                    }
+                    key = e.getExpectedKey();
+                }
+            }
+        }
+
+        private void runSession() throws TException, InterruptedException {
+            long startTimeNs = System.nanoTime();
+            call(Operation.LOG_IN, this::logIn);
+
+            String query = queries[random.nextInt(queries.length)];
+            int queryLimit = (limit > 0) ? limit : ItemGenerator.countTokens(query);
+            SearchState state = call(Operation.SEARCH, () -> search.search(query, queryLimit));
+
+            ReportBuilder report = new ReportBuilder();
+            AdaptiveBackoff backoff = new AdaptiveBackoff(MIN_POLL_DELAY_MS, MAX_POLL_DELAY_MS);
+            boolean ended = false;
+            while (!ended) {
+                state.setSupportMultipleItems(true);
+                if (waitTimeoutMs > 0) {
+                    state.setWaitTimeoutMs(waitTimeoutMs);
+                }
+                SearchState fetchState = state;
+                FetchResult result = call(Operation.FETCH, () -> search.fetch(fetchState));
+                switch (result.getState()) {
+                    case PENDING:
+                        // A server that held the fetch for the whole timeout can be asked again right away
+                        if (waitTimeoutMs == 0 || lastLatencyNs < TimeUnit.MILLISECONDS.toNanos(waitTimeoutMs)) {
+                            backoff.pending();
+                        }
+                        break;
+                    case ITEMS:
+                        report.add(result.getItem());
+                        backoff.progress();
+                        break;
+                    case MULTIPLE_ITEMS:
+                        if (result.isSetMultipleItems()) {
+                            report.addAll(result.getMultipleItems());
+                        }
+                        backoff.progress();
+                        break;
+                    case ENDED:
+                        ended = true;
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown fetch state " + result.getState());
+                }
+                if (!ended) {
+                    state = result.getNextSearchState();
+                }
+            }
+
+            if (!call(Operation.SAVE_REPORT, () -> reports.saveReport(report.getReport()))) {
+                latencies[Operation.SAVE_REPORT.ordinal()].errors++;
+            }
+            call(Operation.LOG_OUT, () -> {
+                login.logOut();
+                return null;
+            });
+            latencies[Operation.SESSION.ordinal()].add(System.nanoTime() - startTimeNs);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (System.nanoTime() < deadlineNs) {
+                    try {
+                        if (transport == null) {
+                            operation = Operation.SESSION;
+                            connect();
+                        }
+                        runSession();
+                    } catch (TException e) {
+                        // Start over on a new connection, the server drops the session of the old one
+                        latencies[operation.ordinal()].errors++;
+                        transport.close();
+                        transport = null;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stop early
+            } finally {
+                if (transport != null) {
+                    transport.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs N concurrent users for the given time.
+     *
+     * @return the finished users
+     */
+    static List<User> runUsers(String host, int port, boolean framed, int users, String[] queries, int limit, int waitTimeoutMs, long seed, long durationNs) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + durationNs;
+
+        List<User> threads = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            String userName = "load-" + users + "-" + i;
+            threads.add(new User(host, port, framed, userName, queries, limit, waitTimeoutMs, seed + i, deadlineNs));
+        }
+        for (User user : threads) {
+            user.start();
+        }
+        for (User user : threads) {
+            user.join();
+        }
+        return threads;
+    }
+
+    /**
+     * Merges latencies of an operation measured by all users.
+     *
+     * @return the sorted latencies
+     */
+    static long[] mergeLatencies(List<User> threads, Operation operation) {
+        int count = 0;
+        for (User user : threads) {
+            count += user.latencies[operation.ordinal()].count;
+        }
+        long[] latenciesNs = new long[count];
+        int offset = 0;
+        for (User user : threads) {
+            Latencies latencies = user.latencies[operation.ordinal()];
+            System.arraycopy(latencies.latenciesNs, 0, latenciesNs, offset, latencies.count);
+            offset += latencies.count;
+        }
+        Arrays.sort(latenciesNs);
+        return latenciesNs;
+    }
+
+    /**
+     * Counts errors of an operation of all users, for saveReport the reports that did not match.
+     */
+    static int countErrors(List<User> threads, Operation operation) {
+        int errors = 0;
+        for (User user : threads) {
+            errors += user.latencies[operation.ordinal()].errors;
+        }
+        return errors;
+    }
+
+    /**
+     * Gets the nearest-rank percentile of sorted values.
+     */
+    static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    public static void main(String args[]) {
+        String host = (args.length < 1) ? "localhost" : args[0];
+        int port = (args.length < 2) ? 5000 : Integer.parseInt(args[1]);
+        boolean framed = (args.length < 3) ? true : "framed".equals(args[2]);
+        String userCounts = (args.length < 4) ? "1,10,100" : args[3]; // comma separated
+        int durationSeconds = (args.length < 5) ? 10 : Integer.parseInt(args[4]); // per number of users
+        String queryMix = (args.length < 6) ? "ItemA,ItemB,ItemC;ItemD,ItemA;ItemB,ItemC,ItemD,ItemA" : args[5]; // semicolon separated
+        int limit = (args.length < 7) ? 0 : Integer.parseInt(args[6]); // zero for one item per query token
+        int waitTimeoutMs = (args.length < 8) ? 0 : Integer.parseInt(args[7]);
+        long seed = (args.length < 9) ? System.currentTimeMillis() : Long.parseLong(args[8]);
+        boolean printHeader = (args.length < 10) ? true : Boolean.parseBoolean(args[9]);
+
+        String[] queries = queryMix.split(";");
+        Random random = new Random(seed);
+        try {
+            // Warm up the server and the client, the results are not reported
+            runUsers(host, port, framed, 1, queries, limit, waitTimeoutMs, seed, TimeUnit.SECONDS.toNanos(2));
+
+            if (printHeader) {
+                System.out.println("users,operation,count,errors,throughput,mean,p50,p99,p999,max");
+            }
+
+            for (String userCount : userCounts.split(",")) {
+                int users = Integer.parseInt(userCount.trim());
+                long startTimeNs = System.nanoTime();
+                List<User> threads = runUsers(host, port, framed, users, queries, limit, waitTimeoutMs,
+                    random.nextLong(), TimeUnit.SECONDS.toNanos(durationSeconds));
+                long durationNs = System.nanoTime() - startTimeNs;
+
+                for (Operation operation : Operation.values()) {
+                    long[] latenciesNs = mergeLatencies(threads, operation);
+                    int count = latenciesNs.length;
+                    int errors = countErrors(threads, operation);
+                    long totalNs = 0;
+                    for (long latencyNs : latenciesNs) {
+                        totalNs += latencyNs;
+                    }
+
+                    // Throughput in operations per second, latencies in microseconds
+                    System.out.printf("%d,%s,%d,%d,%.1f,%.1f,%d,%d,%d,%d%n",
+                        users, operation.name, count, errors, count / (durationNs / 1e9),
+                        count > 0 ? totalNs / 1000.0 / count : 0.0,
+                        percentile(latenciesNs, 50) / 1000, percentile(latenciesNs, 99) / 1000,
+                        percentile(latenciesNs, 99.9) / 1000, count > 0 ? latenciesNs[count - 1] / 1000 : 0);
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Client Exception: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.server.ServerContext;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TServerEventHandler;
+import org.apache.thrift.server.TThreadedSelectorServer;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Server of the Task services on non-blocking sockets.
+ *
+ * A few selector threads handle all connections and a fixed pool of worker
+ * threads processes the calls, so idle connections cost no thread. Clients
+ * must use the framed transport. Handlers are shared by all connections,
+ * each call works with the session of its connection.
+ *
+ * Handlers are asynchronous, a fetch waiting for items (long polling)
+ * is completed later by a timer and does not hold a worker thread.
+ *
+ * Items of a search are produced in the background by a pool of producer threads
+ * into a bounded buffer of the session, fetches only take the items that are ready.
+ * With the search result cache enabled, sessions searching for the same query and limit
+ * share one result instead, each reading it through its own cursor.
+ */
+public class TaskServer {
+    // Number of users the login table is initially sized for
+    private static final int EXPECTED_USERS = 1024;
+
+    private final LoginTable logins = new LoginTable(EXPECTED_USERS);
+    // Time it takes a search to find one item
+    private final long itemIntervalNs;
+    // Maximum number of items a search produces ahead of fetches
+    private final int bufferCapacity;
+    // Produces items of all searches and times out fetches waiting for items
+    private final ScheduledThreadPoolExecutor producers;
+    // Results shared by sessions, null when disabled
+    private final SearchResultCache cache;
+
+    /**
+     * @param itemIntervalNs time it takes a search to find one item
+     * @param bufferCapacity maximum number of items a search produces ahead of fetches
+     * @param producerThreads number of threads producing items
+     * @param cacheCapacity maximum number of items of cached search results, zero disables the cache
+     * @param cacheTimeToLiveMs time after which a cached result is produced again
+     */
+    public TaskServer(long itemIntervalNs, int bufferCapacity, int producerThreads, int cacheCapacity, long cacheTimeToLiveMs) {
+        this.itemIntervalNs = itemIntervalNs;
+        this.bufferCapacity = bufferCapacity;
+        this.producers = new ScheduledThreadPoolExecutor(producerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "producer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Timeouts of answered fetches are cancelled, do not keep them until they expire
+        this.producers.setRemoveOnCancelPolicy(true);
+        this.cache = (cacheCapacity > 0)
+            ? new SearchResultCache(cacheCapacity, cacheTimeToLiveMs, itemIntervalNs, producers)
+            : null;
+    }
+
+    /** The search result cache, null when disabled. */
+    public SearchResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * A call computing its result synchronously.
+     */
+    private interface Call<R> {
+        R run() throws TException;
+    }
+
+    /**
+     * Runs a call and passes its result or exception to the result handler.
+     */
+    private static <R> void complete(AsyncMethodCallback<R> resultHandler, Call<R> call) {
+        R result;
+        try {
+            result = call.run();
+        } catch (TException e) {
+            resultHandler.onError(e);
+            return;
+        }
+        resultHandler.onComplete(result);
+    }
+
+    private static void requireLogin(Session session, String operation) throws ProtocolException {
+        if (!session.isLoggedIn()) {
+            throw new ProtocolException("Error " + operation + ": not logged in.");
+        }
+    }
+
+    private static SessionSearch requireSearch(Session session, String operation) throws ProtocolException {
+        SessionSearch search = session.getSearch();
+        if (search == null) {
+            throw new ProtocolException("Error " + operation + ": no search started yet.");
+        }
+        return search;
+    }
+
+    private class LoginHandler implements Login.AsyncIface {
+        @Override
+        public void logIn(String userName, int key, AsyncMethodCallback<Void> resultHandler) {
+            Session session = Session.current();
+            complete(resultHandler, () -> {
+                synchronized (session) {
+                    if (session.isLoggedIn()) {
+                        throw new ProtocolException("Error: already logged in.");
+                    }
+                    logins.checkKey(userName, key);
+                    session.logIn(userName);
+                }
+                return null;
+            });
+        }
+
+        @Override
+        public void logOut(AsyncMethodCallback<Void> resultHandler) {
+            Session session = Session.current();
+            synchronized (session) {
+                // The call is oneway, a client that is not logged in gets no error
+                if (session.isLoggedIn()) {
+                    logins.remove(session.getUserName());
+                    session.logOut();
+                }
+            }
+            resultHandler.onComplete(null);
+        }
+    }
+
+    private class SearchHandler implements Search.AsyncIface {
+        @Override
+        public void search(String query, int limit, AsyncMethodCallback<SearchState> resultHandler) {
+            Session session = Session.current();
+            complete(resultHandler, () -> {
+                synchronized (session) {
+                    requireLogin(session, "search");
+                    if (cache != null) {
+                        SessionSearch search = new CachedSearch(cache.search(query, limit), ItemGenerator.countTokens(query));
+                        session.setSearch(search);
+                        return new SearchState(search.getCountEstimate(), 0, false);
+                    }
+                    ItemGenerator generator = new ItemGenerator(query, limit, itemIntervalNs, bufferCapacity, producers);
+                    session.setSearch(generator);
+                    generator.start();
+                    return new SearchState(generator.getCountEstimate(), 0, false);
+                }
+            });
+        }
+
+        @Override
+        public void fetch(SearchState state, AsyncMethodCallback<FetchResult> resultHandler) {
+            Session session = Session.current();
+            SessionSearch search;
+            synchronized (session) {
+                try {
+                    requireLogin(session, "fetch");
+                    search = requireSearch(session, "fetch");
+                } catch (ProtocolException e) {
+                    resultHandler.onError(e);
+                    return;
+                }
+            }
+
+            Call<FetchResult> fetch = () -> {
+                synchronized (session) {
+                    requireLogin(session, "fetch");
+                    return requireSearch(session, "fetch").fetchNext(state);
+                }
+            };
+            if (!state.isSetWaitTimeoutMs() || state.getWaitTimeoutMs() <= 0) {
+                complete(resultHandler, fetch);
+                return;
+            }
+
+            // Answer when items are ready or the timeout expires, whichever comes first
+            LongPoll poll = new LongPoll(resultHandler, fetch);
+            poll.timeout = producers.schedule(poll, state.getWaitTimeoutMs(), TimeUnit.MILLISECONDS);
+            if (poll.answered.get()) {
+                // The poll ran before its timeout was assigned and could not cancel it
+                poll.timeout.cancel(false);
+            }
+            if (!search.whenReady(poll)) {
+                poll.run();
+            }
+        }
+    }
+
+    /**
+     * A fetch waiting for items, answered once when items are ready or when its timeout expires.
+     */
+    private static class LongPoll implements Runnable {
+        private final AtomicBoolean answered = new AtomicBoolean();
+        private final AsyncMethodCallback<FetchResult> resultHandler;
+        private final Call<FetchResult> fetch;
+        // Set right after scheduling, so a timeout that fires early may still find it null
+        private volatile ScheduledFuture<?> timeout;
+
+        LongPoll(AsyncMethodCallback<FetchResult> resultHandler, Call<FetchResult> fetch) {
+            this.resultHandler = resultHandler;
+            this.fetch = fetch;
+        }
+
+        @Override
+        public void run() {
+            if (!answered.compareAndSet(false, true)) {
+                return;
+            }
+            ScheduledFuture<?> t = timeout;
+            if (t != null) {
+                t.cancel(false);
+            }
+            complete(resultHandler, fetch);
+        }
+    }
+
+    private class ReportsHandler implements Reports.AsyncIface {
+        @Override
+        public void saveReport(Map<String, Set<String>> report, AsyncMethodCallback<Boolean> resultHandler) {
+            Session session = Session.current();
+            complete(resultHandler, () -> {
+                synchronized (session) {
+                    requireLogin(session, "saveReport");
+                    return requireSearch(session, "saveReport").matchesReport(report);
+                }
+            });
+        }
+
+        @Override
+        public void saveReportDigest(ReportDigest digest, AsyncMethodCallback<Boolean> resultHandler) {
+            Session session = Session.current();
+            complete(resultHandler, () -> {
+                synchronized (session) {
+                    requireLogin(session, "saveReportDigest");
+                    return requireSearch(session, "saveReportDigest").matchesDigest(digest);
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates a session per connection and makes it current for each call.
+     */
+    private static class SessionEventHandler implements TServerEventHandler {
+        @Override
+        public void preServe() {
+        }
+
+        @Override
+        public ServerContext createContext(TProtocol input, TProtocol output) {
+            return new Session();
+        }
+
+        @Override
+        public void deleteContext(ServerContext context, TProtocol input, TProtocol output) {
+            Session session = (Session) context;
+            synchronized (session) {
+                session.close();
+            }
+        }
+
+        @Override
+        public void processContext(ServerContext context, TTransport input, TTransport output) {
+            Session.setCurrent((Session) context);
+        }
+    }
+
+    /**
+     * Creates the server, call serve() on it to start.
+     */
+    public TServer createServer(int port, int selectorThreads, int workerThreads) throws TException {
+        // Register all services in a multiplexer
+        AsyncMultiplexedProcessor processor = new AsyncMultiplexedProcessor();
+        processor.registerProcessor("Login", new Login.AsyncProcessor<>(new LoginHandler()));
+        processor.registerProcessor("Search", new Search.AsyncProcessor<>(new SearchHandler()));
+        processor.registerProcessor("Reports", new Reports.AsyncProcessor<>(new ReportsHandler()));
+
+        // The non-blocking server reads whole frames, so the framed transport is implied
+        TThreadedSelectorServer.Args args = new TThreadedSelectorServer.Args(new TNonblockingServerSocket(port))
+            .selectorThreads(selectorThreads)
+            .workerThreads(workerThreads);
+        args.processor(processor);
+        // Use a binary protocol to serialize data
+        args.inputProtocolFactory(AsyncMultiplexedProcessor.inputProtocolFactory(new TBinaryProtocol.Factory()));
+        args.outputProtocolFactory(new TBinaryProtocol.Factory());
+
+        TServer server = new TThreadedSelectorServer(args);
+        server.setServerEventHandler(new SessionEventHandler());
+        return server;
+    }
+
+    public static void main(String args[]) {
+        int port = (args.length < 1) ? 5000 : Integer.parseInt(args[0]);
+        int selectorThreads = (args.length < 2) ? 2 : Integer.parseInt(args[1]);
+        int workerThreads = (args.length < 3) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(args[2]);
+        long itemIntervalMs = (args.length < 4) ? 10 : Long.parseLong(args[3]);
+        int bufferCapacity = (args.length < 5) ? 64 : Integer.parseInt(args[4]);
+        int producerThreads = (args.length < 6) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(args[5]);
+        int cacheCapacity = (args.length < 7) ? 0 : Integer.parseInt(args[6]); // items, zero disables the cache
+        long cacheTimeToLiveMs = (args.length < 8) ? 60000 : Long.parseLong(args[7]);
+
+        try {
+            TaskServer taskServer = new TaskServer(TimeUnit.MILLISECONDS.toNanos(itemIntervalMs), bufferCapacity, producerThreads,
+                cacheCapacity, cacheTimeToLiveMs);
+            if (taskServer.getCache() != null) {
+                // Hit rate and size of the cache are visible in JConsole
+                ManagementFactory.getPlatformMBeanServer().registerMBean(taskServer.getCache(),
+                    new ObjectName("nswi080.task:type=SearchResultCache"));
+            }
+            TServer server = taskServer.createServer(port, selectorThreads, workerThreads);
+            System.out.printf("Serving on port %d with %d selector and %d worker threads%n", port, selectorThreads, workerThreads);
+            server.serve();
+        } catch (TException | JMException e) {
+            e.printStackTrace();
+        }
+    }
+}
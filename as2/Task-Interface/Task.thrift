@@ -77,6 +77,13 @@ struct SearchState{
     
     // Update: new field to signal support for multiple fetched results
     3: bool supportMultipleItems = false
+
+    // Update: if set, fetch waits up to this many milliseconds for items to be ready
+    // instead of returning PENDING right away, then returns all items that are ready
+    4: optional i32 waitTimeoutMs
+
+    // Update: if set, a fetch of multiple items returns at most this many items
+    5: optional i32 maxItems
 }
 
 // Result of a call to fetch
@@ -95,6 +102,15 @@ struct FetchResult{
 // Type of a report
 typedef map<string, set<string>> Report
 
+// Update: digest of a report, its size does not depend on the number of items
+// The hash of a value is 64-bit FNV-1a of its UTF-8 bytes followed by the splitmix64 finalizer
+struct ReportDigest{
+    // Number of distinct values of each field of the report
+    1: map<string, i32> valueCounts
+    // Sum of the hashes of the distinct values of each field (modulo 2^64), independent of their order
+    2: map<string, i64> valueHashes
+}
+
 // Service handling item search
 service Search{
     // Searches for items of a specified type.
@@ -120,4 +136,9 @@ service Reports{
     // returns true if the contents of the report match the last search
     // returns false otherwise
     bool saveReport(1: Report report) throws (1: ProtocolException protocolException);
+
+    // Update: verifies a report by its digest instead of sending the whole report
+    // throws ProtocolException if not logged in, or no search was performed
+    // returns true if the digest matches the digest of the report of the last search
+    bool saveReportDigest(1: ReportDigest digest) throws (1: ProtocolException protocolException);
 }
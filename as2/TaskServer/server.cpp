@@ -1,5 +1,7 @@
 // Standard library headers
 #include <algorithm>
+#include <cstdint>
+#include <map>
 #include <memory>
 #include <iostream>
 #include <string>
@@ -232,6 +234,33 @@ public:
              << "\nmatchesReport Incomming: " << otherReport << '\n';
         return report == otherReport;
     }
+
+    // Hash of a report value: 64-bit FNV-1a of its UTF-8 bytes followed by the splitmix64 finalizer
+    static int64_t valueHash(const string &value) {
+        uint64_t hash = 0xcbf29ce484222325ULL;
+        for (unsigned char byte : value) {
+            hash ^= byte;
+            hash *= 0x100000001b3ULL;
+        }
+        hash = (hash ^ (hash >> 30)) * 0xbf58476d1ce4e5b9ULL;
+        hash = (hash ^ (hash >> 27)) * 0x94d049bb133111ebULL;
+        return static_cast<int64_t>(hash ^ (hash >> 31));
+    }
+
+    bool matchesDigest(const ReportDigest &digest) {
+        map<string, int32_t> valueCounts;
+        map<string, int64_t> valueHashes;
+        for (const auto & record : report) {
+            // Sum modulo 2^64, unsigned so that the overflow is defined
+            uint64_t hashSum = 0;
+            for (const auto & value : record.second) {
+                hashSum += static_cast<uint64_t>(valueHash(value));
+            }
+            valueCounts[record.first] = static_cast<int32_t>(record.second.size());
+            valueHashes[record.first] = static_cast<int64_t>(hashSum);
+        }
+        return valueCounts == digest.valueCounts && valueHashes == digest.valueHashes;
+    }
 };
 
 struct Session {
@@ -329,6 +358,18 @@ public:
 
         return session->itemGenerator->matchesReport(report);
     }
+
+    bool saveReportDigest(const ReportDigest& digest) override {
+        lock_guard<mutex> lock{session->mux};
+
+        if (!session->loggedIn) {
+            throw newProtocolException("Error fetch: not logged in.");
+        } else if (!session->itemGenerator) {
+            throw newProtocolException("Error fetch: no search started yet.");
+        }
+
+        return session->itemGenerator->matchesDigest(digest);
+    }
 };
 
 // This factory creates a new handler for each conection
@@ -1,10 +1,39 @@
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import javax.jms.*;
 
 import org.apache.activemq.artemis.jms.client.ActiveMQConnectionFactory;
 
+/*
+ * The bank, its accounts are partitioned among shards that each run on their own thread
+ *
+ * A single consumer receives all messages from BankQueue and dispatches them to the shard
+ * of the account they concern, which keeps operations of one account in order while
+ * different accounts proceed in parallel. The registry of clients and accounts is shared.
+ * Accounts and balances survive restarts in the ledger, which the shards journal to.
+ *
+ * In the transacted mode the consumer receives batches of up to batchSize messages or
+ * batchTimeMs milliseconds in a transacted session, waits for the shards to apply them and
+ * sync their journals, sends the replies and reports of the batch and commits the session,
+ * so the consumed messages and the resulting messages are acknowledged and sent together.
+ * Messages the shards produce on their own, such as the refunds of expired transfers, are
+ * sent with an empty batch when no message arrives for batchTimeMs.
+ *
+ * A batch the shards applied is never undone: when sending or committing fails, the bank
+ * rolls the transaction back and sends the batch's messages again until a commit succeeds.
+ * The rolled back messages come back from the broker marked as redelivered and are only
+ * acknowledged, not applied a second time.
+ */
 public class Bank implements MessageListener {
 	
 	/**** PUBLIC CONSTANTS ****/
@@ -19,7 +48,7 @@ public class Bank implements MessageListener {
 	public static final String ACCOUNT_BALANCE_PROPERTY = "currentBalance";
 
 	// Account initial balance
-	private static final int INITIAL_BALANCE = 10000;
+	static final int INITIAL_BALANCE = 10000;
 
 	// MapMessage key for order type
 	public static final String ORDER_TYPE_KEY = "orderType";
@@ -42,10 +71,27 @@ public class Bank implements MessageListener {
 	// report type "received money"
 	public static final int REPORT_TYPE_RECEIVED = 1;
 	public static final int REPORT_TYPE_INSUFFICIENT_FUNDS = 2;
+	// report type "balance changed", with the new balance and its sequence number
+	public static final int REPORT_TYPE_BALANCE_CHANGED = 3;
+	// report types to the seller whose confirmation the bank applied, or to both parties of a transfer that timed out
+	public static final int REPORT_TYPE_TRANSFER_COMPLETED = 4;
+	public static final int REPORT_TYPE_TRANSFER_ROLLED_BACK = 5;
+
+	// MapMessage key and reply property of the sequence number of a balance, it grows by one with every change
+	public static final String BALANCE_SEQUENCE_KEY = "balanceSequence";
+
+	// MapMessage key and reply property of the run of the bank that numbered a balance, sequences restart with every run
+	public static final String BANK_RUN_KEY = "bankRun";
 
 	// MapMessage key for sender's account
 	public static final String REPORT_SENDER_ACC_KEY = "senderAccount";
 
+	// time the seller has to confirm a transfer before the escrowed money returns to the buyer
+	static final long CONFIRMATION_TIMEOUT_MS = 10000;
+
+	// longest wait between two attempts to send and commit a batch
+	private static final long MAX_COMMIT_BACKOFF_MS = 1000;
+
 	/**** PRIVATE VARIABLES ****/
 
 	// connection to broker
@@ -54,69 +100,275 @@ public class Bank implements MessageListener {
 	// session for asynchronous event messages
 	private Session bankSession;
 	
-	// sender of (reply) messages, not bound to any destination
-	private MessageProducer bankSender;
-
 	// receiver of event messages
 	private MessageConsumer bankReceiver;
+
+	// sender of the messages of a batch in the transacted mode
+	private MessageProducer bankSender;
+
+	// most messages in a batch, zero or less for a non-transacted session acknowledging every message
+	private final int batchSize;
+
+	// longest time a batch waits for more messages
+	private final long batchTimeMs;
+
+	// receives and commits batches in the transacted mode
+	private Thread batchThread;
+
+	// whether the bank is closing, the batch thread then stops when the receiver returns nothing
+	private volatile boolean closing = false;
+
+	// ids of the messages applied in the current batch, used only by the batch thread
+	private final Set<String> batchMessageIds = new HashSet<String>();
+
+	// ids of applied messages whose consumption was rolled back, their redelivery is only acknowledged
+	private final Set<String> rolledBackMessageIds = new HashSet<String>();
 	
 	// Queue of incoming messages
 	private Queue toBankQueue;
+
+	// shards owning the account balances, account number modulo their count selects the shard
+	private BankShard[] shards;
+
+	// durable accounts and balances
+	private Ledger ledger;
 	
-	// last assigned account number
+	// last assigned account number, only the dispatching thread assigns them
 	private int lastAccount  = 1000000;
 
 	// map client names to client account numbers
-	private Map<String, Integer> clientAccounts = new HashMap<String, Integer>();
+	private Map<String, Integer> clientAccounts = new ConcurrentHashMap<String, Integer>();
 	
 	// map client account numbers to client names
-	private Map<Integer, String> accountsClients = new HashMap<Integer, String>();
+	private Map<Integer, String> accountsClients = new ConcurrentHashMap<Integer, String>();
 	
 	// map client names to client report destinations
-	private Map<String, Destination> clientDestinations = new HashMap<String, Destination>();
-
-	// store and check account balance
-	// in the current implementation, a transfer always succeeds 
-	// (1) check if the client has enough money
-	// (2) if not, send a message that the transfer failed instead
-	// (3) if yes, send the messages that the transfer succeeded and decrease the balance
+	private Map<String, Destination> clientDestinations = new ConcurrentHashMap<String, Destination>();
 
-	private Map<Integer, Integer> accountBalance = new HashMap<Integer, Integer>();
-
-	/**** PRIVATE METHODS ****/
+	/**** PACKAGE METHODS ****/
 	
 	/*
-	 * Constructor, stores broker connection and initializes maps
+	 * Constructor, stores broker connection, the number of shards, the ledger directory and the batch limits
+	 * Package-private so that benchmarks can run a bank next to an embedded broker
 	 */
-	private Bank(Connection conn) {
+	Bank(Connection conn, int shardCount, Path ledgerDirectory, int batchSize, long batchTimeMs) {
 		this.conn = conn;
+		this.shards = new BankShard[shardCount];
+		this.ledger = new Ledger(ledgerDirectory);
+		this.batchSize = batchSize;
+		this.batchTimeMs = batchTimeMs;
 	}
 	
 	/*
-	 * Initialize messaging structures, start listening for messages
+	 * Recover the accounts from the ledger, initialize messaging structures, start listening for messages
 	 */
-	private void init() throws JMSException {
-		// create a non-transacted, auto acknowledged session
-		bankSession = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+	void init() throws JMSException, IOException {
+		long start = System.nanoTime();
+		int settled = ledger.recover();
+
+		// clients reconnect with NEW_ACCOUNT and get their old account numbers, their destinations are not known yet
+		for (Map.Entry<Integer, String> entry : ledger.getClientNames().entrySet()) {
+			clientAccounts.put(entry.getValue(), entry.getKey());
+			accountsClients.put(entry.getKey(), entry.getValue());
+			lastAccount = Math.max(lastAccount, entry.getKey() + 1);
+		}
+
+
+		// create a non-transacted, auto acknowledged session, or a transacted one for batches
+		boolean transacted = batchSize > 0;
+		bankSession = transacted ? conn.createSession(true, Session.SESSION_TRANSACTED) : conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
 		
 		// create queue for incoming messages
 		toBankQueue = bankSession.createQueue(BANK_QUEUE);
+
+		// create the shards, each with its own session for sending and its own journal
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new BankShard(this, i, conn, toBankQueue, transacted, ledger.createJournal(i), ledger.getLastTransfer(), ledger.getGeneration());
+		}
+		ledger.getBalances().forEach((account, balance) -> shardOf(account).load(account, balance));
+
+		System.out.printf("Recovered %d accounts (%d transfers settled) in %d ms%n",
+				accountsClients.size(), settled, (System.nanoTime() - start) / 1000000);
 		
 		// create consumer of incoming messages
 		bankReceiver = bankSession.createConsumer(toBankQueue);
+
+		if (transacted) {
+			// receive batches on a thread of their own
+			bankSender = bankSession.createProducer(null);
+			batchThread = new Thread(this::receiveBatches, "bank-batches");
+			conn.start();
+			batchThread.start();
+			return;
+		}
 		
 		// receive messages asynchronously, using this object's onMessage()
 		bankReceiver.setMessageListener(this);
 		
-		// create producer of messages, not bound to any destination
-		bankSender = bankSession.createProducer(null);
-		
 		// start processing incoming messages
 		conn.start();
 	}
+
+	/*
+	 * Stop receiving messages, then let the shards finish their operations and close their journals
+	 */
+	void close() throws JMSException, InterruptedException {
+		closing = true;
+		bankReceiver.close();
+		if (batchThread != null) {
+			batchThread.join();
+		}
+		for (BankShard shard : shards) {
+			shard.close();
+		}
+	}
+
+	/*
+	 * Find the shard owning an account
+	 */
+	BankShard shardOf(int accountNumber) {
+		return shards[Math.floorMod(accountNumber, shards.length)];
+	}
+
+	/*
+	 * Find the destination for transfer reports of an account, or null if there is no such account
+	 */
+	Destination getReportDestination(int accountNumber) {
+		String clientName = accountsClients.get(accountNumber);
+		return (clientName == null) ? null : clientDestinations.get(clientName);
+	}
+
+	/**** PRIVATE METHODS ****/
+
+	/*
+	 * Receive, dispatch and commit batches of messages until the receiver is closed
+	 */
+	private void receiveBatches() {
+		try {
+			while (!closing) {
+				// a timeout of zero would wait for ever
+				Message msg = bankReceiver.receive(Math.max(1, batchTimeMs));
+				if (msg == null) {
+					// nothing arrived, send what the shards produced meanwhile
+					if (!closing && hasPendingMessages()) {
+						commitBatch();
+					}
+					continue;
+				}
+				applyOnce(msg);
+				long deadline = System.currentTimeMillis() + batchTimeMs;
+				for (int received = 1; received < batchSize; received++) {
+					long remaining = deadline - System.currentTimeMillis();
+					msg = (remaining > 0) ? bankReceiver.receive(remaining) : bankReceiver.receiveNoWait();
+					if (msg == null) {
+						break;
+					}
+					applyOnce(msg);
+				}
+				commitBatch();
+			}
+		} catch (JMSException e) {
+			// the receiver was closed
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Store the report destination of a known client, unless the message did not name one
+	 */
+	private void registerDestination(String clientName, Destination replyDest) {
+		if (clientName != null && replyDest != null) {
+			clientDestinations.put(clientName, replyDest);
+		}
+	}
+
+	/*
+	 * Dispatch a message of a batch, unless a rolled back batch applied it already
+	 */
+	private void applyOnce(Message msg) throws JMSException {
+		String id = msg.getJMSMessageID();
+		if (msg.getJMSRedelivered() && rolledBackMessageIds.remove(id)) {
+			// its replies and reports were sent by the retried commit of the earlier batch
+			return;
+		}
+		batchMessageIds.add(id);
+		onMessage(msg);
+	}
+
+	/*
+	 * Whether some shard keeps messages for the next transaction
+	 */
+	private boolean hasPendingMessages() {
+		for (BankShard shard : shards) {
+			if (shard.hasOutgoing()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Wait for the shards to apply a batch and sync it to their journals, then send its messages and commit
+	 */
+	private void commitBatch() {
+		List<BankShard.Outgoing> batch = new ArrayList<BankShard.Outgoing>();
+		// the second round waits for credits the first round handed to other shards
+		for (int round = 0; round < 2; round++) {
+			List<CompletableFuture<List<BankShard.Outgoing>>> flushed = new ArrayList<CompletableFuture<List<BankShard.Outgoing>>>(shards.length);
+			for (BankShard shard : shards) {
+				flushed.add(shard.flush());
+			}
+			for (CompletableFuture<List<BankShard.Outgoing>> shardFlushed : flushed) {
+				try {
+					batch.addAll(shardFlushed.get());
+				} catch (InterruptedException | ExecutionException e) {
+					// the shard keeps its messages and hands them over with the next batch
+					e.printStackTrace();
+				}
+			}
+		}
+
+		// the shards applied the batch, so it can only go forward: send its messages until they are committed
+		for (long backoffMs = 1; ; backoffMs = Math.min(2 * backoffMs, MAX_COMMIT_BACKOFF_MS)) {
+			try {
+				for (BankShard.Outgoing outgoing : batch) {
+					bankSender.send(outgoing.destination, outgoing.message);
+				}
+				bankSession.commit();
+				batchMessageIds.clear();
+				return;
+			} catch (JMSException e) {
+				e.printStackTrace();
+				rollBackBatch();
+			}
+			if (closing) {
+				System.out.println("Bank closed before " + batch.size() + " messages of a failed batch were sent");
+				return;
+			}
+			try {
+				Thread.sleep(backoffMs);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Drop the messages sent in the transaction and return the consumed ones to the queue
+	 * The returned messages are applied already, their redelivery is only acknowledged
+	 */
+	private void rollBackBatch() {
+		rolledBackMessageIds.addAll(batchMessageIds);
+		batchMessageIds.clear();
+		try {
+			bankSession.rollback();
+		} catch (JMSException e) {
+			e.printStackTrace();
+		}
+	}
 	
 	/*
-	 * Handle text messages - in our case it's only the message requesting new account
+	 * Handle text messages - new accounts, balance queries and confirmations of transfers
 	 */
 	private void processTextMessage(TextMessage txtMsg) throws JMSException {
 		// get the destination that client specified for replies
@@ -139,23 +391,27 @@ public class Bank implements MessageListener {
 				// also store the newly assigned number
 				clientAccounts.put(clientName, accountNumber);
 				accountsClients.put(accountNumber, clientName);
-				accountBalance.put(accountNumber, INITIAL_BALANCE);
 			}
 
 			System.out.println("Connected client " + clientName + " with account " + accountNumber);
 
-			// create reply TextMessage with the account number 
-			TextMessage reply = bankSession.createTextMessage(String.valueOf(accountNumber));
-			// send the reply to the provided reply destination
-			bankSender.send(replyDest, reply);
+			shardOf(accountNumber).openAccount(accountNumber, clientName, replyDest, txtMsg.getJMSCorrelationID());
 		} else if (CHECK_BALANCE_QUERY_MSG.equals(txtMsg.getText())) {
-			// get the client's name stored as a property
+			// get the account number stored as a property
 		    int accountNumber = txtMsg.getIntProperty(Client.ACCOUNT_NUMBER_PROPERTY);
-		    int balance = accountBalance.get(accountNumber);
-
-		    TextMessage reply = bankSession.createTextMessage(CHECK_BALANCE_REPLY_MSG);
-		    reply.setIntProperty(ACCOUNT_BALANCE_PROPERTY, balance);
-		    bankSender.send(replyDest, reply);
+		    // a client that stayed connected across a restart of the bank registers its destination again
+		    registerDestination(accountsClients.get(accountNumber), replyDest);
+
+		    shardOf(accountNumber).checkBalance(accountNumber, replyDest, txtMsg.getJMSCorrelationID());
+		} else if (Client.SALE_BANK_CONFIRMATION_MSG.equals(txtMsg.getText())) {
+			// the transfer is pending in the shard of the buyer's account
+			String correlationId = txtMsg.getJMSCorrelationID();
+			int shard = BankShard.shardOfTransfer(correlationId);
+			if (shard < 0 || shard >= shards.length) {
+				System.out.println("Confirmation of an unknown transfer " + correlationId);
+				return;
+			}
+			shards[shard].confirm(correlationId, txtMsg.getIntProperty(Client.SALE_BANK_CONFIRMATION_PROPERTY));
 		} else {
 			System.out.println("Received unknown text message: " + txtMsg.getText());
 			System.out.println("Full message info:\n" + txtMsg);
@@ -176,75 +432,16 @@ public class Bank implements MessageListener {
 			
 			// find client's account number
 			int clientAccount = clientAccounts.get(clientName);
+			registerDestination(clientName, mapMsg.getJMSReplyTo());
 
 			// get receiver account number
 			int destAccount = mapMsg.getInt(ORDER_RECEIVER_ACC_KEY);
 
-			// find receiving client's name
-			String destName = accountsClients.get(destAccount);
-
-			// find receiving client's report message destination
-			Destination dest = clientDestinations.get(destName);
-
 			// get amount of money being transferred
 			int amount = mapMsg.getInt(AMOUNT_KEY);
 
-			// create report message for the receiving client
-			MapMessage reportMsg = bankSession.createMapMessage();
-
-			// set sender's account number
-			reportMsg.setInt(REPORT_SENDER_ACC_KEY, clientAccount);
-
-			// set money of amount transfered
-			reportMsg.setInt(AMOUNT_KEY, amount);
-
-			// check account balance
-			int balance = accountBalance.get(clientAccount);
-
-			if (balance < amount) {
-				System.out.printf("Cannot transfer $%d from %d : %d to %d : Insufficient funds%n",
-						amount, clientAccount, balance, destAccount);
-
-				// set report type to "you received money"
-				reportMsg.setInt(REPORT_TYPE_KEY, REPORT_TYPE_INSUFFICIENT_FUNDS);
-				bankSender.send(dest, reportMsg);
-			} else {
-				System.out.println("Waiting for confirmation of $" + amount + " from account " + clientAccount + " to account " + destAccount);
-
-				// TODO: Instead of changing the balances now, wait for the sender to send a confirmation.
-
-				Queue fromSellerQueue = bankSession.createTemporaryQueue();
-				MessageConsumer tmpSellerReceiver = bankSession.createConsumer(fromSellerQueue);
-
-				// set report type to "you received money" but I need confirmation if the amount is sufficient
-				reportMsg.setInt(REPORT_TYPE_KEY, REPORT_TYPE_RECEIVED);
-				reportMsg.setJMSReplyTo(fromSellerQueue);
-
-				// send report to receiver client's destination
-				bankSender.send(dest, reportMsg);
-
-				Message msg = tmpSellerReceiver.receive();
-				if (msg instanceof TextMessage && Client.SALE_BANK_CONFIRMATION_MSG.equals(((TextMessage)msg).getText())) {
-					TextMessage saleConfirmation = (TextMessage) msg;
-					switch (saleConfirmation.getIntProperty(Client.SALE_BANK_CONFIRMATION_PROPERTY)) {
-						case Client.SALE_BANK_CONFIRMATION_VALID:
-							System.out.println("Transferring $" + amount + " from account " + clientAccount + " to account " + destAccount);
-
-							accountBalance.put(clientAccount, balance - amount);
-
-							int destBalance = accountBalance.get(destAccount);
-							accountBalance.put(destAccount, destBalance + amount);
-							break;
-						case Client.SALE_BANK_CONFIRMATION_INVALID:
-							System.out.println("Negative confirmation, transfer of funds stopped");
-							break;
-						default:
-							assert(false);
-					}
-				} else {
-					System.out.println("Invalid message type received as a confirmation of a transaction: " + msg);
-				}
-			}
+			// the buyer's shard takes the money, the seller's shard adds it after the confirmation
+			shardOf(clientAccount).transfer(clientAccount, destAccount, amount);
 		} else {
 			System.out.println("Received unknown MapMessage:\n" + mapMsg);
 		}
@@ -275,12 +472,17 @@ public class Bank implements MessageListener {
 	 * Main method, create connection to broker and a Bank instance
 	 */
 	public static void main(String[] args) {
+		int shardCount = (args.length < 1) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(args[0]);
+		Path ledgerDirectory = Paths.get((args.length < 2) ? "ledger" : args[1]);
+		int batchSize = (args.length < 3) ? 0 : Integer.parseInt(args[2]);
+		long batchTimeMs = (args.length < 4) ? 5 : Long.parseLong(args[3]);
+
 		// create connection to the broker.
 		
 		try (ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("tcp://localhost:61616");
 				Connection connection = connectionFactory.createConnection()) {
 			// create a bank instance
-			Bank bank = new Bank(connection);
+			Bank bank = new Bank(connection, shardCount, ledgerDirectory, batchSize, batchTimeMs);
 			// initialize bank's messaging
 			bank.init();
 			
@@ -291,6 +493,7 @@ public class Bank implements MessageListener {
 			System.in.read();
 				
 			System.out.println("Stopping...");
+			bank.close();
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,474 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+/*
+ * Part of the bank owning the balances of some of the accounts
+ *
+ * All operations of the shard run on its own thread, one at a time and in the order they
+ * were submitted, so the operations of an account stay ordered without locks while other
+ * shards process their accounts in parallel. The shard sends its replies and reports
+ * through its own session, as a session may only be used by one thread.
+ *
+ * Every change of a balance is appended to the shard's journal before the reply goes out.
+ * The journal is synced to the disk at most GROUP_COMMIT_MS after the first unsynced change,
+ * so one sync covers all the operations of that interval.
+ *
+ * After every change of a balance the shard pushes the new balance to the account's report
+ * destination, numbered by a sequence per account that grows by one with every change, so
+ * clients keep the balance locally and notice a missed update by a gap in the sequence.
+ * Sequences are not journaled, so every event and balance reply carries the run of the bank
+ * too and clients resync when the run changes.
+ *
+ * In the transacted mode of the bank the shard does not send anything itself: it keeps the
+ * replies and reports until the bank flushes the shard at the end of a batch and sends them
+ * in the transaction that consumed the batch.
+ */
+class BankShard {
+
+	/**** PRIVATE TYPES ****/
+
+	/*
+	 * Operation of the shard, run on its thread
+	 */
+	private interface Operation {
+		void run() throws JMSException, IOException;
+	}
+
+	/*
+	 * Transfer waiting for the seller's confirmation, the amount is already taken from the buyer
+	 */
+	private static class PendingTransfer {
+		// id of the transfer in the journal
+		final long id;
+		final int clientAccount;
+		final int destAccount;
+		final int amount;
+		// rolls the transfer back when the seller does not confirm in time
+		ScheduledFuture<?> timeout;
+
+		PendingTransfer(long id, int clientAccount, int destAccount, int amount) {
+			this.id = id;
+			this.clientAccount = clientAccount;
+			this.destAccount = destAccount;
+			this.amount = amount;
+		}
+	}
+
+	/**** PUBLIC TYPES ****/
+
+	/*
+	 * Message waiting to be sent in the bank's transaction
+	 */
+	static class Outgoing {
+		final Destination destination;
+		final Message message;
+
+		Outgoing(Destination destination, Message message) {
+			this.destination = destination;
+			this.message = message;
+		}
+	}
+
+	/**** PRIVATE CONSTANTS ****/
+
+	// longest time a journaled change waits for the sync to the disk
+	private static final long GROUP_COMMIT_MS = 5;
+
+	/**** PRIVATE VARIABLES ****/
+
+	// the bank with the account registry and the other shards
+	private final Bank bank;
+
+	// index of the shard among the shards of the bank
+	private final int index;
+
+	// runs operations of the shard one at a time, also times out transfers
+	private final ScheduledExecutorService executor;
+
+	// session of the shard thread for replies and reports
+	private final Session session;
+
+	// sender of messages, not bound to any destination
+	private final MessageProducer sender;
+
+	// queue the sellers confirm transfers to
+	private final Queue toBankQueue;
+
+	// whether messages wait for the bank's transaction instead of being sent at once
+	private final boolean transacted;
+
+	// messages of the current batch in the transacted mode
+	private List<Outgoing> outgoing = new ArrayList<Outgoing>();
+
+	// whether outgoing holds messages, read by the bank's batch thread
+	private volatile boolean hasOutgoing = false;
+
+	// balances of the accounts of this shard
+	private final IntIntMap accountBalance = new IntIntMap(1024);
+
+	// sequence numbers of the balances of the accounts of this shard, they start at zero with every run of the bank
+	private final IntIntMap balanceSequence = new IntIntMap(1024);
+
+	// run of the bank, the ledger generation, it tells clients that the sequences started again
+	private final long bankRun;
+
+	// journal of the changes of the balances, written only by the shard thread
+	private final LedgerJournal journal;
+
+	// whether a sync of the journal is scheduled
+	private boolean syncScheduled = false;
+
+	// transfers from accounts of this shard waiting for the seller's confirmation, mapped by correlation id
+	private final Map<String, PendingTransfer> pendingTransfers = new HashMap<String, PendingTransfer>();
+
+	// last assigned transfer number, used in correlation ids and transfer ids
+	private long lastTransfer;
+
+	/**** PACKAGE METHODS ****/
+
+	/*
+	 * Create the shard with its own session and thread
+	 * Transfer numbers continue after the last one in the ledger, balance sequences are numbered within the bank run
+	 */
+	BankShard(Bank bank, int index, Connection conn, Queue toBankQueue, boolean transacted, LedgerJournal journal, long lastTransfer, long bankRun) throws JMSException {
+		this.bank = bank;
+		this.index = index;
+		this.toBankQueue = toBankQueue;
+		this.transacted = transacted;
+		this.journal = journal;
+		this.lastTransfer = lastTransfer;
+		this.bankRun = bankRun;
+		this.session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		this.sender = session.createProducer(null);
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "bank-shard-" + index);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/*
+	 * Find the shard of a transfer by its correlation id, or -1 if it is not a transfer
+	 */
+	static int shardOfTransfer(String correlationId) {
+		if (correlationId == null || !correlationId.startsWith("transfer-")) {
+			return -1;
+		}
+		int end = correlationId.indexOf('-', "transfer-".length());
+		try {
+			return Integer.parseInt(correlationId.substring("transfer-".length(), end));
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * Set the balance of an account recovered from the ledger, before any operation is submitted
+	 */
+	void load(int accountNumber, int balance) {
+		accountBalance.put(accountNumber, balance);
+	}
+
+	/*
+	 * Open an account with the initial balance unless it is open, reply with its number
+	 */
+	void openAccount(int accountNumber, String clientName, Destination replyDest, String correlationId) {
+		submit(() -> {
+			if (!accountBalance.containsKey(accountNumber)) {
+				accountBalance.put(accountNumber, Bank.INITIAL_BALANCE);
+				journal.open(accountNumber, Bank.INITIAL_BALANCE, clientName);
+				journaled();
+			}
+
+			// create reply TextMessage with the account number and its balance to start the client's view of it
+			TextMessage reply = session.createTextMessage(String.valueOf(accountNumber));
+			reply.setIntProperty(Bank.ACCOUNT_BALANCE_PROPERTY, accountBalance.get(accountNumber, 0));
+			reply.setIntProperty(Bank.BALANCE_SEQUENCE_KEY, balanceSequence.get(accountNumber, 0));
+			reply.setLongProperty(Bank.BANK_RUN_KEY, bankRun);
+			// the client matches the reply to its request by the correlation id
+			reply.setJMSCorrelationID(correlationId);
+			// send the reply to the provided reply destination
+			send(replyDest, reply);
+		});
+	}
+
+	/*
+	 * Reply with the balance of an account
+	 */
+	void checkBalance(int accountNumber, Destination replyDest, String correlationId) {
+		submit(() -> {
+			int balance = accountBalance.get(accountNumber, 0);
+
+			TextMessage reply = session.createTextMessage(Bank.CHECK_BALANCE_REPLY_MSG);
+			reply.setIntProperty(Bank.ACCOUNT_BALANCE_PROPERTY, balance);
+			reply.setIntProperty(Bank.BALANCE_SEQUENCE_KEY, balanceSequence.get(accountNumber, 0));
+			reply.setLongProperty(Bank.BANK_RUN_KEY, bankRun);
+			reply.setJMSCorrelationID(correlationId);
+			send(replyDest, reply);
+		});
+	}
+
+	/*
+	 * First step of a transfer from an account of this shard: take the amount into escrow
+	 * and ask the seller for confirmation, or report insufficient funds
+	 */
+	void transfer(int clientAccount, int destAccount, int amount) {
+		submit(() -> {
+			// find receiving client's report message destination
+			Destination dest = bank.getReportDestination(destAccount);
+			if (dest == null) {
+				System.out.println("Cannot transfer $" + amount + " from " + clientAccount + " to unknown account " + destAccount);
+				return;
+			}
+
+			// create report message for the receiving client
+			MapMessage reportMsg = session.createMapMessage();
+
+			// set sender's account number
+			reportMsg.setInt(Bank.REPORT_SENDER_ACC_KEY, clientAccount);
+
+			// set money of amount transfered
+			reportMsg.setInt(Bank.AMOUNT_KEY, amount);
+
+			// check account balance
+			int balance = accountBalance.get(clientAccount, 0);
+
+			if (balance < amount) {
+				System.out.printf("Cannot transfer $%d from %d : %d to %d : Insufficient funds%n",
+						amount, clientAccount, balance, destAccount);
+
+				reportMsg.setInt(Bank.REPORT_TYPE_KEY, Bank.REPORT_TYPE_INSUFFICIENT_FUNDS);
+				send(dest, reportMsg);
+				return;
+			}
+
+			System.out.println("Waiting for confirmation of $" + amount + " from account " + clientAccount + " to account " + destAccount);
+
+			// the correlation id names the shard, so the confirmation comes back here
+			long number = ++lastTransfer;
+			String correlationId = "transfer-" + index + "-" + number;
+			PendingTransfer transfer = new PendingTransfer(Ledger.transferId(index, number), clientAccount, destAccount, amount);
+
+			// hold the amount in escrow until the seller confirms, so it cannot be spent twice
+			accountBalance.put(clientAccount, balance - amount);
+			journal.escrow(transfer.id, clientAccount, destAccount, amount);
+			journaled();
+			balanceChanged(clientAccount);
+
+			pendingTransfers.put(correlationId, transfer);
+			transfer.timeout = executor.schedule(() -> expireTransfer(correlationId),
+					Bank.CONFIRMATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+			// set report type to "you received money" but I need confirmation if the amount is sufficient
+			// the seller confirms to the bank queue with the same correlation id
+			reportMsg.setInt(Bank.REPORT_TYPE_KEY, Bank.REPORT_TYPE_RECEIVED);
+			reportMsg.setJMSCorrelationID(correlationId);
+			reportMsg.setJMSReplyTo(toBankQueue);
+
+			// send report to receiver client's destination
+			send(dest, reportMsg);
+		});
+	}
+
+	/*
+	 * Second step of a transfer: complete or roll back a pending transfer according to the seller's confirmation
+	 */
+	void confirm(String correlationId, int confirmation) {
+		submit(() -> {
+			PendingTransfer transfer = pendingTransfers.remove(correlationId);
+			if (transfer == null) {
+				System.out.println("Confirmation of an unknown or expired transfer " + correlationId);
+				return;
+			}
+			transfer.timeout.cancel(false);
+
+			switch (confirmation) {
+				case Client.SALE_BANK_CONFIRMATION_VALID:
+					System.out.println("Transferring $" + transfer.amount + " from account " + transfer.clientAccount + " to account " + transfer.destAccount);
+
+					// the escrow leaves this shard, the seller's shard adds it to the seller's account
+					journal.commit(transfer.id);
+					journaled();
+					bank.shardOf(transfer.destAccount).credit(transfer.id, transfer.destAccount, transfer.amount);
+
+					// only now the seller confirms the sale to the buyer
+					report(transfer.destAccount, Bank.REPORT_TYPE_TRANSFER_COMPLETED, correlationId, transfer);
+					break;
+				case Client.SALE_BANK_CONFIRMATION_INVALID:
+					System.out.println("Negative confirmation, transfer of funds stopped");
+
+					refund(transfer);
+					break;
+				default:
+					System.out.println("Invalid confirmation of a transaction, transfer of funds stopped: " + confirmation);
+
+					refund(transfer);
+			}
+		});
+	}
+
+	/*
+	 * Add the money of a committed transfer to an account of this shard
+	 */
+	void credit(long transferId, int accountNumber, int amount) {
+		submit(() -> {
+			accountBalance.add(accountNumber, amount);
+			journal.credit(transferId, accountNumber, amount);
+			journaled();
+			balanceChanged(accountNumber);
+		});
+	}
+
+	/*
+	 * Sync the journal after the operations submitted so far and hand over the messages they produced
+	 */
+	CompletableFuture<List<Outgoing>> flush() {
+		CompletableFuture<List<Outgoing>> flushed = new CompletableFuture<List<Outgoing>>();
+		submit(() -> {
+			try {
+				journal.sync();
+				flushed.complete(outgoing);
+				outgoing = new ArrayList<Outgoing>();
+				hasOutgoing = false;
+			} catch (RuntimeException e) {
+				flushed.completeExceptionally(e);
+			}
+		});
+		return flushed;
+	}
+
+	/*
+	 * Whether messages wait for the bank's transaction, also those produced outside of a batch
+	 */
+	boolean hasOutgoing() {
+		return hasOutgoing;
+	}
+
+	/*
+	 * Sync and close the journal after the operations submitted so far, stop the shard thread
+	 * Transfers still waiting for confirmation are refunded by the recovery of the ledger
+	 */
+	void close() throws InterruptedException {
+		submit(() -> {
+			journal.close();
+			// drop the timeouts of pending transfers
+			executor.shutdownNow();
+		});
+		executor.awaitTermination(Bank.CONFIRMATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**** PRIVATE METHODS ****/
+
+	/*
+	 * Roll back a transfer the seller did not confirm in time and tell both parties, runs on the shard thread
+	 * A confirmation the seller sends later is dropped, the seller denies the sale when it gets the report
+	 */
+	private void expireTransfer(String correlationId) {
+		PendingTransfer transfer = pendingTransfers.remove(correlationId);
+		if (transfer != null) {
+			System.out.println("Confirmation of " + correlationId + " timed out, transfer of funds stopped");
+
+			try {
+				refund(transfer);
+				report(transfer.destAccount, Bank.REPORT_TYPE_TRANSFER_ROLLED_BACK, correlationId, transfer);
+				report(transfer.clientAccount, Bank.REPORT_TYPE_TRANSFER_ROLLED_BACK, correlationId, transfer);
+			} catch (IOException | JMSException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Report the outcome of a transfer to one of its parties, under the correlation id of the transfer
+	 */
+	private void report(int accountNumber, int reportType, String correlationId, PendingTransfer transfer) throws JMSException {
+		Destination dest = bank.getReportDestination(accountNumber);
+		if (dest == null) {
+			return;
+		}
+		MapMessage reportMsg = session.createMapMessage();
+		reportMsg.setInt(Bank.REPORT_TYPE_KEY, reportType);
+		reportMsg.setInt(Bank.REPORT_SENDER_ACC_KEY, transfer.clientAccount);
+		reportMsg.setInt(Bank.AMOUNT_KEY, transfer.amount);
+		reportMsg.setJMSCorrelationID(correlationId);
+		send(dest, reportMsg);
+	}
+
+	/*
+	 * Return the escrow of a transfer to the buyer's account, runs on the shard thread
+	 */
+	private void refund(PendingTransfer transfer) throws IOException, JMSException {
+		accountBalance.add(transfer.clientAccount, transfer.amount);
+		journal.refund(transfer.id);
+		journaled();
+		balanceChanged(transfer.clientAccount);
+	}
+
+	/*
+	 * Advance the sequence of a changed balance and push the balance to the account's report destination
+	 */
+	private void balanceChanged(int accountNumber) throws JMSException {
+		int sequence = balanceSequence.get(accountNumber, 0) + 1;
+		balanceSequence.put(accountNumber, sequence);
+
+		// a client that has not connected since the bank started gets its balance when it connects
+		Destination dest = bank.getReportDestination(accountNumber);
+		if (dest == null) {
+			return;
+		}
+		MapMessage event = session.createMapMessage();
+		event.setInt(Bank.REPORT_TYPE_KEY, Bank.REPORT_TYPE_BALANCE_CHANGED);
+		event.setInt(Bank.ACCOUNT_BALANCE_PROPERTY, accountBalance.get(accountNumber, 0));
+		event.setInt(Bank.BALANCE_SEQUENCE_KEY, sequence);
+		event.setLong(Bank.BANK_RUN_KEY, bankRun);
+		send(dest, event);
+	}
+
+	/*
+	 * Send a message now, or keep it for the bank's transaction in the transacted mode
+	 */
+	private void send(Destination destination, Message message) throws JMSException {
+		if (transacted) {
+			outgoing.add(new Outgoing(destination, message));
+			hasOutgoing = true;
+		} else {
+			sender.send(destination, message);
+		}
+	}
+
+	/*
+	 * Schedule a sync of the journal unless one is scheduled, so the changes of an interval share one sync
+	 */
+	private void journaled() {
+		if (!syncScheduled) {
+			syncScheduled = true;
+			executor.schedule(() -> {
+				syncScheduled = false;
+				journal.sync();
+			}, GROUP_COMMIT_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/*
+	 * Run an operation on the shard thread after the operations submitted before it
+	 */
+	private void submit(Operation operation) {
+		executor.execute(() -> {
+			try {
+				operation.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+	}
+}
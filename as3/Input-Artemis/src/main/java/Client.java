@@ -2,10 +2,18 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.IntStream;
 
 import javax.jms.*;
@@ -36,6 +44,7 @@ public class Client {
 	public static final String TRANSACTION_ERROR_INSUFFICIENT_FUNDS = "Insufficient funds";
 	public static final String TRANSACTION_ERROR_NOT_ENOUGH_MONEY_SENT = "Incorrect amount of money sent";
 	public static final String TRANSACTION_ERROR_NO_GOODS = "No such goods found";
+	public static final String TRANSACTION_ERROR_TRANSFER_ROLLED_BACK = "Transfer timed out and was rolled back";
 
 	// values for seller response status field
 	public static final int TRANSACTION_STATE_ACCEPT = 1;
@@ -59,6 +68,26 @@ public class Client {
 	// name of the topic for publishing offers
 	public static final String OFFER_TOPIC = "Offers";
 
+	// offer messages are MapMessages, a snapshot maps names of all offered goods to their prices
+	// and a delta maps prefixed names of changed goods, see OfferPublisher
+	public static final String OFFER_TYPE_PROPERTY = "offerType";
+	public static final String OFFER_SNAPSHOT = "snapshot";
+	public static final String OFFER_DELTA = "delta";
+
+	// name of the property with the seller's sequence number of an offer message
+	public static final String OFFER_SEQUENCE_PROPERTY = "offerSequence";
+
+	// prefixes of goods names in a delta, added and repriced goods map to the price
+	public static final String OFFER_ADDED_PREFIX = "added:";
+	public static final String OFFER_REMOVED_PREFIX = "removed:";
+	public static final String OFFER_PRICE_CHANGED_PREFIX = "priceChanged:";
+
+	// text of the TextMessage asking a seller for a snapshot of its offer after a missed delta
+	public static final String OFFER_SNAPSHOT_REQUEST_MSG = "OFFER_SNAPSHOT_REQUEST";
+
+	// time to wait for a reply before giving up the request
+	private static final long REPLY_TIMEOUT_MS = 30000;
+
 	/****	PRIVATE VARIABLES	****/
 
 	private final Object lock = new Object();
@@ -68,12 +97,30 @@ public class Client {
 
 	// client's account number
 	private int accountNumber;
+
+	// local view of the account balance, kept up to date by balance events from the bank
+	private int balance;
+
+	// sequence number of the balance in the local view
+	private int balanceSequence;
+
+	// run of the bank that numbered the balance in the local view, sequences restart with every run
+	private long balanceRun;
+
+	// whether the local view is up to date, false after a missed balance event until the next resync
+	private boolean balanceKnown = false;
 	
 	// offered goods, mapped by name
 	private Map<String, Goods> offeredGoods = new HashMap<String, Goods>();
 	
-	// available goods, mapped by seller's name 
-	private Map<String, List<Goods>> availableGoods = new HashMap<String, List<Goods>>();
+	// available goods, mapped by seller's name and goods name
+	private Map<String, Map<String, Goods>> availableGoods = new HashMap<String, Map<String, Goods>>();
+
+	// sequence numbers of the last applied offer messages, mapped by seller's name
+	private Map<String, Long> offerSequences = new HashMap<String, Long>();
+
+	// sellers asked for a snapshot after a missed delta, until the snapshot arrives
+	private Set<String> offerResyncs = new HashSet<String>();
 	
 	// reserved goods, mapped by name of the goods
 	private Map<String, Goods> reservedGoods = new HashMap<String, Goods>();
@@ -83,6 +130,12 @@ public class Client {
 	
 	// buyer's reply destinations, mapped by their names
 	private Map<String, Destination> reserverDestinations= new HashMap<String, Destination>();
+
+	// correlation ids of buyer's sale requests, mapped by their names
+	private Map<String, String> reserverCorrelations = new HashMap<String, String>();
+
+	// buyer's names of sales confirmed to the bank and waiting for its report, mapped by the transfer's correlation id
+	private Map<String, String> confirmedTransfers = new HashMap<String, String>();
 	
 	// connection to the broker
 	private Connection conn;
@@ -99,19 +152,17 @@ public class Client {
 	// sender for the eventSession
 	private MessageProducer eventSender;
 
-	// receiver of synchronous replies
-	private MessageConsumer replyReceiver;
-	
-	// topic to send and receiver offers
+	// topic to receive offers
 	private Topic offerTopic;
+
+	// publishes our offered goods to the topic
+	private OfferPublisher offerPublisher;
 	
 	// queue for sending messages to bank
 	private Queue toBankQueue;
 
-	// queue for receiving synchronous replies
-	private Queue replyQueue;
-
-
+	// sends requests and dispatches replies to them, bank reports are sent to its destination too
+	private Requestor requestor;
 
 	// reader of lines from stdin
 	private LineNumberReader in = new LineNumberReader(new InputStreamReader(System.in));
@@ -160,44 +211,17 @@ public class Client {
 		
 		// create queue for sending messages to bank
 		toBankQueue = clientSession.createQueue(Bank.BANK_QUEUE);
-		// create a temporary queue for receiving messages from bank
-		Queue fromBankQueue = eventSession.createTemporaryQueue();
-
-		// temporary receiver for the first reply from bank
-		// note that although the receiver is created within a different session
-		// than the queue, it is OK since the queue is used only within the
-		// client session for the moment
-		MessageConsumer tmpBankReceiver = clientSession.createConsumer(fromBankQueue);        
-		
-		// start processing messages
-		conn.start();
-		
-		// request a bank account number
-		Message msg = eventSession.createTextMessage(Bank.NEW_ACCOUNT_MSG);
-		msg.setStringProperty(CLIENT_NAME_PROPERTY, clientName);
-		// set ReplyTo that Bank will use to send me reply and later transfer reports
-		msg.setJMSReplyTo(fromBankQueue);
-		clientSender.send(toBankQueue, msg);
-		
-		// get reply from bank and store the account number
-		TextMessage reply = (TextMessage) tmpBankReceiver.receive();
-		accountNumber = Integer.parseInt(reply.getText());
-		System.out.println("Account number: " + accountNumber);
+		// create a temporary queue for all replies and for reports from bank
+		Queue replyQueue = eventSession.createTemporaryQueue();
 		
-		// close the temporary receiver
-		tmpBankReceiver.close();
+		/* Processing replies and bank reports */
 		
-		// temporarily stop processing messages to finish initialization
-		conn.stop();
+		// create consumer of the replies on the event session
+		MessageConsumer replyReceiver = eventSession.createConsumer(replyQueue);
 		
-		/* Processing bank reports */
-		
-		// create consumer of bank reports (from the fromBankQueue) on the event session
-		MessageConsumer bankReceiver = eventSession.createConsumer(fromBankQueue);
-		
-		// set asynchronous listener for reports, using anonymous MessageListener
-		// which just calls our designated method in its onMessage method
-		bankReceiver.setMessageListener(new MessageListener() {
+		// replies to our requests complete their futures, everything else is a bank report
+		// which goes to our designated method, using anonymous MessageListener
+		requestor = new Requestor(replyQueue, replyReceiver, new MessageListener() {
 			@Override
 			public void onMessage(Message msg) {
 				try {
@@ -255,50 +279,65 @@ public class Client {
 			}
 		});
 
-		// create temporary queue for synchronous replies
-		replyQueue = clientSession.createTemporaryQueue();
+		// publisher of our offered goods, sale requests may ask it for a snapshot
+		offerPublisher = new OfferPublisher(clientName, conn, OFFER_TOPIC, lock, offeredGoods);
+
+		// start processing messages
+		conn.start();
 		
-		// create synchronous receiver of the replies
-		replyReceiver = clientSession.createConsumer(replyQueue);
+		// request a bank account number
+		Message msg = clientSession.createTextMessage(Bank.NEW_ACCOUNT_MSG);
+		msg.setStringProperty(CLIENT_NAME_PROPERTY, clientName);
+		// the ReplyTo that Bank will use to send me reply is also where it sends later transfer reports
+		Message reply = awaitReply(requestor.request(clientSender, toBankQueue, msg));
+		if (reply == null) {
+			throw new JMSException("Bank did not assign an account number");
+		}
 		
-		// restart message processing
-		conn.start();
+		// store the account number, the reply also starts the local view of the balance
+		accountNumber = Integer.parseInt(((TextMessage) reply).getText());
+		updateBalance(reply);
+		System.out.println("Account number: " + accountNumber);
 		
-		// send list of offered goods
-		publishGoodsList(clientSender, clientSession);
+		// publish the offered goods, then their changes
+		offerPublisher.requestSnapshot();
 	}
 
 	/*
-	 * Publish a list of offered goods
-	 * Parameter is an (unbound) sender that fits into current session
-	 * Sometimes we publish the list on user's request, sometimes we react to an event
+	 * Wait for the reply of a request, give it up when it does not come in time
+	 * Returns null when there is no reply
 	 */
-	private void publishGoodsList(MessageProducer sender, Session session) throws JMSException {
-		// create a message (of appropriate type) holding the list of offered goods
-		// which can be created like this: new ArrayList<Goods>(offeredGoods.values())
-		ObjectMessage message = session.createObjectMessage();
-        synchronized (lock) {
-			ArrayList<Goods> goods = new ArrayList<Goods>(offeredGoods.values());
-			message.setObject(goods);
+	private Message awaitReply(CompletableFuture<Message> reply) throws JMSException {
+		try {
+			return reply.get(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			System.out.println("No reply received in " + REPLY_TIMEOUT_MS + " ms");
+			reply.cancel(false);
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			reply.cancel(false);
+			return null;
+		} catch (ExecutionException e) {
+			throw new JMSException("Request failed: " + e.getCause());
 		}
-
-		// don't forget to include the clientName in the message so other clients know
-		// who is sending the offer - see how connect() does it when sending message to bank
-		message.setStringProperty(CLIENT_NAME_PROPERTY, clientName);
-		
-		// send the message using the sender passed as parameter 
-		sender.send(offerTopic, message);
 	}
-	
+
 	/*
 	 * Send empty offer and disconnect from the broker 
 	 */
 	private void disconnect() throws JMSException {
 		// delete all offered goods
-		offeredGoods.clear();
+		synchronized (lock) {
+			offeredGoods.clear();
+		}
 		
-		// send the empty list to indicate client quit
-		publishGoodsList(clientSender, clientSession);
+		// send the empty snapshot to indicate client quit
+		try {
+			offerPublisher.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		
 		// close the connection to broker
 		conn.close();
@@ -314,7 +353,7 @@ public class Client {
 			for (String sellerName : availableGoods.keySet()) {
 				System.out.println("From " + sellerName);
 				// iterate over goods offered by a seller
-				for (Goods g : availableGoods.get(sellerName)) {
+				for (Goods g : availableGoods.get(sellerName).values()) {
 					System.out.println("  " + g);
 				}
 			}
@@ -351,7 +390,7 @@ public class Client {
 					list();
 					break;
 				case 'p':
-					publishGoodsList(clientSender, clientSession);
+					offerPublisher.requestSnapshot();
 					System.out.println("List of offers published");
 					break;
 				case 'i':
@@ -375,9 +414,13 @@ public class Client {
 		System.out.println("Enter amount to send:");
 		int amountToSend = Integer.parseInt(in.readLine());
 
-		List<Goods> sellerGoods;
+		// copy the seller's goods, offer messages change them on the event thread
+		List<Goods> sellerGoods = null;
 		synchronized (lock) {
-			sellerGoods = availableGoods.get(sellerName);
+			Map<String, Goods> goods = availableGoods.get(sellerName);
+			if (goods != null) {
+				sellerGoods = new ArrayList<Goods>(goods.values());
+			}
 		}
 
 		// check if the seller exists
@@ -408,22 +451,23 @@ public class Client {
 		
 		// create message requesting sale of the goods
 		// includes: clientName, goodsName, accountNumber
-		// also include reply destination that the other client will use to send reply (replyQueue)
-		// how? see how connect() uses SetJMSReplyTo() 
-		Message msg = eventSession.createTextMessage(SALE_REQUEST_MSG);
+		// the requestor includes the reply destination and the correlation id of the sale
+		Message msg = clientSession.createTextMessage(SALE_REQUEST_MSG);
 		msg.setStringProperty(CLIENT_NAME_PROPERTY, clientName);
 		msg.setStringProperty(GOODS_NAME_PROPERTY, goodsName);
 		msg.setIntProperty(ACCOUNT_NUMBER_PROPERTY, accountNumber);
 
-		msg.setJMSReplyTo(replyQueue);
-					
 		// send the message (with clientSender)
-		clientSender.send(sellerQueue, msg);
+		CompletableFuture<Message> saleDetailsReply = requestor.request(clientSender, sellerQueue, msg);
+		String saleCorrelationId = msg.getJMSCorrelationID();
 		
 		/* Step 2: get seller's response and process it */
 		
-		// receive the reply (synchronously, using replyReceiver)
-		msg = replyReceiver.receive();
+		// wait for the reply
+		msg = awaitReply(saleDetailsReply);
+		if (msg == null) {
+			return;
+		}
 		
 		// parse the reply (depends on your selected message format)
 		// distinguish between "sell denied" and "sell accepted" message
@@ -477,16 +521,24 @@ public class Client {
 		bankMsg.setInt(Bank.ORDER_TYPE_KEY, Bank.ORDER_TYPE_SEND);
 		bankMsg.setInt(Bank.ORDER_RECEIVER_ACC_KEY, sellerAccount);
 		bankMsg.setInt(Bank.AMOUNT_KEY, amountToSend);
+		// the bank sends reports there, also when it restarted since we connected
+		bankMsg.setJMSReplyTo(requestor.getReplyDestination());
 
 		System.out.println("Sending $" + price + " to account " + sellerAccount);
 
+		// the seller confirms the sale with the correlation id of the sale request
+		CompletableFuture<Message> saleConfirmationReply = requestor.expect(saleCorrelationId);
+
 		// send message to bank
 		clientSender.send(toBankQueue, bankMsg);
 
 		/* Step 4: wait for seller's sale confirmation */
 
-		// receive the confirmation, similar to Step 2
-		msg = replyReceiver.receive();
+		// wait for the confirmation, similar to Step 2
+		msg = awaitReply(saleConfirmationReply);
+		if (msg == null) {
+			return;
+		}
 
 		// parse message and verify it's confirmation message
 		if (msg instanceof TextMessage && ((TextMessage)msg).getText().equals(SALE_CONFIRMATION_MSG)) {
@@ -513,31 +565,67 @@ public class Client {
 	 * Process a message with goods offer
 	 */
 	private void processOffer(Message msg) throws JMSException {
-		// parse the message, obtaining sender's name and list of offered goods
-		try {
-			if (msg instanceof ObjectMessage && ((ObjectMessage)msg).getObject() instanceof ArrayList) {
-				ObjectMessage offersMsg = (ObjectMessage)msg;
-				// should ignore messages sent from myself
-				String sender = offersMsg.getStringProperty(CLIENT_NAME_PROPERTY);
-				if (clientName.equals(sender)) {
-					return;
-				}
+		// parse the message, obtaining sender's name, sequence number and goods
+		if (!(msg instanceof MapMessage)) {
+			System.out.println("processOffer: Received unknown message:\n: " + msg);
+			return;
+		}
+		MapMessage offerMsg = (MapMessage) msg;
+		// should ignore messages sent from myself
+		String sender = offerMsg.getStringProperty(CLIENT_NAME_PROPERTY);
+		if (clientName.equals(sender)) {
+			return;
+		}
+		long sequence = offerMsg.getLongProperty(OFFER_SEQUENCE_PROPERTY);
 
-				synchronized (lock) {
-					// store the list into availableGoods (replacing any previous offer)
-					// empty list means disconnecting client, remove it from availableGoods completely
-					ArrayList<Goods> items = (ArrayList<Goods>) offersMsg.getObject();
-					if (items.isEmpty()) {
-						availableGoods.remove(sender);
-					} else {
-						availableGoods.put(sender, items);
+		boolean resync = false;
+		synchronized (lock) {
+			Long lastSequence = offerSequences.get(sender);
+			if (OFFER_SNAPSHOT.equals(offerMsg.getStringProperty(OFFER_TYPE_PROPERTY))) {
+				// store the goods into availableGoods (replacing any previous offer)
+				// empty snapshot means disconnecting client, remove it from availableGoods completely
+				Map<String, Goods> items = new LinkedHashMap<String, Goods>();
+				Enumeration<?> names = offerMsg.getMapNames();
+				while (names.hasMoreElements()) {
+					String name = (String) names.nextElement();
+					items.put(name, new Goods(name, offerMsg.getInt(name)));
+				}
+				offerResyncs.remove(sender);
+				if (items.isEmpty()) {
+					availableGoods.remove(sender);
+					offerSequences.remove(sender);
+				} else {
+					availableGoods.put(sender, items);
+					offerSequences.put(sender, sequence);
+				}
+			} else if (lastSequence != null && sequence == lastSequence + 1) {
+				// apply the delta to the seller's goods
+				Map<String, Goods> items = availableGoods.get(sender);
+				Enumeration<?> keys = offerMsg.getMapNames();
+				while (keys.hasMoreElements()) {
+					String key = (String) keys.nextElement();
+					if (key.startsWith(OFFER_REMOVED_PREFIX)) {
+						items.remove(key.substring(OFFER_REMOVED_PREFIX.length()));
+					} else if (key.startsWith(OFFER_ADDED_PREFIX)) {
+						String name = key.substring(OFFER_ADDED_PREFIX.length());
+						items.put(name, new Goods(name, offerMsg.getInt(key)));
+					} else if (key.startsWith(OFFER_PRICE_CHANGED_PREFIX)) {
+						String name = key.substring(OFFER_PRICE_CHANGED_PREFIX.length());
+						items.put(name, new Goods(name, offerMsg.getInt(key)));
 					}
 				}
-			} else {
-				System.out.println("processOffer: Received unknown message:\n: " + msg);
+				offerSequences.put(sender, sequence);
+			} else if (lastSequence == null || sequence > lastSequence) {
+				// a delta was missed or the seller is new to us, ask it once for a snapshot
+				resync = offerResyncs.add(sender);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+			// older deltas are already part of the snapshot
+		}
+
+		if (resync) {
+			TextMessage request = eventSession.createTextMessage(OFFER_SNAPSHOT_REQUEST_MSG);
+			request.setStringProperty(CLIENT_NAME_PROPERTY, clientName);
+			eventSender.send(eventSession.createQueue(sender + "-SaleQueue"), request);
 		}
 	}
 	
@@ -551,6 +639,10 @@ public class Client {
 		TextMessage saleRequest;
 		if (msg instanceof TextMessage && ((TextMessage) msg).getText().equals(SALE_REQUEST_MSG)) {
 			saleRequest = (TextMessage) msg;
+		} else if (msg instanceof TextMessage && ((TextMessage) msg).getText().equals(OFFER_SNAPSHOT_REQUEST_MSG)) {
+			// a subscriber missed a delta of our offer, requests of several subscribers share one snapshot
+			offerPublisher.requestSnapshot();
+			return;
 		} else {
 			System.out.println("processSale: invalid sale request msg type:\n" + msg);
 			return;
@@ -567,6 +659,7 @@ public class Client {
 
 		/* Step 2: decide what to do and modify data structures accordingly */
 		TextMessage response = clientSession.createTextMessage(SALE_DETAILS_MSG);
+		response.setJMSCorrelationID(saleRequest.getJMSCorrelationID());
 
         synchronized (lock) {
 			// check if we still offer this goods
@@ -582,9 +675,10 @@ public class Client {
 				reservedGoods.put(buyerName, goods);
 				reserverAccounts.put(buyerAccount, buyerName);
 				reserverDestinations.put(buyerName, buyerDest);
+				reserverCorrelations.put(buyerName, saleRequest.getJMSCorrelationID());
 
-				// Publish the goods since they changed
-				publishGoodsList(eventSender, eventSession);
+				// Publish the goods since they changed, the publisher sends the change after the lock is released
+				offerPublisher.changed(goodsName);
 
 				response.setIntProperty(TRANSACTION_STATE_PROPERTY, TRANSACTION_STATE_ACCEPT);
 				response.setIntProperty(ACCOUNT_NUMBER_PROPERTY, accountNumber);
@@ -629,28 +723,16 @@ public class Client {
 
 					// did he pay enough?
 					if (amount == g.price) {
-						// get the buyer's destination
-						Destination buyerDest = reserverDestinations.get(buyerName);
-
-						// remove the reserved goods and buyer-related information
-						reserverDestinations.remove(buyerName);
-						reserverAccounts.remove(buyerAccount);
-						reservedGoods.remove(buyerName);
-
-						/* Step 3: send confirmation message */
-
-						// prepare sale confirmation message
-						// includes: goods name (g.name)
-						TextMessage confirmationMsg = clientSession.createTextMessage(SALE_CONFIRMATION_MSG);
-						confirmationMsg.setIntProperty(TRANSACTION_STATE_PROPERTY, TRANSACTION_STATE_ACCEPT);
-						confirmationMsg.setStringProperty(GOODS_NAME_PROPERTY, g.name);
+						/* Step 3: send bank confirmation, the buyer gets the sale confirmation once the bank reports the transfer completed */
 
-						// send reply (destination is buyerDest)
-						clientSender.send(buyerDest, confirmationMsg);
+						// the reservation stays until the bank reports the outcome of the transfer
+						confirmedTransfers.put(mapMsg.getJMSCorrelationID(), buyerName);
 
 						// send bank confirmation i.e. transfer funds
 						TextMessage bankConfirmationMsg = clientSession.createTextMessage(SALE_BANK_CONFIRMATION_MSG);
 						bankConfirmationMsg.setIntProperty(SALE_BANK_CONFIRMATION_PROPERTY, SALE_BANK_CONFIRMATION_VALID);
+						// the bank matches the confirmation to the pending transfer
+						bankConfirmationMsg.setJMSCorrelationID(mapMsg.getJMSCorrelationID());
 
 						Destination bankConfirmationDest = mapMsg.getJMSReplyTo();
 						clientSender.send(bankConfirmationDest, bankConfirmationMsg);
@@ -660,6 +742,8 @@ public class Client {
 						// send bank a negative confirmation i.e. it does not transfer funds
 						TextMessage bankConfirmationMsg = clientSession.createTextMessage(SALE_BANK_CONFIRMATION_MSG);
 						bankConfirmationMsg.setIntProperty(SALE_BANK_CONFIRMATION_PROPERTY, SALE_BANK_CONFIRMATION_INVALID);
+						// the bank matches the confirmation to the pending transfer
+						bankConfirmationMsg.setJMSCorrelationID(mapMsg.getJMSCorrelationID());
 
 						Destination bankConfirmationDest = mapMsg.getJMSReplyTo();
 						clientSender.send(bankConfirmationDest, bankConfirmationMsg);
@@ -671,6 +755,7 @@ public class Client {
 						TextMessage denyMsg = clientSession.createTextMessage(SALE_CONFIRMATION_MSG);
 						denyMsg.setIntProperty(TRANSACTION_STATE_PROPERTY, TRANSACTION_STATE_DENY);
 						denyMsg.setStringProperty(GOODS_NAME_PROPERTY, g.name);
+						denyMsg.setJMSCorrelationID(reserverCorrelations.get(buyerName));
 						denyMsg.setStringProperty(TRANSACTION_ERROR_PROPERTY, TRANSACTION_ERROR_NOT_ENOUGH_MONEY_SENT);
 
 						clientSender.send(buyerDest, denyMsg);
@@ -694,9 +779,58 @@ public class Client {
 					TextMessage denyMsg = clientSession.createTextMessage(SALE_CONFIRMATION_MSG);
 					denyMsg.setIntProperty(TRANSACTION_STATE_PROPERTY, TRANSACTION_STATE_DENY);
 					denyMsg.setStringProperty(GOODS_NAME_PROPERTY, g.name);
+					denyMsg.setJMSCorrelationID(reserverCorrelations.get(buyerName));
 					denyMsg.setStringProperty(TRANSACTION_ERROR_PROPERTY, TRANSACTION_ERROR_INSUFFICIENT_FUNDS);
 
 					clientSender.send(buyerDest, denyMsg);
+				} else if (cmd == Bank.REPORT_TYPE_TRANSFER_COMPLETED || cmd == Bank.REPORT_TYPE_TRANSFER_ROLLED_BACK) {
+					String buyerName = confirmedTransfers.remove(mapMsg.getJMSCorrelationID());
+					if (buyerName == null) {
+						// we are the buyer, the money returned to our account
+						if (cmd == Bank.REPORT_TYPE_TRANSFER_ROLLED_BACK) {
+							System.out.println("Transfer of $" + mapMsg.getInt(Bank.AMOUNT_KEY) + " timed out, the money returned to the account");
+						}
+						return;
+					}
+
+					// remove the reserved goods and buyer-related information
+					Destination buyerDest = reserverDestinations.remove(buyerName);
+					reserverAccounts.remove(mapMsg.getInt(Bank.REPORT_SENDER_ACC_KEY));
+					Goods g = reservedGoods.remove(buyerName);
+					String saleCorrelationId = reserverCorrelations.remove(buyerName);
+
+					// prepare sale confirmation message
+					// includes: goods name (g.name)
+					TextMessage confirmationMsg = clientSession.createTextMessage(SALE_CONFIRMATION_MSG);
+					confirmationMsg.setStringProperty(GOODS_NAME_PROPERTY, g.name);
+					confirmationMsg.setJMSCorrelationID(saleCorrelationId);
+					if (cmd == Bank.REPORT_TYPE_TRANSFER_COMPLETED) {
+						System.out.println("Sold " + g.name + " to " + buyerName);
+						confirmationMsg.setIntProperty(TRANSACTION_STATE_PROPERTY, TRANSACTION_STATE_ACCEPT);
+					} else {
+						System.out.println("Transfer from " + buyerName + " timed out, " + g.name + " is offered again");
+						confirmationMsg.setIntProperty(TRANSACTION_STATE_PROPERTY, TRANSACTION_STATE_DENY);
+						confirmationMsg.setStringProperty(TRANSACTION_ERROR_PROPERTY, TRANSACTION_ERROR_TRANSFER_ROLLED_BACK);
+
+						// the sale did not happen, offer the goods again
+						offeredGoods.put(g.name, g);
+						offerPublisher.changed(g.name);
+					}
+
+					// send reply (destination is buyerDest)
+					clientSender.send(buyerDest, confirmationMsg);
+				} else if (cmd == Bank.REPORT_TYPE_BALANCE_CHANGED) {
+					int sequence = mapMsg.getInt(Bank.BALANCE_SEQUENCE_KEY);
+					long run = mapMsg.getLong(Bank.BANK_RUN_KEY);
+
+					if (balanceKnown && run == balanceRun && sequence == balanceSequence + 1) {
+						balance = mapMsg.getInt(Bank.ACCOUNT_BALANCE_PROPERTY);
+						balanceSequence = sequence;
+					} else if (!balanceKnown || run != balanceRun || sequence > balanceSequence) {
+						// an update was missed or the bank restarted and numbers anew, the next read asks the bank
+						balanceKnown = false;
+					}
+					// older events of the same run are already part of a resync reply that overtook them
 				} else {
 					System.out.println("processBankReport: Received unknown MapMessage:\n: " + msg);
 				}
@@ -706,23 +840,45 @@ public class Client {
 		}
 	}
 
+	/*
+	 * Replace the local view of the balance by the balance in a reply of the bank, unless balance events of the same run got further
+	 */
+	private void updateBalance(Message reply) throws JMSException {
+		int sequence = reply.getIntProperty(Bank.BALANCE_SEQUENCE_KEY);
+		long run = reply.getLongProperty(Bank.BANK_RUN_KEY);
+		synchronized (lock) {
+			if (!balanceKnown || run != balanceRun || sequence >= balanceSequence) {
+				balance = reply.getIntProperty(Bank.ACCOUNT_BALANCE_PROPERTY);
+				balanceSequence = sequence;
+				balanceRun = run;
+				balanceKnown = true;
+			}
+		}
+	}
+
+	/*
+	 * Print the balance from the local view, ask the bank only when the view missed an update
+	 */
 	private void getAccountBalance() throws JMSException {
-		Queue fromBankQueue = clientSession.createTemporaryQueue();
-		MessageConsumer tmpBankReceiver = clientSession.createConsumer(fromBankQueue);
+		synchronized (lock) {
+			if (balanceKnown) {
+				System.out.printf("Current account [%s] balance: %d%n", accountNumber, balance);
+				return;
+			}
+		}
 
 		TextMessage query = clientSession.createTextMessage(Bank.CHECK_BALANCE_QUERY_MSG);
 		query.setIntProperty(ACCOUNT_NUMBER_PROPERTY, accountNumber);
 
-		query.setJMSReplyTo(fromBankQueue);
-		clientSender.send(toBankQueue, query);
-
-		// get reply from bank and store the account number
-		Message msg = tmpBankReceiver.receive();
+		// get reply from bank
+		Message msg = awaitReply(requestor.request(clientSender, toBankQueue, query));
+		if (msg == null) {
+			return;
+		}
 
 		if (msg instanceof TextMessage && Bank.CHECK_BALANCE_REPLY_MSG.equals(((TextMessage)msg).getText())) {
-			TextMessage reply = (TextMessage) msg;
-			int balance = reply.getIntProperty(Bank.ACCOUNT_BALANCE_PROPERTY);
-			System.out.printf("Current account [%s] balance: %d%n", accountNumber, balance);
+			updateBalance(msg);
+			System.out.printf("Current account [%s] balance: %d (resynced)%n", accountNumber, msg.getIntProperty(Bank.ACCOUNT_BALANCE_PROPERTY));
 		} else {
 			System.out.println("getAccountBalance: Received unknown message:\n: " + msg);
 		}
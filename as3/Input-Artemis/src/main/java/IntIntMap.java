@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/*
+ * Map of int keys to int values without boxing
+ *
+ * Open addressing with linear probing in two parallel arrays, so a million accounts take
+ * a few megabytes and updating a value allocates nothing. Keys cannot be Integer.MIN_VALUE,
+ * which marks free slots. Not thread-safe.
+ */
+class IntIntMap {
+
+	/**** PUBLIC TYPES ****/
+
+	/*
+	 * Receives the entries of the map
+	 */
+	interface EntryConsumer {
+		void accept(int key, int value);
+	}
+
+	/**** PRIVATE VARIABLES ****/
+
+	// marks a free slot
+	private static final int FREE = Integer.MIN_VALUE;
+
+	private int[] keys;
+	private int[] values;
+
+	// number of slots minus one, the number of slots is a power of two
+	private int mask;
+
+	// number of entries
+	private int size = 0;
+
+	/**** PACKAGE METHODS ****/
+
+	/*
+	 * Create a map sized for the expected number of entries
+	 */
+	IntIntMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) * 2;
+		allocate(capacity);
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean containsKey(int key) {
+		return keys[find(key)] != FREE;
+	}
+
+	/*
+	 * Get the value of a key, or the given value if the key is missing
+	 */
+	int get(int key, int missing) {
+		int slot = find(key);
+		return (keys[slot] != FREE) ? values[slot] : missing;
+	}
+
+	void put(int key, int value) {
+		if (key == FREE) {
+			throw new IllegalArgumentException("Key " + key + " is reserved");
+		}
+		int slot = find(key);
+		if (keys[slot] == FREE) {
+			keys[slot] = key;
+			if (++size * 2 > keys.length) {
+				values[slot] = value;
+				grow();
+				return;
+			}
+		}
+		values[slot] = value;
+	}
+
+	/*
+	 * Add to the value of a key, a missing key counts as zero
+	 */
+	void add(int key, int delta) {
+		put(key, get(key, 0) + delta);
+	}
+
+	/*
+	 * Pass all entries to the consumer, in no particular order
+	 */
+	void forEach(EntryConsumer consumer) {
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != FREE) {
+				consumer.accept(keys[slot], values[slot]);
+			}
+		}
+	}
+
+	/**** PRIVATE METHODS ****/
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, FREE);
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/*
+	 * Find the slot of a key, or the free slot where it would be inserted
+	 */
+	private int find(int key) {
+		// spread sequential account numbers over the table
+		int hash = key * 0x9E3779B9;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (keys[slot] != FREE && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/*
+	 * Double the table and insert all entries again
+	 */
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		for (int slot = 0; slot < oldKeys.length; slot++) {
+			if (oldKeys[slot] != FREE) {
+				int newSlot = find(oldKeys[slot]);
+				keys[newSlot] = oldKeys[slot];
+				values[newSlot] = oldValues[slot];
+			}
+		}
+	}
+}
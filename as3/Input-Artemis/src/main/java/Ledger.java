@@ -0,0 +1,245 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Durable state of the bank's accounts in a directory: a snapshot and the journals of the shards
+ *
+ * On startup the snapshot is loaded and the journals written since are replayed. Transfers
+ * the crash left unfinished are settled: a confirmed transfer is credited to the seller if
+ * it was not yet, a transfer still waiting for confirmation returns to the buyer, as its
+ * confirmation can no longer be matched. The result is written as a snapshot of the next
+ * generation and the replayed journals are deleted, so replay only ever reads the journals
+ * of one run. Shards then write new journals of the new generation.
+ */
+class Ledger {
+
+	/**** PRIVATE CONSTANTS ****/
+
+	// identifies a snapshot file
+	private static final int SNAPSHOT_MAGIC = 0x4C454447;
+
+	private static final String SNAPSHOT_FILE = "snapshot";
+
+	// journal-<generation>-<shard>
+	private static final Pattern JOURNAL_FILE = Pattern.compile("journal-(\\d+)-(\\d+)");
+
+	// bits of a transfer id holding the number of the transfer within its shard
+	private static final int TRANSFER_NUMBER_BITS = 40;
+
+	/**** PRIVATE TYPES ****/
+
+	/*
+	 * Applies replayed records to the balances and keeps track of unfinished transfers
+	 */
+	private class Replay implements LedgerJournal.Visitor {
+		// escrowed transfers not yet committed or refunded: buyer account, seller account, amount
+		final Map<Long, int[]> escrowed = new HashMap<Long, int[]>();
+		// committed transfers
+		final Map<Long, int[]> committed = new HashMap<Long, int[]>();
+		// transfers that arrived at the seller, their journal may be replayed before the buyer's
+		final Set<Long> credited = new HashSet<Long>();
+
+		@Override
+		public void open(int account, int balance, String clientName) {
+			balances.add(account, balance);
+			clientNames.put(account, clientName);
+		}
+
+		@Override
+		public void escrow(long transferId, int clientAccount, int destAccount, int amount) {
+			balances.add(clientAccount, -amount);
+			escrowed.put(transferId, new int[] {clientAccount, destAccount, amount});
+			lastTransfer = Math.max(lastTransfer, transferId & ((1L << TRANSFER_NUMBER_BITS) - 1));
+		}
+
+		@Override
+		public void commit(long transferId) {
+			int[] transfer = escrowed.remove(transferId);
+			if (transfer != null) {
+				committed.put(transferId, transfer);
+			}
+		}
+
+		@Override
+		public void refund(long transferId) {
+			int[] transfer = escrowed.remove(transferId);
+			if (transfer != null) {
+				balances.add(transfer[0], transfer[2]);
+			}
+		}
+
+		@Override
+		public void credit(long transferId, int account, int amount) {
+			balances.add(account, amount);
+			credited.add(transferId);
+		}
+
+		/*
+		 * Finish the transfers the journals left unfinished
+		 * Returns the number of settled transfers
+		 */
+		int settle() {
+			int settled = 0;
+			for (Map.Entry<Long, int[]> entry : committed.entrySet()) {
+				if (!credited.contains(entry.getKey())) {
+					balances.add(entry.getValue()[1], entry.getValue()[2]);
+					settled++;
+				}
+			}
+			for (int[] transfer : escrowed.values()) {
+				balances.add(transfer[0], transfer[2]);
+				settled++;
+			}
+			return settled;
+		}
+	}
+
+	/**** PRIVATE VARIABLES ****/
+
+	private final Path directory;
+
+	// generation of the snapshot, journals of this generation are written after it
+	private long generation = 0;
+
+	// balances of all accounts
+	private final IntIntMap balances = new IntIntMap(1024);
+
+	// client names, mapped by account numbers
+	private final Map<Integer, String> clientNames = new HashMap<Integer, String>();
+
+	// highest number of a transfer within its shard, numbers continue after it
+	private long lastTransfer = 0;
+
+	/**** PACKAGE METHODS ****/
+
+	Ledger(Path directory) {
+		this.directory = directory;
+	}
+
+	/*
+	 * Id of a transfer, unique across shards
+	 */
+	static long transferId(int shard, long number) {
+		return ((long) shard << TRANSFER_NUMBER_BITS) | number;
+	}
+
+	/*
+	 * Load the snapshot, replay the journals, settle unfinished transfers and compact it all into a new snapshot
+	 * Returns the number of settled transfers
+	 */
+	int recover() throws IOException {
+		Files.createDirectories(directory);
+		Path snapshot = directory.resolve(SNAPSHOT_FILE);
+		if (Files.exists(snapshot)) {
+			readSnapshot(snapshot);
+		}
+
+		// journals of older generations are already in the snapshot
+		Replay replay = new Replay();
+		List<Path> obsolete = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Matcher matcher = JOURNAL_FILE.matcher(file.getFileName().toString());
+				if (!matcher.matches()) {
+					continue;
+				}
+				if (Long.parseLong(matcher.group(1)) >= generation) {
+					LedgerJournal.replay(file, replay);
+				}
+				obsolete.add(file);
+			}
+		}
+		int settled = replay.settle();
+
+		generation++;
+		writeSnapshot(snapshot);
+		for (Path file : obsolete) {
+			Files.delete(file);
+		}
+		return settled;
+	}
+
+	/*
+	 * Create the journal of a shard for this run
+	 */
+	LedgerJournal createJournal(int shard) throws IOException {
+		return new LedgerJournal(directory.resolve("journal-" + generation + "-" + shard));
+	}
+
+	IntIntMap getBalances() {
+		return balances;
+	}
+
+	Map<Integer, String> getClientNames() {
+		return clientNames;
+	}
+
+	long getLastTransfer() {
+		return lastTransfer;
+	}
+
+	/*
+	 * Generation of this run, it grows with every recovery and so identifies a run of the bank
+	 */
+	long getGeneration() {
+		return generation;
+	}
+
+	/**** PRIVATE METHODS ****/
+
+	private void readSnapshot(Path snapshot) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Not a ledger snapshot: " + snapshot);
+			}
+			generation = in.readLong();
+			lastTransfer = in.readLong();
+			int accounts = in.readInt();
+			for (int i = 0; i < accounts; i++) {
+				int account = in.readInt();
+				balances.put(account, in.readInt());
+				clientNames.put(account, in.readUTF());
+			}
+		}
+	}
+
+	/*
+	 * Write the snapshot to a temporary file and replace the old one, so a crash leaves one of them whole
+	 */
+	private void writeSnapshot(Path snapshot) throws IOException {
+		Path tmp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(generation);
+			out.writeLong(lastTransfer);
+			out.writeInt(clientNames.size());
+			for (Map.Entry<Integer, String> entry : clientNames.entrySet()) {
+				out.writeInt(entry.getKey());
+				out.writeInt(balances.get(entry.getKey(), 0));
+				out.writeUTF(entry.getValue());
+			}
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
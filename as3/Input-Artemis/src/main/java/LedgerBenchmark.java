@@ -0,0 +1,116 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Benchmark of the bank's ledger: journaling accounts and transfers, then recovering them
+ *
+ * Writes the given number of accounts and transfers into the journals of the shards of a
+ * temporary ledger, syncing every SYNC_EVERY records as group commit would, then recovers
+ * the ledger twice: first by replaying the journals, then from the snapshot the first
+ * recovery wrote. Prints CSV with the time of each phase and checks that no money was
+ * created or lost.
+ */
+public class LedgerBenchmark {
+
+	/**** PRIVATE CONSTANTS ****/
+
+	// records between syncs of a journal
+	private static final int SYNC_EVERY = 1000;
+
+	/**** PRIVATE METHODS ****/
+
+	/*
+	 * Print a CSV line of a finished phase
+	 */
+	private static void report(String phase, int accounts, int transfers, long records, long startTimeNs) {
+		double seconds = (System.nanoTime() - startTimeNs) / 1e9;
+		System.out.printf("%s,%d,%d,%.3f,%.1f%n", phase, accounts, transfers, seconds, records / seconds);
+	}
+
+	/*
+	 * Recover a ledger from the directory and check the sum of the balances
+	 */
+	private static Ledger recover(Path directory, int accounts) throws Exception {
+		Ledger ledger = new Ledger(directory);
+		ledger.recover();
+		long[] total = new long[1];
+		ledger.getBalances().forEach((account, balance) -> total[0] += balance);
+		if (ledger.getBalances().size() != accounts || total[0] != (long) accounts * Bank.INITIAL_BALANCE) {
+			throw new IllegalStateException("Recovered " + ledger.getBalances().size() + " accounts with $" + total[0]);
+		}
+		return ledger;
+	}
+
+	/**** PUBLIC METHODS ****/
+
+	public static void main(String[] args) {
+		int accounts = (args.length < 1) ? 1000000 : Integer.parseInt(args[0]);
+		int transfers = (args.length < 2) ? 1000000 : Integer.parseInt(args[1]);
+		int shards = (args.length < 3) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(args[2]);
+		boolean printHeader = (args.length < 4) ? true : Boolean.parseBoolean(args[3]);
+
+		Path directory = null;
+		try {
+			directory = Files.createTempDirectory("ledger");
+			Ledger ledger = new Ledger(directory);
+			ledger.recover();
+			LedgerJournal[] journals = new LedgerJournal[shards];
+			for (int i = 0; i < shards; i++) {
+				journals[i] = ledger.createJournal(i);
+			}
+
+			if (printHeader) {
+				System.out.println("phase,accounts,transfers,seconds,records_per_s");
+			}
+
+			// accounts, then transfers journaled as the shards do: escrow and commit by the buyer's, credit by the seller's
+			long startTimeNs = System.nanoTime();
+			long records = 0;
+			int firstAccount = 1000000;
+			for (int i = 0; i < accounts; i++) {
+				int account = firstAccount + i;
+				journals[Math.floorMod(account, shards)].open(account, Bank.INITIAL_BALANCE, "client-" + i);
+				if (++records % SYNC_EVERY == 0) {
+					journals[Math.floorMod(account, shards)].sync();
+				}
+			}
+			for (int i = 0; i < transfers; i++) {
+				int from = firstAccount + (int) ((i * 7919L) % accounts);
+				int to = firstAccount + (int) ((i * 104729L + 1) % accounts);
+				LedgerJournal buyer = journals[Math.floorMod(from, shards)];
+				long transferId = Ledger.transferId(Math.floorMod(from, shards), i + 1);
+				buyer.escrow(transferId, from, to, 1);
+				buyer.commit(transferId);
+				journals[Math.floorMod(to, shards)].credit(transferId, to, 1);
+				records += 3;
+				if (records % SYNC_EVERY < 3) {
+					buyer.sync();
+				}
+			}
+			for (LedgerJournal journal : journals) {
+				journal.close();
+			}
+			report("journal", accounts, transfers, records, startTimeNs);
+
+			startTimeNs = System.nanoTime();
+			recover(directory, accounts);
+			report("replay", accounts, transfers, records, startTimeNs);
+
+			startTimeNs = System.nanoTime();
+			recover(directory, accounts);
+			report("snapshot", accounts, transfers, accounts, startTimeNs);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		finally {
+			try {
+				if (directory != null) {
+					RequestReplyBenchmark.deleteDirectory(directory);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,212 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Append-only journal of account operations, written through a memory-mapped file
+ *
+ * Appending a record only copies it into the mapping, which survives a crash of the process
+ * as the operating system writes it back. sync() forces written records to the disk, the
+ * bank syncs a group of records at once instead of syncing every operation. The file is
+ * mapped in chunks, a record never spans two chunks. The type byte of a record is written
+ * after its fields, so a record torn by a crash reads as the end of the journal.
+ *
+ * Records (type byte, then fields):
+ * - OPEN account, initial balance, client name
+ * - ESCROW transfer id, buyer account, seller account, amount: the amount leaves the buyer
+ * - COMMIT transfer id: the seller confirmed, the amount goes to the seller
+ * - REFUND transfer id: the amount returns to the buyer
+ * - CREDIT transfer id, account, amount: the amount arrived at the seller
+ */
+class LedgerJournal implements Closeable {
+
+	/**** PUBLIC TYPES ****/
+
+	/*
+	 * Receives the records of a journal being replayed
+	 */
+	interface Visitor {
+		void open(int account, int balance, String clientName);
+		void escrow(long transferId, int clientAccount, int destAccount, int amount);
+		void commit(long transferId);
+		void refund(long transferId);
+		void credit(long transferId, int account, int amount);
+	}
+
+	/**** PRIVATE CONSTANTS ****/
+
+	// record types, zero marks the end of the journal
+	private static final byte OPEN = 1;
+	private static final byte ESCROW = 2;
+	private static final byte COMMIT = 3;
+	private static final byte REFUND = 4;
+	private static final byte CREDIT = 5;
+	// the rest of the chunk is unused, the journal continues in the next one
+	private static final byte END_OF_CHUNK = -1;
+
+	// size of the mapped chunks of the file
+	private static final int CHUNK_SIZE = 64 << 20;
+
+	/**** PRIVATE VARIABLES ****/
+
+	private final FileChannel channel;
+
+	// mapping of the chunk being written
+	private MappedByteBuffer chunk;
+
+	// offset of the chunk in the file
+	private long chunkStart = 0;
+
+	// whether records were appended since the last sync
+	private boolean dirty = false;
+
+	/**** PACKAGE METHODS ****/
+
+	/*
+	 * Create a new journal file
+	 */
+	LedgerJournal(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, CHUNK_SIZE);
+	}
+
+	void open(int account, int balance, String clientName) throws IOException {
+		byte[] name = clientName.getBytes(StandardCharsets.UTF_8);
+		if (name.length > 0xFFFF) {
+			throw new IllegalArgumentException("Client name is too long: " + clientName);
+		}
+		int pos = reserve(1 + 4 + 4 + 2 + name.length);
+		chunk.putInt(pos + 1, account);
+		chunk.putInt(pos + 5, balance);
+		chunk.putShort(pos + 9, (short) name.length);
+		for (int i = 0; i < name.length; i++) {
+			chunk.put(pos + 11 + i, name[i]);
+		}
+		chunk.put(pos, OPEN);
+	}
+
+	void escrow(long transferId, int clientAccount, int destAccount, int amount) throws IOException {
+		int pos = reserve(1 + 8 + 4 + 4 + 4);
+		chunk.putLong(pos + 1, transferId);
+		chunk.putInt(pos + 9, clientAccount);
+		chunk.putInt(pos + 13, destAccount);
+		chunk.putInt(pos + 17, amount);
+		chunk.put(pos, ESCROW);
+	}
+
+	void commit(long transferId) throws IOException {
+		int pos = reserve(1 + 8);
+		chunk.putLong(pos + 1, transferId);
+		chunk.put(pos, COMMIT);
+	}
+
+	void refund(long transferId) throws IOException {
+		int pos = reserve(1 + 8);
+		chunk.putLong(pos + 1, transferId);
+		chunk.put(pos, REFUND);
+	}
+
+	void credit(long transferId, int account, int amount) throws IOException {
+		int pos = reserve(1 + 8 + 4 + 4);
+		chunk.putLong(pos + 1, transferId);
+		chunk.putInt(pos + 9, account);
+		chunk.putInt(pos + 13, amount);
+		chunk.put(pos, CREDIT);
+	}
+
+	/*
+	 * Force the records appended since the last sync to the disk
+	 */
+	void sync() {
+		if (dirty) {
+			chunk.force();
+			dirty = false;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		sync();
+		channel.close();
+	}
+
+	/*
+	 * Pass all records of a journal file to the visitor, in the order they were appended
+	 */
+	static void replay(Path file, Visitor visitor) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long start = 0; start < size; start += CHUNK_SIZE) {
+				MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start));
+				if (!replayChunk(chunk, visitor)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**** PRIVATE METHODS ****/
+
+	/*
+	 * Reserve room for a record in the current chunk, moving to the next chunk when it does not fit
+	 * Returns the position of the record
+	 */
+	private int reserve(int size) throws IOException {
+		if (chunk.remaining() < size) {
+			if (chunk.hasRemaining()) {
+				chunk.put(chunk.position(), END_OF_CHUNK);
+			}
+			// the next chunk is forced separately, do not leave this one behind
+			chunk.force();
+			chunkStart += CHUNK_SIZE;
+			chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, CHUNK_SIZE);
+		}
+		int pos = chunk.position();
+		chunk.position(pos + size);
+		dirty = true;
+		return pos;
+	}
+
+	/*
+	 * Replay records of one chunk
+	 * Returns false when the end of the journal was found
+	 */
+	private static boolean replayChunk(MappedByteBuffer chunk, Visitor visitor) throws IOException {
+		while (chunk.hasRemaining()) {
+			byte type = chunk.get();
+			switch (type) {
+				case 0:
+					return false;
+				case END_OF_CHUNK:
+					return true;
+				case OPEN: {
+					int account = chunk.getInt();
+					int balance = chunk.getInt();
+					byte[] name = new byte[chunk.getShort() & 0xFFFF];
+					chunk.get(name);
+					visitor.open(account, balance, new String(name, StandardCharsets.UTF_8));
+					break;
+				}
+				case ESCROW:
+					visitor.escrow(chunk.getLong(), chunk.getInt(), chunk.getInt(), chunk.getInt());
+					break;
+				case COMMIT:
+					visitor.commit(chunk.getLong());
+					break;
+				case REFUND:
+					visitor.refund(chunk.getLong());
+					break;
+				case CREDIT:
+					visitor.credit(chunk.getLong(), chunk.getInt(), chunk.getInt());
+					break;
+				default:
+					throw new IOException("Corrupt journal record of type " + type + " at " + (chunk.position() - 1));
+			}
+		}
+		return true;
+	}
+}
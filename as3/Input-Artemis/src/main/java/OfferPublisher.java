@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.*;
+
+/*
+ * Publishes the offered goods of a client to the offer topic as deltas against the last publish
+ *
+ * Changes of the offered goods are only marked while the client holds its lock, the publish
+ * runs on the publisher's own thread and session COALESCE_MS later, so rapid changes go out
+ * as one message and the lock is not held while sending. A delta lists the goods added,
+ * removed and with a changed price since the previous message, changes that cancel out are
+ * not sent at all. Every message carries the next sequence number of this seller, so
+ * subscribers notice a missed delta and ask for a snapshot: the full list of goods, which is
+ * also published every SNAPSHOT_INTERVAL_MS for subscribers that joined later.
+ */
+class OfferPublisher {
+
+	/**** PRIVATE CONSTANTS ****/
+
+	// time to collect changes before publishing them
+	private static final long COALESCE_MS = 50;
+
+	// time between periodic snapshots
+	private static final long SNAPSHOT_INTERVAL_MS = 30000;
+
+	/**** PRIVATE VARIABLES ****/
+
+	// name of the seller, set on every message
+	private final String clientName;
+
+	// lock of the client guarding offered goods, dirty names and requests
+	private final Object lock;
+
+	// offered goods of the client, mapped by name
+	private final Map<String, Goods> offeredGoods;
+
+	// runs the publishes, one at a time
+	private final ScheduledExecutorService executor;
+
+	// session of the publisher thread
+	private final Session session;
+
+	// sender of offers
+	private final MessageProducer sender;
+
+	// topic of offers
+	private final Topic offerTopic;
+
+	// names of goods changed since the last publish, guarded by lock
+	private final Set<String> dirty = new HashSet<String>();
+
+	// whether the next publish is a snapshot, guarded by lock
+	private boolean snapshotRequested = false;
+
+	// whether a publish is scheduled, guarded by lock
+	private boolean publishScheduled = false;
+
+	// prices of the goods as subscribers know them from the messages so far, used only by the publisher thread
+	private final Map<String, Integer> published = new HashMap<String, Integer>();
+
+	// sequence number of the last message, used only by the publisher thread
+	private long sequence = 0;
+
+	/**** PACKAGE METHODS ****/
+
+	/*
+	 * Create the publisher with its own session and thread, the first snapshot is up to the client
+	 */
+	OfferPublisher(String clientName, Connection conn, String offerTopicName, Object lock, Map<String, Goods> offeredGoods) throws JMSException {
+		this.clientName = clientName;
+		this.lock = lock;
+		this.offeredGoods = offeredGoods;
+		this.session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		this.sender = session.createProducer(null);
+		this.offerTopic = session.createTopic(offerTopicName);
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "offer-publisher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::requestSnapshot, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Mark goods as added, removed or repriced, the caller holds the client's lock
+	 */
+	void changed(String goodsName) {
+		dirty.add(goodsName);
+		schedulePublish();
+	}
+
+	/*
+	 * Publish a snapshot instead of the next delta
+	 */
+	void requestSnapshot() {
+		synchronized (lock) {
+			snapshotRequested = true;
+			schedulePublish();
+		}
+	}
+
+	/*
+	 * Publish the current goods as the last snapshot and stop, an empty snapshot tells subscribers the seller left
+	 */
+	void close() throws InterruptedException {
+		executor.execute(() -> {
+			synchronized (lock) {
+				snapshotRequested = true;
+			}
+			publish();
+		});
+		executor.shutdown();
+		executor.awaitTermination(COALESCE_MS * 10, TimeUnit.MILLISECONDS);
+	}
+
+	/**** PRIVATE METHODS ****/
+
+	/*
+	 * Schedule a publish unless one is scheduled, the caller holds the client's lock
+	 */
+	private void schedulePublish() {
+		if (!publishScheduled) {
+			publishScheduled = true;
+			executor.schedule(this::publish, COALESCE_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/*
+	 * Copy the changes under the lock, then publish them as a snapshot or a delta, runs on the publisher thread
+	 */
+	private void publish() {
+		// current prices of the goods to publish, missing goods are no longer offered
+		Map<String, Integer> prices = new HashMap<String, Integer>();
+		List<String> names;
+		boolean snapshot;
+		synchronized (lock) {
+			publishScheduled = false;
+			snapshot = snapshotRequested;
+			snapshotRequested = false;
+			names = snapshot ? new ArrayList<String>(offeredGoods.keySet()) : new ArrayList<String>(dirty);
+			for (String name : names) {
+				Goods goods = offeredGoods.get(name);
+				if (goods != null) {
+					prices.put(name, goods.price);
+				}
+			}
+			// a snapshot includes all changes
+			dirty.clear();
+		}
+
+		try {
+			MapMessage message = session.createMapMessage();
+			if (snapshot) {
+				for (Map.Entry<String, Integer> entry : prices.entrySet()) {
+					message.setInt(entry.getKey(), entry.getValue());
+				}
+				published.clear();
+				published.putAll(prices);
+			} else {
+				int changes = 0;
+				for (String name : names) {
+					Integer price = prices.get(name);
+					Integer publishedPrice = published.get(name);
+					if (Objects.equals(price, publishedPrice)) {
+						// the changes cancelled out
+						continue;
+					}
+					if (publishedPrice == null) {
+						message.setInt(Client.OFFER_ADDED_PREFIX + name, price);
+						published.put(name, price);
+					} else if (price == null) {
+						message.setBoolean(Client.OFFER_REMOVED_PREFIX + name, true);
+						published.remove(name);
+					} else {
+						message.setInt(Client.OFFER_PRICE_CHANGED_PREFIX + name, price);
+						published.put(name, price);
+					}
+					changes++;
+				}
+				if (changes == 0) {
+					return;
+				}
+			}
+			message.setStringProperty(Client.CLIENT_NAME_PROPERTY, clientName);
+			message.setStringProperty(Client.OFFER_TYPE_PROPERTY, snapshot ? Client.OFFER_SNAPSHOT : Client.OFFER_DELTA);
+			message.setLongProperty(Client.OFFER_SEQUENCE_PROPERTY, ++sequence);
+			sender.send(offerTopic, message);
+		} catch (JMSException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+import javax.jms.*;
+
+import org.apache.activemq.artemis.core.config.Configuration;
+import org.apache.activemq.artemis.core.config.impl.ConfigurationImpl;
+import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
+import org.apache.activemq.artemis.jms.client.ActiveMQConnectionFactory;
+
+/*
+ * Benchmark of balance queries to the bank with a temporary queue per request
+ * against a shared reply queue with correlation ids (Requestor)
+ *
+ * Starts an embedded broker without persistence and a bank with a temporary ledger in this process,
+ * then prints CSV with requests per second of each mode, queries go round robin
+ * to the given number of accounts, so that they spread over the bank's shards:
+ * - temporary: a temporary queue and consumer per request, as clients used to do
+ * - shared: one reply queue, one request at a time
+ * - pipelined: one reply queue, a window of requests in flight
+ * A positive batch size runs the bank in its transacted mode with batches of that size.
+ */
+public class RequestReplyBenchmark {
+
+	/**** PRIVATE METHODS ****/
+
+	/*
+	 * Create a balance query of the account
+	 */
+	private static TextMessage createQuery(Session session, int[] accountNumbers, int request) throws JMSException {
+		TextMessage query = session.createTextMessage(Bank.CHECK_BALANCE_QUERY_MSG);
+		query.setIntProperty(Client.ACCOUNT_NUMBER_PROPERTY, accountNumbers[request % accountNumbers.length]);
+		return query;
+	}
+
+	/*
+	 * Query the balance with a new temporary queue for every reply
+	 */
+	private static void runTemporary(Session session, MessageProducer sender, Queue toBankQueue, int[] accountNumbers, int requests) throws JMSException {
+		for (int i = 0; i < requests; i++) {
+			TemporaryQueue fromBankQueue = session.createTemporaryQueue();
+			MessageConsumer tmpBankReceiver = session.createConsumer(fromBankQueue);
+
+			TextMessage query = createQuery(session, accountNumbers, i);
+			query.setJMSReplyTo(fromBankQueue);
+			sender.send(toBankQueue, query);
+			tmpBankReceiver.receive();
+
+			// clients used to leak these, close them so the broker does not run out
+			tmpBankReceiver.close();
+			fromBankQueue.delete();
+		}
+	}
+
+	/*
+	 * Query the balance through the requestor with up to window requests in flight
+	 */
+	private static void runShared(Session session, MessageProducer sender, Requestor requestor, Queue toBankQueue, int[] accountNumbers, int requests, int window) throws Exception {
+		ArrayDeque<CompletableFuture<Message>> inFlight = new ArrayDeque<CompletableFuture<Message>>();
+		for (int i = 0; i < requests; i++) {
+			if (inFlight.size() == window) {
+				inFlight.poll().get();
+			}
+			inFlight.add(requestor.request(sender, toBankQueue, createQuery(session, accountNumbers, i)));
+		}
+		while (!inFlight.isEmpty()) {
+			inFlight.poll().get();
+		}
+	}
+
+	/*
+	 * Print a CSV line of a finished mode
+	 */
+	private static void report(String mode, int shards, int batchSize, int requests, long startTimeNs) {
+		double seconds = (System.nanoTime() - startTimeNs) / 1e9;
+		System.out.printf("%s,%d,%d,%d,%.3f,%.1f%n", mode, shards, batchSize, requests, seconds, requests / seconds);
+	}
+
+	/**** PACKAGE METHODS ****/
+
+	/*
+	 * Delete a directory with the files in it
+	 */
+	static void deleteDirectory(Path directory) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	/**** PUBLIC METHODS ****/
+
+	public static void main(String[] args) {
+		int requests = (args.length < 1) ? 10000 : Integer.parseInt(args[0]);
+		int window = (args.length < 2) ? 64 : Integer.parseInt(args[1]);
+		String url = (args.length < 3) ? "tcp://localhost:61617" : args[2];
+		int accounts = (args.length < 4) ? 1 : Integer.parseInt(args[3]);
+		int shards = (args.length < 5) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(args[4]);
+		int batchSize = (args.length < 6) ? 0 : Integer.parseInt(args[5]);
+		long batchTimeMs = (args.length < 7) ? 5 : Long.parseLong(args[6]);
+		boolean printHeader = (args.length < 8) ? true : Boolean.parseBoolean(args[7]);
+
+		EmbeddedActiveMQ broker = new EmbeddedActiveMQ();
+		Path ledgerDirectory = null;
+		try {
+			ledgerDirectory = Files.createTempDirectory("ledger");
+
+			// broker accepting both in-VM and TCP connections, nothing is stored
+			Configuration config = new ConfigurationImpl()
+					.setPersistenceEnabled(false)
+					.setSecurityEnabled(false)
+					.addAcceptorConfiguration("in-vm", "vm://0")
+					.addAcceptorConfiguration("tcp", "tcp://localhost:61617");
+			broker.setConfiguration(config);
+			broker.start();
+
+			try (ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(url);
+					Connection bankConnection = connectionFactory.createConnection();
+					Connection connection = connectionFactory.createConnection()) {
+				Bank bank = new Bank(bankConnection, shards, ledgerDirectory, batchSize, batchTimeMs);
+				bank.init();
+
+				// one session sends requests, the other one dispatches replies
+				Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				MessageProducer sender = session.createProducer(null);
+				Session replySession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				Queue replyQueue = replySession.createTemporaryQueue();
+				Requestor requestor = new Requestor(replyQueue, replySession.createConsumer(replyQueue), msg -> {
+					System.out.println("Unexpected message: " + msg);
+				});
+				Queue toBankQueue = session.createQueue(Bank.BANK_QUEUE);
+				connection.start();
+
+				int[] accountNumbers = new int[accounts];
+				for (int i = 0; i < accounts; i++) {
+					TextMessage newAccount = session.createTextMessage(Bank.NEW_ACCOUNT_MSG);
+					newAccount.setStringProperty(Client.CLIENT_NAME_PROPERTY, "benchmark-" + i);
+					TextMessage reply = (TextMessage) requestor.request(sender, toBankQueue, newAccount).get();
+					accountNumbers[i] = Integer.parseInt(reply.getText());
+				}
+
+				// warm up the broker, the bank and the client, the results are not reported
+				runTemporary(session, sender, toBankQueue, accountNumbers, requests / 10);
+				runShared(session, sender, requestor, toBankQueue, accountNumbers, requests / 10, window);
+
+				if (printHeader) {
+					System.out.println("mode,shards,batch,requests,seconds,requests_per_s");
+				}
+
+				long startTimeNs = System.nanoTime();
+				runTemporary(session, sender, toBankQueue, accountNumbers, requests);
+				report("temporary", shards, batchSize, requests, startTimeNs);
+
+				startTimeNs = System.nanoTime();
+				runShared(session, sender, requestor, toBankQueue, accountNumbers, requests, 1);
+				report("shared", shards, batchSize, requests, startTimeNs);
+
+				startTimeNs = System.nanoTime();
+				runShared(session, sender, requestor, toBankQueue, accountNumbers, requests, window);
+				report("pipelined", shards, batchSize, requests, startTimeNs);
+
+				bank.close();
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		finally {
+			try {
+				broker.stop();
+				if (ledgerDirectory != null) {
+					deleteDirectory(ledgerDirectory);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.*;
+
+/*
+ * Request/reply over one long-lived reply destination of a participant
+ *
+ * Every request gets a new JMSCorrelationID and the reply destination as JMSReplyTo,
+ * the replier copies the correlation id to its reply. Replies are received asynchronously
+ * and complete the future of the matching pending request. Messages that do not match
+ * any request (such as reports the bank sends on its own) go to a fallback listener.
+ */
+public class Requestor implements MessageListener {
+
+	/**** PRIVATE VARIABLES ****/
+
+	// destination of all replies
+	private final Destination replyDest;
+
+	// receives messages that are not replies to a pending request
+	private final MessageListener fallback;
+
+	// unique prefix of correlation ids of this requestor
+	private final String idPrefix = UUID.randomUUID() + "-";
+
+	// last assigned request number
+	private final AtomicLong lastRequest = new AtomicLong();
+
+	// requests waiting for a reply, mapped by correlation id
+	private final Map<String, CompletableFuture<Message>> pending = new ConcurrentHashMap<String, CompletableFuture<Message>>();
+
+	/**** PUBLIC METHODS ****/
+
+	/*
+	 * Create the requestor and start dispatching replies received by the consumer
+	 * Listeners of the consumer's session must not wait for replies, they would wait for themselves
+	 */
+	public Requestor(Destination replyDest, MessageConsumer replyReceiver, MessageListener fallback) throws JMSException {
+		this.replyDest = replyDest;
+		this.fallback = fallback;
+		replyReceiver.setMessageListener(this);
+	}
+
+	/*
+	 * The destination that replies are sent to
+	 */
+	public Destination getReplyDestination() {
+		return replyDest;
+	}
+
+	/*
+	 * Send a request and return the future of its reply
+	 * The sender must belong to the session of the calling thread
+	 */
+	public CompletableFuture<Message> request(MessageProducer sender, Destination dest, Message msg) throws JMSException {
+		String correlationId = idPrefix + lastRequest.incrementAndGet();
+		CompletableFuture<Message> reply = expect(correlationId);
+
+		msg.setJMSCorrelationID(correlationId);
+		msg.setJMSReplyTo(replyDest);
+		try {
+			sender.send(dest, msg);
+		} catch (JMSException e) {
+			pending.remove(correlationId);
+			throw e;
+		}
+		return reply;
+	}
+
+	/*
+	 * Return the future of another reply to the same request
+	 * Must be called before the reply may arrive, for example before the message that causes it is sent
+	 */
+	public CompletableFuture<Message> expect(String correlationId) {
+		CompletableFuture<Message> reply = new CompletableFuture<Message>();
+		pending.put(correlationId, reply);
+		// a request that is given up (cancelled) no longer waits
+		reply.whenComplete((msg, e) -> pending.remove(correlationId, reply));
+		return reply;
+	}
+
+	/*
+	 * Dispatch a received message to the matching request or to the fallback listener
+	 */
+	@Override
+	public void onMessage(Message msg) {
+		CompletableFuture<Message> reply = null;
+		try {
+			String correlationId = msg.getJMSCorrelationID();
+			if (correlationId != null) {
+				reply = pending.remove(correlationId);
+			}
+		} catch (JMSException e) {
+			e.printStackTrace();
+		}
+
+		if (reply != null) {
+			reply.complete(msg);
+		} else {
+			fallback.onMessage(msg);
+		}
+	}
+}